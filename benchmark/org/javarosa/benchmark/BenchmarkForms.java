@@ -0,0 +1,192 @@
+package org.javarosa.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.javarosa.core.model.Constants;
+import org.javarosa.core.model.CoreModelModule;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.SelectChoice;
+import org.javarosa.core.model.data.DateData;
+import org.javarosa.core.model.data.DateTimeData;
+import org.javarosa.core.model.data.DecimalData;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.SelectMultiData;
+import org.javarosa.core.model.data.SelectOneData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.data.TimeData;
+import org.javarosa.core.model.data.helper.Selection;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.core.services.storage.IStorageFactory;
+import org.javarosa.core.services.storage.IStorageUtility;
+import org.javarosa.core.services.storage.StorageManager;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.javarosa.core.util.JavaRosaCoreModule;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.form.api.FormEntryPrompt;
+import org.javarosa.model.xform.XFormsModule;
+import org.javarosa.xform.parse.XFormParser;
+
+/**
+ * The forms the benchmarks run over, and the steps they share. Forms are read from the resources
+ * directory, so the benchmarks have to be run from the root of the project.
+ */
+final class BenchmarkForms {
+    static final String LARGE_EXTERNAL_INSTANCE_FORM = "external-secondary-instance-large.xml";
+
+    /** The number of towns written to the external instance of {@link #LARGE_EXTERNAL_INSTANCE_FORM} */
+    static final int TOWNS = 10000;
+
+    private static final File RESOURCES = new File("resources");
+    private static final File TOWNS_FILE = new File(RESOURCES, "towns-large.xml");
+
+    private BenchmarkForms() {
+    }
+
+    static void setUp(String formName) throws IOException {
+        PrototypeManager.registerPrototypes(JavaRosaCoreModule.classNames);
+        PrototypeManager.registerPrototypes(CoreModelModule.classNames);
+        new XFormsModule().registerModule();
+        // preloaders read properties, which are kept in storage
+        StorageManager.setStorageFactory(new IStorageFactory() {
+            public IStorageUtility newStorage(String name, Class type) {
+                return new DummyIndexedStorageUtility();
+            }
+        });
+
+        if (LARGE_EXTERNAL_INSTANCE_FORM.equals(formName)) {
+            PrintWriter pw = new PrintWriter(TOWNS_FILE);
+            pw.println("<towndata>");
+            for (int i = 0; i < TOWNS; ++i) {
+                pw.println("<data_set>us_east</data_set>");
+            }
+            pw.println("</towndata>");
+            pw.close();
+        }
+    }
+
+    static void tearDown(String formName) {
+        if (LARGE_EXTERNAL_INSTANCE_FORM.equals(formName)) {
+            TOWNS_FILE.delete();
+        }
+    }
+
+    static FormDef parse(String formName) throws IOException {
+        InputStreamReader reader = new InputStreamReader(new FileInputStream(new File(RESOURCES, formName)), "UTF-8");
+        try {
+            return new XFormParser(reader).parse();
+        } finally {
+            reader.close();
+        }
+    }
+
+    static byte[] serialize(FormDef formDef) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        formDef.writeExternal(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    static FormDef deserialize(byte[] bytes) throws IOException, DeserializationException {
+        FormDef formDef = new FormDef();
+        formDef.readExternal(new DataInputStream(new ByteArrayInputStream(bytes)), ExtUtil.defaultPrototypes());
+        return formDef;
+    }
+
+    static FormDef initialize(byte[] bytes) throws IOException, DeserializationException {
+        FormDef formDef = deserialize(bytes);
+        formDef.initialize(true, new InstanceInitializationFactory());
+        return formDef;
+    }
+
+    /**
+     * @return the number of questions the form stepped through
+     */
+    static int navigate(FormDef formDef) {
+        FormEntryController fec = new FormEntryController(new FormEntryModel(formDef));
+        int questions = 0;
+        int event;
+        while ((event = fec.stepToNextEvent()) != FormEntryController.EVENT_END_OF_FORM) {
+            if (event == FormEntryController.EVENT_QUESTION) {
+                questions++;
+            }
+        }
+        return questions;
+    }
+
+    /**
+     * Steps through the form, giving every question an answer of its type. Answers which violate
+     * a constraint are left out, as they would be if entered by hand.
+     *
+     * @return the number of answers accepted
+     */
+    static int answerAll(FormDef formDef) {
+        FormEntryController fec = new FormEntryController(new FormEntryModel(formDef));
+        FormEntryModel model = fec.getModel();
+        int answered = 0;
+        while (fec.stepToNextEvent() != FormEntryController.EVENT_END_OF_FORM) {
+            if (model.getEvent() == FormEntryController.EVENT_QUESTION) {
+                FormEntryPrompt prompt = model.getQuestionPrompt();
+                IAnswerData answer = answerFor(prompt);
+                if (answer != null && !prompt.isReadOnly()
+                        && fec.answerQuestion(answer, true) == FormEntryController.ANSWER_OK) {
+                    answered++;
+                }
+            }
+        }
+        return answered;
+    }
+
+    private static IAnswerData answerFor(FormEntryPrompt prompt) {
+        switch (prompt.getControlType()) {
+        case Constants.CONTROL_SELECT_ONE:
+        case Constants.CONTROL_SELECT_MULTI:
+            List<SelectChoice> choices = prompt.getSelectChoices();
+            if (choices == null || choices.isEmpty()) {
+                return null;
+            }
+            Selection first = choices.get(0).selection();
+            if (prompt.getControlType() == Constants.CONTROL_SELECT_ONE) {
+                return new SelectOneData(first);
+            }
+            List<Selection> selections = new ArrayList<Selection>();
+            selections.add(first);
+            return new SelectMultiData(selections);
+        case Constants.CONTROL_INPUT:
+            break;
+        default:
+            return null;
+        }
+
+        switch (prompt.getDataType()) {
+        case Constants.DATATYPE_INTEGER:
+            return new IntegerData(1);
+        case Constants.DATATYPE_DECIMAL:
+            return new DecimalData(1.5);
+        case Constants.DATATYPE_DATE:
+            return new DateData(new Date(0));
+        case Constants.DATATYPE_TIME:
+            return new TimeData(new Date(0));
+        case Constants.DATATYPE_DATE_TIME:
+            return new DateTimeData(new Date(0));
+        case Constants.DATATYPE_TEXT:
+            return new StringData("benchmark");
+        default:
+            return null;
+        }
+    }
+}
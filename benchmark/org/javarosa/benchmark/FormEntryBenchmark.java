@@ -0,0 +1,106 @@
+package org.javarosa.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.model.xform.XFormSerializingVisitor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fills in a form the way a client does: initializes a new instance, steps through the form,
+ * answers every question, and serializes the finished instance. Each step starts from a form
+ * deserialized outside the measurement, so the steps before it aren't timed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+public class FormEntryBenchmark {
+    @State(Scope.Benchmark)
+    public static class Form {
+        // forms with external instances can't be initialized yet
+        @Param({"eIMCI-by-D-Tree.xml"})
+        public String form;
+
+        byte[] bytes;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            BenchmarkForms.setUp(form);
+            bytes = BenchmarkForms.serialize(BenchmarkForms.parse(form));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            BenchmarkForms.tearDown(form);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Uninitialized {
+        FormDef formDef;
+
+        @Setup(Level.Invocation)
+        public void setUp(Form form) throws IOException, DeserializationException {
+            formDef = BenchmarkForms.deserialize(form.bytes);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Initialized {
+        FormDef formDef;
+
+        @Setup(Level.Invocation)
+        public void setUp(Form form) throws IOException, DeserializationException {
+            formDef = BenchmarkForms.initialize(form.bytes);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Answered {
+        FormDef formDef;
+
+        @Setup(Level.Trial)
+        public void setUp(Form form) throws IOException, DeserializationException {
+            formDef = BenchmarkForms.initialize(form.bytes);
+            BenchmarkForms.answerAll(formDef);
+        }
+    }
+
+    @Benchmark
+    public FormDef initialize(Uninitialized state) {
+        state.formDef.initialize(true, new InstanceInitializationFactory());
+        return state.formDef;
+    }
+
+    @Benchmark
+    public int navigate(Initialized state) {
+        return BenchmarkForms.navigate(state.formDef);
+    }
+
+    @Benchmark
+    public int answerAll(Initialized state) {
+        return BenchmarkForms.answerAll(state.formDef);
+    }
+
+    @Benchmark
+    public byte[] serializeInstance(Answered state) throws IOException {
+        return new XFormSerializingVisitor().serializeInstance(state.formDef.getInstance());
+    }
+}
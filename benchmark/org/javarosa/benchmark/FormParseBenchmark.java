@@ -0,0 +1,55 @@
+package org.javarosa.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.instance.ExternalDataInstanceCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses an XForm into a {@link FormDef}. The cache of external instances is cleared before each
+ * parse, so that external instances are parsed every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+public class FormParseBenchmark {
+    @Param({"eIMCI-by-D-Tree.xml", BenchmarkForms.LARGE_EXTERNAL_INSTANCE_FORM})
+    public String form;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkForms.setUp(form);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearCache() {
+        ExternalDataInstanceCache.instance().clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkForms.tearDown(form);
+    }
+
+    @Benchmark
+    public FormDef parse() throws IOException {
+        return BenchmarkForms.parse(form);
+    }
+}
@@ -0,0 +1,59 @@
+package org.javarosa.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Externalizes a parsed {@link FormDef}, and reads it back, as clients do when caching forms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(2)
+public class FormSerializationBenchmark {
+    @Param({"eIMCI-by-D-Tree.xml", BenchmarkForms.LARGE_EXTERNAL_INSTANCE_FORM})
+    public String form;
+
+    private FormDef formDef;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkForms.setUp(form);
+        formDef = BenchmarkForms.parse(form);
+        bytes = BenchmarkForms.serialize(formDef);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        BenchmarkForms.tearDown(form);
+    }
+
+    @Benchmark
+    public byte[] externalize() throws IOException {
+        return BenchmarkForms.serialize(formDef);
+    }
+
+    @Benchmark
+    public FormDef deserialize() throws IOException, DeserializationException {
+        return BenchmarkForms.deserialize(bytes);
+    }
+}
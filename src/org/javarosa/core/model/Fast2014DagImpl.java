@@ -18,7 +18,6 @@ package org.javarosa.core.model;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -152,9 +151,7 @@ public class Fast2014DagImpl extends LatestDagBase {
 
         ArrayList<QuickTriggerable> vertices = new ArrayList<QuickTriggerable>(
                 unorderedTriggerables);
-        triggerablesDAG.clear();
 
-        ArrayList<QuickTriggerable[]> partialOrdering = new ArrayList<QuickTriggerable[]>();
         HashSet<QuickTriggerable> deps = new HashSet<QuickTriggerable>();
         HashSet<QuickTriggerable> newDestinationSet = new HashSet<QuickTriggerable>();
         for (QuickTriggerable qt : vertices) {
@@ -164,69 +161,13 @@ public class Fast2014DagImpl extends LatestDagBase {
                     newDestinationSet, true);
 
             // remove any self-reference if we have one...
-            deps.remove(qt);
-            for (QuickTriggerable qu : deps) {
-                QuickTriggerable[] edge = { qt, qu };
-                partialOrdering.add(edge);
-            }
+            qt.cascadesToItself = deps.remove(qt);
 
             // save for aggressive 2014 behavior
             qt.t.setImmediateCascades(deps);
         }
 
-        ArrayList<QuickTriggerable> orderedRoots = new ArrayList<QuickTriggerable>();
-        HashSet<QuickTriggerable> roots = new HashSet<QuickTriggerable>(
-                vertices.size());
-        int waveCount = -1;
-        while (vertices.size() > 0) {
-            ++waveCount;
-            // determine root nodes
-            roots.clear();
-            roots.addAll(vertices);
-            for (int i = 0; i < partialOrdering.size(); i++) {
-                QuickTriggerable[] edge = partialOrdering.get(i);
-                roots.remove(edge[1]);
-            }
-
-            // if no root nodes while graph still has nodes, graph has cycles
-            if (roots.size() == 0) {
-                String hints = "";
-                for (QuickTriggerable qt : vertices) {
-                    for (TreeReference r : qt.t.getTargets()) {
-                        hints += "\n" + r.toString(true);
-                    }
-                }
-                String message = "Cycle detected in form's relevant and calculation logic!";
-                if (!hints.equals("")) {
-                    message += "\nThe following nodes are likely involved in the loop:"
-                            + hints;
-                }
-                throw new IllegalStateException(message);
-            }
-
-            // order the root nodes - mainly for clean textual diffs when
-            // printing
-            // When this code is rewritten to use HashSet, this will become
-            // important.
-            orderedRoots.clear();
-            orderedRoots.addAll(roots);
-            Collections.sort(orderedRoots,
-                    QuickTriggerable.quickTriggerablesRootOrdering);
-
-            // remove root nodes and edges originating from them
-            // add them to the triggerablesDAG.
-            for (int i = 0; i < orderedRoots.size(); i++) {
-                QuickTriggerable root = orderedRoots.get(i);
-                root.t.setWaveCount(waveCount);
-                triggerablesDAG.add(root);
-                vertices.remove(root);
-            }
-            for (int i = partialOrdering.size() - 1; i >= 0; i--) {
-                QuickTriggerable[] edge = partialOrdering.get(i);
-                if (roots.contains(edge[0]))
-                    partialOrdering.remove(i);
-            }
-        }
+        buildTriggerablesDAG(vertices);
 
         //
         // build the condition index for repeatable nodes
@@ -50,6 +50,8 @@ import org.javarosa.core.util.externalizable.ExtWrapMap;
 import org.javarosa.core.util.externalizable.ExtWrapNullable;
 import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.javarosa.core.util.externalizable.StringTableInputStream;
+import org.javarosa.core.util.externalizable.StringTableOutputStream;
 import org.javarosa.debug.EvaluationResult;
 import org.javarosa.debug.Event;
 import org.javarosa.debug.EventNotifier;
@@ -72,6 +74,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Definition of a form. This has some meta data about the form definition and a
@@ -92,9 +95,10 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
 
     public static final EvalBehavior recommendedMode = EvalBehavior.Safe_2014;
 
-    // used by FormDef() constructor
-    private static EvalBehavior defaultMode = recommendedMode;
-    private static EventNotifier defaultEventNotifier = new EventNotifierSilent();
+    // used by FormDef() constructor. Forms parsed with an XFormParserConfig
+    // take these settings from the config instead.
+    private static volatile EvalBehavior defaultMode = recommendedMode;
+    private static volatile EventNotifier defaultEventNotifier = new EventNotifierSilent();
 
     // call this to change the mode used for evaluations.
     public static final void setEvalBehavior(EvalBehavior mode) {
@@ -105,6 +109,14 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
         defaultEventNotifier = eventNotifier;
     }
 
+    public static EvalBehavior getDefaultEvalBehavior() {
+        return defaultMode;
+    }
+
+    public static EventNotifier getDefaultEventNotifier() {
+        return defaultEventNotifier;
+    }
+
     //take a (possibly relative) reference, and make it absolute based on its parent
     // moved from the parser to this class so it can be used more cleanly by ItemsetBinding
     public static IDataReference getAbsRef(IDataReference ref, TreeReference parentRef) {
@@ -169,6 +181,15 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
     }
 
     public FormDef(EvalBehavior mode, EventNotifier eventNotifier) {
+        this(mode, eventNotifier, 0, false, null);
+    }
+
+    /**
+     * Makes a form which uses none of the static defaults. See IDag for the cascade settings and
+     * the initialization pool.
+     */
+    public FormDef(EvalBehavior mode, EventNotifier eventNotifier, int maxPrecomputedCascadeSize,
+            boolean incrementalCascade, ForkJoinPool initializationPool) {
         setID(-1);
         setChildren(null);
         final EventNotifierAccessor ia = new EventNotifierAccessor() {
@@ -195,6 +216,9 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
             default:
                 throw new IllegalStateException("Unexpected mode: " + mode);
         }
+        dagImpl.setMaxPrecomputedCascadeSize(maxPrecomputedCascadeSize);
+        dagImpl.setIncrementalCascade(incrementalCascade);
+        dagImpl.setInitializationPool(initializationPool);
         // This is kind of a wreck...
         resetEvaluationContext();
         outputFragments = new ArrayList<IConditionExpr>();
@@ -1158,14 +1182,15 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
      * Requires that the instance has been set to a prototype of the instance
      * that should be used for deserialization.
      *
-     * @param dis - the stream to read from.
+     * @param in - the stream to read from.
      * @throws IOException
      * @throws InstantiationException
      * @throws IllegalAccessException
      */
     @Override
-    public void readExternal(DataInputStream dis, PrototypeFactory pf) throws IOException,
+    public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException,
             DeserializationException {
+        DataInputStream dis = new StringTableInputStream(in);
         setID(ExtUtil.readInt(dis));
         setName(ExtUtil.nullIfEmpty(ExtUtil.readString(dis)));
         setTitle((String) ExtUtil.read(dis, new ExtWrapNullable(String.class), pf));
@@ -1234,11 +1259,15 @@ public class FormDef implements IFormElement, Localizable, Persistable, IMetaDat
     /**
      * Writes the form definition object to the supplied stream.
      *
-     * @param dos - the stream to write to.
+     * The names, references and texts of a form repeat a lot, so the strings are written through a
+     * string table.
+     *
+     * @param out - the stream to write to.
      * @throws IOException
      */
     @Override
-    public void writeExternal(DataOutputStream dos) throws IOException {
+    public void writeExternal(DataOutputStream out) throws IOException {
+        DataOutputStream dos = new StringTableOutputStream(out);
         ExtUtil.writeNumeric(dos, getID());
         ExtUtil.writeString(dos, ExtUtil.emptyIfNull(getName()));
         ExtUtil.write(dos, new ExtWrapNullable(getTitle()));
@@ -44,6 +44,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Abstract interface of the DAG management and triggerable processing logic.
@@ -86,10 +87,77 @@ public abstract class IDag {
     protected final ArrayList<QuickTriggerable> unorderedTriggerables
       = new ArrayList<QuickTriggerable>();
 
+   // Largest transitive cascade (in triggerables) that finalizeTriggerables()
+   // precomputes for a trigger reference. Larger cascades are computed on
+   // the fly when the trigger changes. 0 disables precomputation.
+    private int maxPrecomputedCascadeSize = 0;
+
+   // When set, a triggerable only fires its cascade if applying it changed
+   // the value or state of one of its targets.
+    private boolean incrementalCascade = false;
+
+   // When set, initializeTriggerables() evaluates the triggerables of each
+   // wave concurrently on this pool.
+    private ForkJoinPool initializationPool = null;
+
     protected IDag(EventNotifierAccessor accessor) {
         this.accessor = accessor;
     }
 
+    /**
+     * Enables precomputing, in finalizeTriggerables(), the ordered cascade of
+     * triggerables fired by each trigger reference, so that a value change is
+     * a single lookup. Only cascades of up to maxSize triggerables are kept,
+     * which bounds the memory used. Implementations that compute their
+     * cascades dynamically ignore this setting.
+     *
+     * @param maxSize largest cascade to precompute; 0 disables precomputation
+     */
+    public final void setMaxPrecomputedCascadeSize(int maxSize) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative: " + maxSize);
+        }
+        maxPrecomputedCascadeSize = maxSize;
+    }
+
+    public final int getMaxPrecomputedCascadeSize() {
+        return maxPrecomputedCascadeSize;
+    }
+
+    /**
+     * Enables incremental cascades: the triggerables depending on a
+     * triggerable's targets are only evaluated if that triggerable changed
+     * the value, relevance, enabled or required state of a target, rather
+     * than whenever it is evaluated. Implementations that compute their
+     * cascades dynamically ignore this setting.
+     */
+    public final void setIncrementalCascade(boolean incrementalCascade) {
+        this.incrementalCascade = incrementalCascade;
+    }
+
+    public final boolean isIncrementalCascade() {
+        return incrementalCascade;
+    }
+
+    /**
+     * Makes initializeTriggerables(), which runs when a form or a saved
+     * instance is opened, evaluate the triggerables of each wave of the DAG
+     * concurrently on the given pool. Triggerables of a wave do not depend on
+     * one another. Their results are applied to the instance on the calling
+     * thread once the whole wave is evaluated, so the instance is never
+     * modified concurrently. Implementations that compute their cascades
+     * dynamically ignore this setting.
+     *
+     * @param pool the pool to evaluate on; null evaluates on the calling thread
+     */
+    public final void setInitializationPool(ForkJoinPool pool) {
+        this.initializationPool = pool;
+    }
+
+    public final ForkJoinPool getInitializationPool() {
+        return initializationPool;
+    }
+
     /**
      * The EvalBehavior that the implementation provides.
      *
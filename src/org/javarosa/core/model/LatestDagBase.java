@@ -25,11 +25,19 @@ import org.javarosa.debug.EvaluationResult;
 import org.javarosa.debug.Event;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * @author Meletis Margaritis
@@ -40,52 +48,344 @@ public abstract class LatestDagBase extends IDag {
       super(accessor);
    }
 
+   /**
+    * Orders the given triggerables into triggerablesDAG using Kahn's
+    * algorithm over their immediate cascades, which must have been set by
+    * the caller. Triggerables are laid out in waves: each wave holds the
+    * triggerables whose dependencies were all placed in earlier waves,
+    * sorted by quickTriggerablesRootOrdering so that the order is fixed.
+    * Each triggerable's dagIndex is set to its position in the result.
+    *
+    * @param vertices
+    *            all of the triggerables of the form
+    * @throws IllegalStateException
+    *             - If the triggerables contain a cycle. The message names the
+    *             targets along one such cycle.
+    */
+   protected final void buildTriggerablesDAG(List<QuickTriggerable> vertices)
+         throws IllegalStateException {
+      final int n = vertices.size();
+
+      Map<QuickTriggerable, Integer> vertexIndex = new HashMap<QuickTriggerable, Integer>(n * 2);
+      for (int i = 0; i < n; i++) {
+         vertexIndex.put(vertices.get(i), i);
+      }
+
+      // adjacency arrays and in-degree counters of the dependency graph
+      int[][] successors = new int[n][];
+      int[] inDegree = new int[n];
+      for (int i = 0; i < n; i++) {
+         Set<QuickTriggerable> cascades = vertices.get(i).t.getImmediateCascades();
+         int[] edges = new int[cascades == null ? 0 : cascades.size()];
+         int count = 0;
+         if (cascades != null) {
+            for (QuickTriggerable qu : cascades) {
+               Integer j = vertexIndex.get(qu);
+               if (j != null && j != i) {
+                  edges[count++] = j;
+                  inDegree[j]++;
+               }
+            }
+         }
+         if (count < edges.length) {
+            int[] trimmed = new int[count];
+            System.arraycopy(edges, 0, trimmed, 0, count);
+            edges = trimmed;
+         }
+         successors[i] = edges;
+      }
+
+      triggerablesDAG.clear();
+      triggerablesDAG.ensureCapacity(n);
+
+      ArrayList<QuickTriggerable> wave = new ArrayList<QuickTriggerable>();
+      for (int i = 0; i < n; i++) {
+         if (inDegree[i] == 0) {
+            wave.add(vertices.get(i));
+         }
+      }
+
+      int waveCount = 0;
+      while (!wave.isEmpty()) {
+         // order the root nodes - so the order is fixed
+         Collections.sort(wave, QuickTriggerable.quickTriggerablesRootOrdering);
+
+         ArrayList<QuickTriggerable> nextWave = new ArrayList<QuickTriggerable>();
+         for (QuickTriggerable root : wave) {
+            root.t.setWaveCount(waveCount);
+            root.dagIndex = triggerablesDAG.size();
+            triggerablesDAG.add(root);
+            for (int j : successors[vertexIndex.get(root)]) {
+               if (--inDegree[j] == 0) {
+                  nextWave.add(vertices.get(j));
+               }
+            }
+         }
+         wave = nextWave;
+         ++waveCount;
+      }
+
+      // if vertices remain that never became roots, the graph has cycles
+      if (triggerablesDAG.size() < n) {
+         throw new IllegalStateException(describeCycle(vertices, successors, inDegree));
+      }
+   }
+
+   /**
+    * Finds one cycle amongst the vertices left over by buildTriggerablesDAG
+    * and describes it as the chain of targets that depend on each other.
+    *
+    * Every left over vertex still has a left over predecessor, so walking
+    * predecessors from any of them must eventually revisit a vertex.
+    */
+   private static String describeCycle(List<QuickTriggerable> vertices,
+         int[][] successors, int[] inDegree) {
+      final int n = vertices.size();
+      int[] predecessor = new int[n];
+      int start = -1;
+      for (int i = 0; i < n; i++) {
+         if (inDegree[i] > 0) {
+            start = i;
+            for (int j : successors[i]) {
+               if (inDegree[j] > 0) {
+                  predecessor[j] = i;
+               }
+            }
+         }
+      }
+
+      boolean[] visited = new boolean[n];
+      int current = start;
+      while (!visited[current]) {
+         visited[current] = true;
+         current = predecessor[current];
+      }
+
+      // walk the cycle once more, collecting it in dependency order
+      List<QuickTriggerable> cycle = new ArrayList<QuickTriggerable>();
+      int cycleStart = current;
+      do {
+         cycle.add(vertices.get(current));
+         current = predecessor[current];
+      } while (current != cycleStart);
+      Collections.reverse(cycle);
+      cycle.add(cycle.get(0));
+
+      StringBuilder message = new StringBuilder(
+            "Cycle detected in form's relevant and calculation logic!\n"
+                  + "The following nodes form a loop:");
+      for (QuickTriggerable qt : cycle) {
+         message.append("\n");
+         List<TreeReference> targets = qt.t.getTargets();
+         for (int j = 0; j < targets.size(); j++) {
+            if (j > 0) {
+               message.append(", ");
+            }
+            message.append(targets.get(j).toString(true));
+         }
+      }
+      return message.toString();
+   }
+
+   /**
+    * Marks the given triggerables in a BitSet indexed by their position in
+    * triggerablesDAG.
+    */
+   protected final BitSet toDagIndexes(Collection<QuickTriggerable> quickTriggerables) {
+      BitSet indexes = new BitSet(triggerablesDAG.size());
+      for (QuickTriggerable qt : quickTriggerables) {
+         indexes.set(qt.dagIndex);
+      }
+      return indexes;
+   }
+
    protected Set<QuickTriggerable> doEvaluateTriggerables(FormInstance mainInstance, EvaluationContext evalContext, Set<QuickTriggerable> tv, TreeReference anchorRef, Set<QuickTriggerable> alreadyEvaluated) {
-      // tv should now contain all of the triggerable components which are
-      // going
-      // to need to be addressed
-      // by this update.
-      // 'triggerables' is topologically-ordered by dependencies, so evaluate
-      // the triggerables in 'tv'
-      // in the order they appear in 'triggerables'
+      return doEvaluateTriggerables(mainInstance, evalContext, toDagIndexes(tv), anchorRef, alreadyEvaluated);
+   }
+
+   /**
+    * Evaluates the pending triggerables in topological order.
+    *
+    * @param pending
+    *            the dagIndex of every triggerable to be addressed by this
+    *            update. Bits of triggerables in alreadyEvaluated are cleared.
+    */
+   protected Set<QuickTriggerable> doEvaluateTriggerables(FormInstance mainInstance, EvaluationContext evalContext, BitSet pending, TreeReference anchorRef, Set<QuickTriggerable> alreadyEvaluated) {
+      return doEvaluateTriggerables(mainInstance, evalContext, pending, anchorRef, alreadyEvaluated, false);
+   }
+
+   /**
+    * Evaluates the pending triggerables in topological order.
+    *
+    * @param pending
+    *            the dagIndex of every triggerable to be addressed by this
+    *            update. Bits of triggerables in alreadyEvaluated are cleared.
+    * @param cascadeChanges
+    *            if true, pending only holds the directly triggered
+    *            triggerables, and the immediate cascades of a triggerable are
+    *            added to it when applying that triggerable changed a target.
+    */
+   protected Set<QuickTriggerable> doEvaluateTriggerables(FormInstance mainInstance, EvaluationContext evalContext, BitSet pending, TreeReference anchorRef, Set<QuickTriggerable> alreadyEvaluated, boolean cascadeChanges) {
+      // pending should now contain all of the triggerable components which
+      // are going to need to be addressed by this update.
+      // Its bits follow the topological order of 'triggerablesDAG', so
+      // visiting the set bits in ascending order evaluates the triggerables
+      // in dependency order, without walking the rest of the DAG.
+      BitSet evaluated = toDagIndexes(alreadyEvaluated);
+      pending.andNot(evaluated);
+
       Set<QuickTriggerable> fired = new HashSet<QuickTriggerable>();
 
       Map<TreeReference, List<TreeReference>> firedAnchors = new LinkedHashMap<TreeReference, List<TreeReference>>();
 
-      for (QuickTriggerable qt : triggerablesDAG) {
-         if (tv.contains(qt) && !alreadyEvaluated.contains(qt)) {
+      for (int i = pending.nextSetBit(0); i >= 0; i = pending.nextSetBit(i + 1)) {
+         QuickTriggerable qt = triggerablesDAG.get(i);
 
-            List<TreeReference> affectedTriggers = qt.t.findAffectedTriggers(firedAnchors);
-            if (affectedTriggers.isEmpty()) {
-               affectedTriggers.add(anchorRef);
-            }
+         List<EvaluationResult> evaluationResults = evaluateTriggerable(
+                 mainInstance, evalContext, qt, affectedTriggers(qt, firedAnchors, anchorRef));
+
+         recordEvaluation(qt, evaluationResults, firedAnchors, pending, evaluated, cascadeChanges);
+         fired.add(qt);
+      }
 
-            List<EvaluationResult> evaluationResults = evaluateTriggerable(
-                    mainInstance, evalContext, qt, affectedTriggers);
+      return fired;
+   }
+
+   /**
+    * Evaluates the pending triggerables like
+    * {@link #doEvaluateTriggerables(FormInstance, EvaluationContext, BitSet, TreeReference, Set, boolean)},
+    * one wave of the DAG at a time. The triggerables of a wave do not depend
+    * on one another, so their expressions are evaluated concurrently on the
+    * pool. The results are then applied to the instance on the calling
+    * thread, in topological order, before the next wave is evaluated.
+    */
+   protected Set<QuickTriggerable> doEvaluateTriggerablesInWaves(FormInstance mainInstance, EvaluationContext evalContext, BitSet pending, TreeReference anchorRef, Set<QuickTriggerable> alreadyEvaluated, boolean cascadeChanges, ForkJoinPool pool) {
+      BitSet evaluated = toDagIndexes(alreadyEvaluated);
+      pending.andNot(evaluated);
 
-            if (evaluationResults.size() > 0) {
-               fired.add(qt);
+      Set<QuickTriggerable> fired = new HashSet<QuickTriggerable>();
 
-               for (EvaluationResult evaluationResult : evaluationResults) {
-                  TreeReference affectedRef = evaluationResult.getAffectedRef();
+      Map<TreeReference, List<TreeReference>> firedAnchors = new LinkedHashMap<TreeReference, List<TreeReference>>();
 
-                  TreeReference key = affectedRef.genericize();
-                  List<TreeReference> values = firedAnchors.get(key);
-                  if (values == null) {
-                     values = new ArrayList<TreeReference>();
-                     firedAnchors.put(key, values);
-                  }
-                  values.add(affectedRef);
-               }
+      List<QuickTriggerable> wave = new ArrayList<QuickTriggerable>();
+      List<List<TreeReference>> waveTriggers = new ArrayList<List<TreeReference>>();
+      List<PrepareTask> tasks = new ArrayList<PrepareTask>();
+
+      int i = pending.nextSetBit(0);
+      while (i >= 0) {
+         // triggerablesDAG is laid out one wave after the other
+         int waveCount = triggerablesDAG.get(i).t.getWaveCount();
+         int last = i;
+         wave.clear();
+         waveTriggers.clear();
+         tasks.clear();
+         for (; i >= 0 && triggerablesDAG.get(i).t.getWaveCount() == waveCount; i = pending.nextSetBit(i + 1)) {
+            QuickTriggerable qt = triggerablesDAG.get(i);
+            List<TreeReference> affectedTriggers = affectedTriggers(qt, firedAnchors, anchorRef);
+            wave.add(qt);
+            waveTriggers.add(affectedTriggers);
+            // a triggerable reading its own targets must see each of its
+            // results applied before evaluating the next one
+            if (!qt.cascadesToItself) {
+               tasks.add(new PrepareTask(mainInstance, evalContext, qt, affectedTriggers));
             }
+            last = i;
+         }
 
+         List<PreparedEvaluation> prepared = prepareAll(tasks, pool);
+         int next = 0;
+         for (int j = 0; j < wave.size(); j++) {
+            QuickTriggerable qt = wave.get(j);
+            List<EvaluationResult> evaluationResults = qt.cascadesToItself
+                  ? evaluateTriggerable(mainInstance, evalContext, qt, waveTriggers.get(j))
+                  : applyTriggerable(mainInstance, qt, prepared.get(next++));
+
+            recordEvaluation(qt, evaluationResults, firedAnchors, pending, evaluated, cascadeChanges);
             fired.add(qt);
          }
+
+         // incremental cascades may have added triggerables to the waves
+         // that had nothing pending before
+         i = pending.nextSetBit(last + 1);
       }
 
       return fired;
    }
 
+   private static List<PreparedEvaluation> prepareAll(List<PrepareTask> tasks, ForkJoinPool pool) {
+      List<PreparedEvaluation> prepared = new ArrayList<PreparedEvaluation>(tasks.size());
+      if (tasks.size() == 1) {
+         prepared.add(tasks.get(0).call());
+         return prepared;
+      }
+      try {
+         for (Future<PreparedEvaluation> future : pool.invokeAll(tasks)) {
+            prepared.add(future.get());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new RuntimeException("Interrupted while evaluating triggerables", e);
+      } catch (ExecutionException e) {
+         Throwable cause = e.getCause();
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         } else if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         throw new RuntimeException(cause);
+      }
+      return prepared;
+   }
+
+   private static List<TreeReference> affectedTriggers(QuickTriggerable qt,
+         Map<TreeReference, List<TreeReference>> firedAnchors, TreeReference anchorRef) {
+      List<TreeReference> affectedTriggers = qt.t.findAffectedTriggers(firedAnchors);
+      if (affectedTriggers.isEmpty()) {
+         affectedTriggers.add(anchorRef);
+      }
+      return affectedTriggers;
+   }
+
+   /**
+    * Records the nodes updated by the triggerable as anchors for the
+    * triggerables evaluated after it. With cascadeChanges, also adds the
+    * immediate cascades of the triggerable to pending if it changed a node.
+    */
+   private static void recordEvaluation(QuickTriggerable qt, List<EvaluationResult> evaluationResults,
+         Map<TreeReference, List<TreeReference>> firedAnchors, BitSet pending, BitSet evaluated,
+         boolean cascadeChanges) {
+      for (EvaluationResult evaluationResult : evaluationResults) {
+         TreeReference affectedRef = evaluationResult.getAffectedRef();
+
+         TreeReference key = affectedRef.genericize();
+         List<TreeReference> values = firedAnchors.get(key);
+         if (values == null) {
+            values = new ArrayList<TreeReference>();
+            firedAnchors.put(key, values);
+         }
+         values.add(affectedRef);
+      }
+
+      // Immediate cascades always come later in the topological
+      // order, so the evaluation loop still reaches the bits set here.
+      if (cascadeChanges && hasChanged(evaluationResults)) {
+         for (QuickTriggerable qu : qt.t.getImmediateCascades()) {
+            if (!evaluated.get(qu.dagIndex)) {
+               pending.set(qu.dagIndex);
+            }
+         }
+      }
+   }
+
+   private static boolean hasChanged(List<EvaluationResult> evaluationResults) {
+      for (EvaluationResult evaluationResult : evaluationResults) {
+         if (evaluationResult.isChanged()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
    /**
     * Step 3 in DAG cascade. evaluate the individual triggerable expressions
     * against the anchor (the value that changed which triggered recomputation)
@@ -142,4 +442,104 @@ public abstract class LatestDagBase extends IDag {
 
       return evaluationResults;
    }
+
+   /**
+    * Evaluates the triggerable like evaluateTriggerable() without modifying
+    * the instance, so it can run concurrently with other triggerables of its
+    * wave. The results are applied by applyTriggerable().
+    */
+   private PreparedEvaluation prepareTriggerable(FormInstance mainInstance,
+                                                 EvaluationContext evalContext, QuickTriggerable qt,
+                                                 List<TreeReference> anchorRefs) {
+
+      PreparedEvaluation prepared = new PreparedEvaluation();
+
+      Set<TreeReference> updatedContextRef = new HashSet<TreeReference>();
+
+      for (TreeReference anchorRef : anchorRefs) {
+         TreeReference contextRef = qt.t.contextualizeContextRef(anchorRef);
+         if (updatedContextRef.contains(contextRef)) {
+            continue;
+         }
+
+         try {
+            List<EvaluationResult> pendingResults = new ArrayList<EvaluationResult>(0);
+
+            List<TreeReference> qualifiedList = evalContext
+                    .expandReference(contextRef);
+
+            for (TreeReference qualified : qualifiedList) {
+               EvaluationContext ec = new EvaluationContext(evalContext,
+                       qualified);
+               pendingResults.addAll(qt.t.evaluate(mainInstance, ec,
+                       qualified));
+            }
+
+            prepared.contextRefs.add(contextRef);
+            prepared.results.add(pendingResults);
+
+            updatedContextRef.add(contextRef);
+         } catch (Exception e) {
+            throw new RuntimeException("Error evaluating field '"
+                    + contextRef.getNameLast() + "': " + e.getMessage(), e);
+         }
+      }
+
+      return prepared;
+   }
+
+   private List<EvaluationResult> applyTriggerable(FormInstance mainInstance,
+                                                   QuickTriggerable qt, PreparedEvaluation prepared) {
+
+      List<EvaluationResult> evaluationResults = new ArrayList<EvaluationResult>(0);
+
+      for (int i = 0; i < prepared.contextRefs.size(); i++) {
+         TreeReference contextRef = prepared.contextRefs.get(i);
+         try {
+            evaluationResults.addAll(qt.t.applyResults(mainInstance,
+                    prepared.results.get(i)));
+
+            boolean fired = evaluationResults.size() > 0;
+            if (fired) {
+               accessor.getEventNotifier().publishEvent(
+                       new Event(qt.t.getClass().getSimpleName(),
+                               evaluationResults));
+            }
+         } catch (Exception e) {
+            throw new RuntimeException("Error evaluating field '"
+                    + contextRef.getNameLast() + "': " + e.getMessage(), e);
+         }
+      }
+
+      return evaluationResults;
+   }
+
+   /**
+    * The results of a triggerable evaluated for each of its context
+    * references, waiting to be applied.
+    */
+   private static final class PreparedEvaluation {
+      final List<TreeReference> contextRefs = new ArrayList<TreeReference>(1);
+      final List<List<EvaluationResult>> results = new ArrayList<List<EvaluationResult>>(1);
+   }
+
+   private final class PrepareTask implements Callable<PreparedEvaluation> {
+      private final FormInstance mainInstance;
+      private final EvaluationContext evalContext;
+      private final QuickTriggerable qt;
+      private final List<TreeReference> anchorRefs;
+
+      PrepareTask(FormInstance mainInstance, EvaluationContext evalContext,
+                  QuickTriggerable qt, List<TreeReference> anchorRefs) {
+         this.mainInstance = mainInstance;
+         this.evalContext = evalContext;
+         this.qt = qt;
+         this.anchorRefs = anchorRefs;
+      }
+
+      @Override
+      public PreparedEvaluation call() {
+         return prepareTriggerable(mainInstance, evalContext, qt, anchorRefs);
+      }
+   }
 }
@@ -19,6 +19,19 @@ public final class QuickTriggerable {
     public final Triggerable t;
     private Integer hashCode = null;
 
+    // NOT VALID UNTIL finalizeTriggerables() is called!!
+    //
+    // Position of this triggerable in the topologically ordered DAG, used
+    // to index the BitSets of the evaluation cascade.
+    int dagIndex = -1;
+
+    // NOT VALID UNTIL finalizeTriggerables() is called!!
+    //
+    // True if the targets of this triggerable are also among its triggers,
+    // e.g. a calculation in a repeat reading the previous repeat instance.
+    // Its evaluations must then be applied one at a time.
+    boolean cascadesToItself = false;
+
     public static Comparator<QuickTriggerable> quickTriggerablesRootOrdering = new Comparator<QuickTriggerable>() {
 
         @Override
@@ -25,11 +25,14 @@ import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The safe (Latest_safest) eval logic for 2014
@@ -42,6 +45,14 @@ public class Safe2014DagImpl extends LatestDagBase {
 
    private final EvalBehavior mode = EvalBehavior.Safe_2014;
 
+   // NOT VALID UNTIL finalizeTriggerables() is called!!
+   //
+   // Maps a generic trigger reference to the dagIndex of every triggerable
+   // in its transitive cascade, in topological order. Only holds the
+   // cascades no larger than getMaxPrecomputedCascadeSize().
+   private final HashMap<TreeReference, int[]> precomputedCascades
+         = new HashMap<TreeReference, int[]>();
+
    public Safe2014DagImpl(EventNotifierAccessor accessor) {
       super(accessor);
    }
@@ -168,8 +179,6 @@ public class Safe2014DagImpl extends LatestDagBase {
 
       ArrayList<QuickTriggerable> vertices = new ArrayList<QuickTriggerable>(
             unorderedTriggerables);
-      triggerablesDAG.clear();
-      ArrayList<QuickTriggerable[]> partialOrdering = new ArrayList<QuickTriggerable[]>();
       HashSet<QuickTriggerable> newDestinationSet = new HashSet<QuickTriggerable>();
       for (QuickTriggerable qt : vertices) {
          HashSet<QuickTriggerable> deps = new HashSet<QuickTriggerable>();
@@ -178,66 +187,13 @@ public class Safe2014DagImpl extends LatestDagBase {
                newDestinationSet);
 
          // remove any self-reference if we have one...
-         deps.remove(qt);
-         for (QuickTriggerable qu : deps) {
-            QuickTriggerable[] edge = { qt, qu };
-            partialOrdering.add(edge);
-         }
+         qt.cascadesToItself = deps.remove(qt);
 
          // save for aggressive 2014 behavior
          qt.t.setImmediateCascades(deps);
       }
 
-      ArrayList<QuickTriggerable> orderedRoots = new ArrayList<QuickTriggerable>();
-      HashSet<QuickTriggerable> roots = new HashSet<QuickTriggerable>(
-            vertices.size());
-      int waveCount = -1;
-      while (vertices.size() > 0) {
-         ++waveCount;
-         // determine root nodes
-         roots.clear();
-         roots.addAll(vertices);
-         for (int i = 0; i < partialOrdering.size(); i++) {
-            QuickTriggerable[] edge = partialOrdering.get(i);
-            roots.remove(edge[1]);
-         }
-
-         // if no root nodes while graph still has nodes, graph has cycles
-         if (roots.size() == 0) {
-            String hints = "";
-            for (QuickTriggerable qt : vertices) {
-               for (TreeReference r : qt.t.getTargets()) {
-                  hints += "\n" + r.toString(true);
-               }
-            }
-            String message = "Cycle detected in form's relevant and calculation logic!";
-            if (!hints.equals("")) {
-               message += "\nThe following nodes are likely involved in the loop:"
-                     + hints;
-            }
-            throw new IllegalStateException(message);
-         }
-
-         // order the root nodes - so the order is fixed
-         orderedRoots.clear();
-         orderedRoots.addAll(roots);
-         Collections.sort(orderedRoots,
-               QuickTriggerable.quickTriggerablesRootOrdering);
-
-         // remove root nodes and edges originating from them
-         // add them to the triggerablesDAG.
-         for (int i = 0; i < orderedRoots.size(); i++) {
-            QuickTriggerable root = orderedRoots.get(i);
-            root.t.setWaveCount(waveCount);
-            triggerablesDAG.add(root);
-            vertices.remove(root);
-         }
-         for (int i = partialOrdering.size() - 1; i >= 0; i--) {
-            QuickTriggerable[] edge = partialOrdering.get(i);
-            if (roots.contains(edge[0]))
-               partialOrdering.remove(i);
-         }
-      }
+      buildTriggerablesDAG(vertices);
 
       //
       // build the condition index for repeatable nodes
@@ -255,9 +211,35 @@ public class Safe2014DagImpl extends LatestDagBase {
          }
       }
 
+      precomputeCascades();
+
       // printTriggerables();
    }
 
+   /**
+    * Fills precomputedCascades for every trigger reference whose cascade
+    * does not exceed the configured size. Incremental cascades are
+    * discovered while evaluating, so nothing is precomputed for them.
+    */
+   private void precomputeCascades() {
+      precomputedCascades.clear();
+      int maxSize = getMaxPrecomputedCascadeSize();
+      if (maxSize == 0 || isIncrementalCascade()) {
+         return;
+      }
+      for (Map.Entry<TreeReference, ArrayList<QuickTriggerable>> entry : triggerIndex.entrySet()) {
+         BitSet cascade = toDagIndexes(entry.getValue());
+         if (addCascades(cascade, maxSize)) {
+            int[] ordered = new int[cascade.cardinality()];
+            int count = 0;
+            for (int i = cascade.nextSetBit(0); i >= 0; i = cascade.nextSetBit(i + 1)) {
+               ordered[count++] = i;
+            }
+            precomputedCascades.put(entry.getKey(), ordered);
+         }
+      }
+   }
+
    /**
     * Get all of the elements which will need to be evaluated (in order) when
     * the triggerable is fired.
@@ -332,38 +314,55 @@ public class Safe2014DagImpl extends LatestDagBase {
     * evaluations.
     * 
     * @param tv
-    *            A set of all of the trigerrables directly triggered by the
-    *            value changed
+    *            The dagIndex of all of the trigerrables directly triggered by
+    *            the value changed
     * @param anchorRef
     */
    private Set<QuickTriggerable> evaluateTriggerables(
          FormInstance mainInstance, EvaluationContext evalContext,
-         Set<QuickTriggerable> tv, TreeReference anchorRef,
+         BitSet tv, TreeReference anchorRef,
          Set<QuickTriggerable> alreadyEvaluated) {
+      if (isIncrementalCascade()) {
+         // cascades are added while evaluating, for the triggerables that
+         // changed something
+         return doEvaluateTriggerables(mainInstance, evalContext, tv, anchorRef, alreadyEvaluated, true);
+      }
+
       // add all cascaded triggerables to queue
 
-      // Iterate through all of the currently known triggerables to be
-      // triggered
-      Set<QuickTriggerable> refSet = new HashSet<QuickTriggerable>(tv);
-      for (; !refSet.isEmpty();) {
-         Set<QuickTriggerable> newSet = new HashSet<QuickTriggerable>();
-         for (QuickTriggerable qt : refSet) {
-            // leverage the saved DAG edges.
-            // This may over-fill the set of triggerables.
-            // but should be faster than recomputing the edges.
-            // with value-change optimizations, this should be
-            // much faster.
-            for (QuickTriggerable qu : qt.t.getImmediateCascades()) {
-               if (!tv.contains(qu)) {
-                  tv.add(qu);
-                  newSet.add(qu);
+      addCascades(tv, Integer.MAX_VALUE);
+
+      return doEvaluateTriggerables(mainInstance, evalContext, tv, anchorRef, alreadyEvaluated);
+   }
+
+   /**
+    * Adds the transitive cascades of the triggerables in tv to tv.
+    *
+    * @param limit
+    *            the largest cascade to compute
+    * @return false if the cascade grew past limit, leaving tv incomplete
+    */
+   private boolean addCascades(BitSet tv, int limit) {
+      int size = tv.cardinality();
+      if (size > limit) {
+         return false;
+      }
+      // leverage the saved DAG edges.
+      // This may over-fill the set of triggerables.
+      // but should be faster than recomputing the edges.
+      // Cascades always point further down the topological order, so a
+      // single forward pass over the set bits picks up the whole closure.
+      for (int i = tv.nextSetBit(0); i >= 0; i = tv.nextSetBit(i + 1)) {
+         for (QuickTriggerable qu : triggerablesDAG.get(i).t.getImmediateCascades()) {
+            if (!tv.get(qu.dagIndex)) {
+               tv.set(qu.dagIndex);
+               if (++size > limit) {
+                  return false;
                }
             }
          }
-         refSet = newSet;
       }
-
-      return doEvaluateTriggerables(mainInstance, evalContext, tv, anchorRef, alreadyEvaluated);
+      return true;
    }
 
    /**
@@ -437,20 +436,30 @@ public class Safe2014DagImpl extends LatestDagBase {
          Set<QuickTriggerable> alreadyEvaluated) {
       TreeReference genericRoot = rootRef.genericize();
 
-      Set<QuickTriggerable> applicable = new HashSet<QuickTriggerable>();
+      BitSet applicable = new BitSet(triggerablesDAG.size());
       for (int i = 0; i < triggerablesDAG.size(); i++) {
          QuickTriggerable qt = triggerablesDAG.get(i);
          for (int j = 0; j < qt.t.getTargets().size(); j++) {
             TreeReference target = qt.t.getTargets().get(j);
             if (genericRoot.isParentOf(target, false)) {
-               applicable.add(qt);
+               applicable.set(i);
                break;
             }
          }
       }
 
-      return evaluateTriggerables(mainInstance, evalContext, applicable,
-            rootRef, alreadyEvaluated);
+      ForkJoinPool pool = getInitializationPool();
+      if (pool == null) {
+         return evaluateTriggerables(mainInstance, evalContext, applicable,
+               rootRef, alreadyEvaluated);
+      }
+
+      // evaluate each wave of the DAG concurrently
+      if (!isIncrementalCascade()) {
+         addCascades(applicable, Integer.MAX_VALUE);
+      }
+      return doEvaluateTriggerablesInWaves(mainInstance, evalContext,
+            applicable, rootRef, alreadyEvaluated, isIncrementalCascade(), pool);
    }
 
    /**
@@ -480,18 +489,26 @@ public class Safe2014DagImpl extends LatestDagBase {
       // reference changing
       TreeReference genericRef = ref.genericize();
 
+      // use the precomputed cascade of the generic reference, if any
+      int[] cascade = isIncrementalCascade() ? null : precomputedCascades.get(genericRef);
+      if (cascade != null) {
+         BitSet tv = new BitSet(triggerablesDAG.size());
+         for (int i : cascade) {
+            tv.set(i);
+         }
+         return doEvaluateTriggerables(mainInstance, evalContext, tv, ref,
+               alreadyEvaluated);
+      }
+
       // get triggerables which are activated by the generic reference
       ArrayList<QuickTriggerable> triggered = triggerIndex.get(genericRef);
       if (triggered == null) {
          return alreadyEvaluated;
       }
 
-      Set<QuickTriggerable> triggeredCopy = new HashSet<QuickTriggerable>(
-            triggered);
-
       // Evaluate all of the triggerables in our new set
-      return evaluateTriggerables(mainInstance, evalContext, triggeredCopy,
-            ref, alreadyEvaluated);
+      return evaluateTriggerables(mainInstance, evalContext,
+            toDagIndexes(triggered), ref, alreadyEvaluated);
    }
 
    @Override
@@ -65,8 +65,17 @@ public class Condition extends Triggerable {
     }
 
     public void apply (TreeReference ref, Object rawResult, FormInstance mainInstance) {
+        applyAndReportChange(ref, rawResult, mainInstance);
+    }
+
+    protected boolean applyAndReportChange (TreeReference ref, Object rawResult, FormInstance mainInstance) {
         boolean result = ((Boolean)rawResult).booleanValue();
-        performAction(mainInstance.resolveReference(ref), result ? trueAction : falseAction);
+        TreeElement node = mainInstance.resolveReference(ref);
+        boolean relevant = node.isRelevant();
+        boolean enabled = node.isEnabled();
+        boolean required = node.isRequired();
+        performAction(node, result ? trueAction : falseAction);
+        return relevant != node.isRelevant() || enabled != node.isEnabled() || required != node.isRequired();
     }
 
     public boolean canCascade () {
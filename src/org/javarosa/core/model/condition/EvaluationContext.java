@@ -256,7 +256,26 @@ public class EvaluationContext {
 
         final AbstractTreeElement node = sourceInstance.resolveReference(workingRef);
 
-        if (node.getNumChildren() > 0) {
+        // Let the node resolve the predicates it can through its indexes
+        boolean firstTime = true;
+        List<TreeReference> fetched = null;
+        if (predicates != null && mult == TreeReference.INDEX_UNBOUND && !includeTemplates
+                && canBatchChildFetch(sourceInstance)) {
+            final int before = predicates.size();
+            // node is raw for the child walk below; the wildcard view keeps this call checked
+            final AbstractTreeElement<?> parent = node;
+            fetched = parent.tryBatchChildFetch(name, mult, predicates, rescope(workingRef, -1));
+            if (fetched != null) {
+                treeReferences.addAll(fetched);
+                firstTime = false;
+                if (predicateEvaluationProgress != null) {
+                    predicateEvaluationProgress[1] += node.getChildMultiplicity(name);
+                    predicateEvaluationProgress[0] += before - predicates.size();
+                }
+            }
+        }
+
+        if (fetched == null && node.getNumChildren() > 0) {
             if (mult == TreeReference.INDEX_UNBOUND) {
                 final List<TreeElement> childrenWithName = node.getChildrenWithName(name);
                 final int count = childrenWithName.size();
@@ -291,12 +310,11 @@ public class EvaluationContext {
             }
         }
 
-        if (predicates != null && predicateEvaluationProgress != null) {
+        if (fetched == null && predicates != null && predicateEvaluationProgress != null) {
             predicateEvaluationProgress[1] += treeReferences.size();
         }
 
         if (predicates != null) {
-            boolean firstTime = true;
             List<TreeReference> passed = new ArrayList<TreeReference>(treeReferences.size());
             for (XPathExpression xpe : predicates) {
                 for (int i = 0; i < treeReferences.size(); ++i) {
@@ -329,6 +347,16 @@ public class EvaluationContext {
         }
     }
 
+    /**
+     * Predicates can only be resolved through the indexes of a node if the
+     * instance isn't being edited, and if current() doesn't depend on the
+     * candidate node (see rescope()).
+     */
+    private boolean canBatchChildFetch(DataInstance<?> sourceInstance) {
+        return sourceInstance != instance
+                && (original != null || !TreeReference.rootRef().equals(getContextRef()));
+    }
+
     private EvaluationContext rescope(TreeReference treeRef, int currentContextPosition) {
         EvaluationContext ec = new EvaluationContext(this, treeRef);
         // broken:
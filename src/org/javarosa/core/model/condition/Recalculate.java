@@ -53,9 +53,26 @@ public class Recalculate extends Triggerable {
     }
 
     public void apply(TreeReference ref, Object result, FormInstance mainInstance) {
+        applyAndReportChange(ref, result, mainInstance);
+    }
+
+    protected boolean applyAndReportChange(TreeReference ref, Object result, FormInstance mainInstance) {
         TreeElement element = mainInstance.resolveReference(ref);
         int dataType = element.getDataType();
-        element.setAnswer(wrapData(result, dataType));
+        IAnswerData oldValue = element.getValue();
+        IAnswerData newValue = wrapData(result, dataType);
+        element.setAnswer(newValue);
+        return !isSameAnswer(oldValue, newValue);
+    }
+
+    /**
+     * Answers are the same if they have the same type and serialize to the same string.
+     */
+    private static boolean isSameAnswer(IAnswerData a, IAnswerData b) {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        return a.getClass() == b.getClass() && a.uncast().getString().equals(b.uncast().getString());
     }
 
     public boolean canCascade() {
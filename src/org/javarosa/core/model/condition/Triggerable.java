@@ -135,6 +135,18 @@ public abstract class Triggerable implements Externalizable {
 
     protected abstract void apply (TreeReference ref, Object result, FormInstance mainInstance);
 
+    /**
+     * Applies the result like {@link #apply(TreeReference, Object, FormInstance)}
+     * and reports whether the node's value or state actually changed. This
+     * implementation cannot tell, so it always reports a change.
+     *
+     * @return false if the node was left as it was
+     */
+    protected boolean applyAndReportChange (TreeReference ref, Object result, FormInstance mainInstance) {
+        apply(ref, result, mainInstance);
+        return true;
+    }
+
     public abstract boolean canCascade ();
 
     /**
@@ -157,12 +169,52 @@ public abstract class Triggerable implements Externalizable {
             List<TreeReference> v = ec.expandReference(targetRef);
 
             for (TreeReference affectedRef : v) {
-                apply(affectedRef, result, mainInstance);
+                boolean changed = applyAndReportChange(affectedRef, result, mainInstance);
+
+                affectedNodes.add(new EvaluationResult(affectedRef, result, changed));
+            }
+        }
+
+        return affectedNodes;
+    }
+
+    /**
+     * Evaluates the expression like apply(FormInstance, EvaluationContext, TreeReference)
+     * but only lists the nodes the result is meant for, without modifying the
+     * instance. The results are applied later with {@link #applyResults(FormInstance, List)}.
+     */
+    public final List<EvaluationResult> evaluate (FormInstance mainInstance, EvaluationContext parentContext, TreeReference context) {
+        TreeReference ungenericised = originalContextRef.contextualize(context);
+        EvaluationContext ec = new EvaluationContext(parentContext, ungenericised);
 
-                affectedNodes.add(new EvaluationResult(affectedRef, result));
+        Object result = eval(mainInstance, ec);
+
+        List<EvaluationResult> pendingNodes = new ArrayList<EvaluationResult>(0);
+        for (TreeReference target : targets) {
+            TreeReference targetRef = target.contextualize(ec.getContextRef());
+            List<TreeReference> v = ec.expandReference(targetRef);
+
+            for (TreeReference affectedRef : v) {
+                pendingNodes.add(new EvaluationResult(affectedRef, result));
             }
         }
 
+        return pendingNodes;
+    }
+
+    /**
+     * Applies the results of {@link #evaluate(FormInstance, EvaluationContext, TreeReference)}
+     * to the instance.
+     *
+     * @return the applied results, telling which nodes changed
+     */
+    public final List<EvaluationResult> applyResults (FormInstance mainInstance, List<EvaluationResult> pendingNodes) {
+        List<EvaluationResult> affectedNodes = new ArrayList<EvaluationResult>(pendingNodes.size());
+        for (EvaluationResult pending : pendingNodes) {
+            boolean changed = applyAndReportChange(pending.getAffectedRef(), pending.getValue(), mainInstance);
+
+            affectedNodes.add(new EvaluationResult(pending.getAffectedRef(), pending.getValue(), changed));
+        }
         return affectedNodes;
     }
 
@@ -184,6 +236,10 @@ public abstract class Triggerable implements Externalizable {
       this.waveCount = waveCount;
     }
 
+    public int getWaveCount() {
+      return waveCount;
+    }
+
     /**
      * This should return true if this triggerable's targets will implicity modify the
      * value of their children. IE: if this triggerable makes a node relevant/irrelevant,
@@ -0,0 +1,104 @@
+package org.javarosa.core.model.instance;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+import org.javarosa.core.model.condition.pivot.CmpPivot;
+import org.javarosa.xpath.expr.XPathCmpExpr;
+
+/**
+ * The children with the same name of a TreeElement, sorted by the numeric
+ * value of one of their own children or attributes, so that comparisons
+ * with that value can be answered by binary search.
+ *
+ * @see TreeElement#tryBatchChildFetch
+ */
+class ChildRangeIndex {
+    /** the children, in document order */
+    private final TreeReference[] refs;
+    /** the values which aren't NaN, in ascending order */
+    private final double[] values;
+    /** the position in refs of the child with each of the values */
+    private final int[] positions;
+
+    /**
+     * @param refs   the children, in document order
+     * @param values the value of each of the children, as compared by XPath
+     */
+    ChildRangeIndex(TreeReference[] refs, final double[] values) {
+        this.refs = refs;
+
+        // NaN fails every comparison, so it is left out
+        List<Integer> order = new ArrayList<Integer>(values.length);
+        for (int i = 0; i < values.length; i++) {
+            if (!Double.isNaN(values[i])) {
+                order.add(i);
+            }
+        }
+        Integer[] sorted = order.toArray(new Integer[order.size()]);
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare(values[a], values[b]);
+            }
+        });
+
+        this.values = new double[sorted.length];
+        this.positions = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            this.values[i] = values[sorted[i]];
+            this.positions[i] = sorted[i];
+        }
+    }
+
+    /**
+     * @return the children, in document order, whose value compares to the
+     * value of the pivot as its operator requires (value op pivot)
+     */
+    List<TreeReference> select(CmpPivot pivot) {
+        double val = pivot.getVal();
+        if (Double.isNaN(val)) {
+            return new ArrayList<TreeReference>(0);
+        }
+
+        int from;
+        int to;
+        switch (pivot.getOp()) {
+        case XPathCmpExpr.LT: from = 0; to = firstNotBelow(val, false); break;
+        case XPathCmpExpr.LTE: from = 0; to = firstNotBelow(val, true); break;
+        case XPathCmpExpr.GT: from = firstNotBelow(val, true); to = values.length; break;
+        case XPathCmpExpr.GTE: from = firstNotBelow(val, false); to = values.length; break;
+        default: throw new IllegalArgumentException("Unknown comparison " + pivot.getOp());
+        }
+
+        BitSet selected = new BitSet(refs.length);
+        for (int i = from; i < to; i++) {
+            selected.set(positions[i]);
+        }
+        List<TreeReference> matches = new ArrayList<TreeReference>(selected.cardinality());
+        for (int i = selected.nextSetBit(0); i >= 0; i = selected.nextSetBit(i + 1)) {
+            matches.add(refs[i]);
+        }
+        return matches;
+    }
+
+    /**
+     * @return the index of the first value that is not below val, or that is
+     * above it if inclusive is true
+     */
+    private int firstNotBelow(double val, boolean inclusive) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < val || (inclusive && values[mid] == val)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -12,6 +12,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.URI;
@@ -36,12 +37,26 @@ public class ExternalDataInstance extends DataInstance {
         this.root = root;
     }
 
+    /**
+     * Builds the instance from the file at path, which is only parsed if it
+     * isn't in the {@link ExternalDataInstanceCache} yet, when that cache has
+     * been turned on.
+     */
     public static ExternalDataInstance buildFromPath(String path, String instanceId)
             throws IOException, UnfullfilledRequirementsException, XmlPullParserException, InvalidStructureException {
         String absolutePath = getPathPrefix() + path;
-        KXmlParser xmlParser = ElementParser.instantiateParser(new FileInputStream(absolutePath));
-        TreeElementParser treeElementParser = new TreeElementParser(xmlParser, 0, instanceId);
-        TreeElement root = treeElementParser.parse();
+        File file = new File(absolutePath);
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        ExternalDataInstanceCache cache = ExternalDataInstanceCache.instance();
+        TreeElement root = cache.get(absolutePath, instanceId, lastModified, length);
+        if (root == null) {
+            KXmlParser xmlParser = ElementParser.instantiateParser(new FileInputStream(absolutePath));
+            TreeElementParser treeElementParser = new TreeElementParser(xmlParser, 0, instanceId);
+            root = treeElementParser.parse();
+            cache.put(absolutePath, instanceId, lastModified, length, root);
+        }
         return new ExternalDataInstance(path, instanceId, root);
     }
 
@@ -0,0 +1,168 @@
+package org.javarosa.core.model.instance;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of the trees parsed from external secondary instance
+ * files, so that forms which share the same lists only parse them once.
+ *
+ * The cache is off until {@link #setMaxEntries(int)} is given a number
+ * above 0. The trees it holds stay on the heap, and a tree takes several
+ * times the size of the file it was parsed from, so the limits should suit
+ * the memory of the device.
+ *
+ * Entries are keyed by the path of the file and the id of the instance
+ * (which is stored in every node), and are only handed out while the
+ * modification time and the size of the file are unchanged. A file which
+ * is rewritten with the same size within the resolution of its
+ * modification time (as much as a few seconds on some file systems) isn't
+ * noticed, and its old tree is handed out until the file changes again
+ * or {@link #clear()} is called.
+ *
+ * The least recently used entries are evicted when there are more than
+ * {@link #setMaxEntries(int) maxEntries} of them, or when the files they
+ * were parsed from add up to more than {@link #setMaxSize(long) maxSize}
+ * bytes.
+ *
+ * The cache keeps its own copy of each tree and hands out a new copy of it
+ * each time, so a form can modify its tree without affecting the others.
+ * Copying a tree is much cheaper than parsing the file again.
+ */
+public class ExternalDataInstanceCache {
+    public static final int DEFAULT_MAX_ENTRIES = 0;
+    public static final long DEFAULT_MAX_SIZE = 16L * 1024 * 1024;
+
+    private static final ExternalDataInstanceCache instance = new ExternalDataInstanceCache();
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxSize = DEFAULT_MAX_SIZE;
+    private long size;
+    private long hits;
+    private long misses;
+
+    public static ExternalDataInstanceCache instance() {
+        return instance;
+    }
+
+    /**
+     * @return a copy of the tree parsed from the file at path for the given
+     * instance, or null if it isn't cached, the file has changed since or
+     * the cache is off
+     */
+    public TreeElement get(String path, String instanceId, long lastModified, long length) {
+        Entry entry;
+        synchronized (this) {
+            if (maxEntries == 0) {
+                return null;
+            }
+            entry = entries.get(getKey(path, instanceId));
+            if (entry == null || entry.lastModified != lastModified || entry.length != length) {
+                misses++;
+                return null;
+            }
+            hits++;
+        }
+        // the cached tree is never modified, so it can be copied without holding the lock
+        return entry.root.deepCopy(true);
+    }
+
+    /**
+     * Caches a copy of the tree parsed from the file at path for the given
+     * instance, replacing any older version of it. Does nothing if the cache
+     * is off.
+     *
+     * @param lastModified the modification time of the file before it was parsed
+     * @param length       the size of the file before it was parsed
+     */
+    public void put(String path, String instanceId, long lastModified, long length, TreeElement root) {
+        synchronized (this) {
+            if (maxEntries == 0) {
+                return;
+            }
+        }
+        Entry entry = new Entry(lastModified, length, root.deepCopy(true));
+        synchronized (this) {
+            Entry old = entries.put(getKey(path, instanceId), entry);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += length;
+            evict();
+        }
+    }
+
+    /**
+     * @param maxEntries the number of trees to keep, or 0 to turn the cache off
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        evict();
+    }
+
+    public synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * @param maxSize the total size in bytes of the files the cached trees
+     *                may have been parsed from, which is several times less
+     *                than the heap they take
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public synchronized long getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Removes every entry and resets the counters.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+        hits = 0;
+        misses = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (eldest.hasNext() && (entries.size() > maxEntries || size > maxSize)) {
+            size -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private static String getKey(String path, String instanceId) {
+        return instanceId + "@" + path;
+    }
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final TreeElement root;
+
+        Entry(long lastModified, long length, TreeElement root) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.root = root;
+        }
+    }
+}
@@ -20,6 +20,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import org.javarosa.core.model.Constants;
@@ -27,6 +28,8 @@ import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormElementStateListener;
 import org.javarosa.core.model.condition.Constraint;
 import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.condition.pivot.CmpPivot;
+import org.javarosa.core.model.condition.pivot.UnpivotableExpressionException;
 import org.javarosa.core.model.data.IAnswerData;
 import org.javarosa.core.model.data.SelectMultiData;
 import org.javarosa.core.model.data.SelectOneData;
@@ -37,18 +40,22 @@ import org.javarosa.core.model.instance.utils.IAnswerResolver;
 import org.javarosa.core.model.instance.utils.ITreeVisitor;
 import org.javarosa.core.model.instance.utils.TreeElementChildrenList;
 import org.javarosa.core.model.util.restorable.RestoreUtils;
-import org.javarosa.core.util.DataUtil;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapNullable;
 import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.Externalizable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
-import org.javarosa.model.xform.XPathReference;
 import org.javarosa.xform.parse.XFormParser;
+import org.javarosa.xpath.XPathException;
+import org.javarosa.xpath.expr.XPathBoolExpr;
+import org.javarosa.xpath.expr.XPathCmpExpr;
 import org.javarosa.xpath.expr.XPathEqExpr;
 import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathNumericLiteral;
 import org.javarosa.xpath.expr.XPathPathExpr;
+import org.javarosa.xpath.expr.XPathStep;
 import org.javarosa.xpath.expr.XPathStringLiteral;
 
 /**
@@ -103,6 +110,11 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
 
     private String instanceName = null;
 
+    // hash and sorted indexes of the children by the value of one of their
+    // own children or attributes, built by tryBatchChildFetch()
+    private HashMap<String, HashMap<String, List<TreeReference>>> childIndexes;
+    private HashMap<String, ChildRangeIndex> childRangeIndexes;
+
     /**
      * TreeElement with null name and 0 multiplicity? (a "hidden root" node?)
      */
@@ -270,6 +282,7 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
         }
 
         children.addInOrder(child);
+        clearChildIndexes();
         child.setParent(this);
         child.setRelevant(isRelevant(), true);
         child.setEnabled(isEnabled(), true);
@@ -278,18 +291,22 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
 
     public void removeChild(TreeElement child) {
         children.remove(child);
+        clearChildIndexes();
     }
 
     public void removeChild(String name, int multiplicity) {
         children.remove(name, multiplicity);
+        clearChildIndexes();
     }
 
     public void removeChildren(String name) {
         children.removeAll(name);
+        clearChildIndexes();
     }
 
     public void removeChildAt(int i) {
         children.remove(i);
+        clearChildIndexes();
     }
 
     @Override
@@ -706,6 +723,19 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
     //  there's a lot of error checking we could do on the received instance, but it's
     //  easier to just ignore the parts that are incorrect
     public void populate(TreeElement incoming, FormDef f) {
+        // if there is no other IAnswerResolver, use the default one.
+        IAnswerResolver answerResolver = XFormParser.getAnswerResolver();
+        if (answerResolver == null) {
+            answerResolver = new DefaultAnswerResolver();
+        }
+        populate(incoming, f, answerResolver);
+    }
+
+    /**
+     * As {@link #populate(TreeElement, FormDef)}, but turning the text of answers into values with
+     * the given resolver rather than the one set on XFormParser
+     */
+    public void populate(TreeElement incoming, FormDef f, IAnswerResolver answerResolver) {
         if (this.isLeaf()) {
             // check that incoming doesn't have children?
 
@@ -717,12 +747,6 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
                 this.setValue(value); // value is a StringData
             } else {
                 String textVal = (String) value.getValue();
-
-                // if there is no other IAnswerResolver, use the default one.
-                IAnswerResolver answerResolver = XFormParser.getAnswerResolver();
-                if (answerResolver == null) {
-                    answerResolver = new DefaultAnswerResolver();
-                }
                 this.setValue(answerResolver.resolveAnswer(textVal, this, f));
             }
         } else {
@@ -780,7 +804,7 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
                         TreeElement newChild = child.deepCopy(true);
                         newChild.setMult(k);
                         this.children.add(i + k + 1, newChild);
-                        newChild.populate(newChildren.get(k), f);
+                        newChild.populate(newChildren.get(k), f, answerResolver);
                     }
                     i += newChildren.size();
                 } else {
@@ -788,7 +812,7 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
                     if (newChildren.size() == 0) {
                         child.setRelevant(false);
                     } else {
-                        child.populate(newChildren.get(0), f);
+                        child.populate(newChildren.get(0), f, answerResolver);
                     }
                 }
             }
@@ -1018,83 +1042,286 @@ import org.javarosa.xpath.expr.XPathStringLiteral;
         this.namespace = namespace;
     }
 
+    /**
+     * Resolves the leading predicates on the children with the given name
+     * through indexes of the children's values. A predicate can be resolved
+     * if it is an equality or a comparison (<, <=, >, >=), or a conjunction
+     * of those, where one side is a child element or attribute of the
+     * candidate (e.g. <code>district</code> or <code>@id</code>) and the
+     * other side doesn't depend on the candidate: a literal, an absolute path
+     * or a current() path, which is evaluated once in evalContext.
+     * Equalities use a hash index of the string values, comparisons a sorted
+     * index of the numeric values.
+     *
+     * The indexes are built on first use and kept on this element, so they
+     * must only be used for read-only instances: changing the value of a
+     * child doesn't update them.
+     *
+     * @param evalContext the context of the predicates, minus the candidate
+     * @return the matching children, in document order, or null if no
+     * predicate could be resolved
+     */
     @Override
     public List<TreeReference> tryBatchChildFetch(String name, int mult, List<XPathExpression> predicates, EvaluationContext evalContext) {
         //Only do for predicates
         if(mult != TreeReference.INDEX_UNBOUND || predicates == null) { return null; }
 
-        List<Integer> toRemove = new ArrayList<Integer>();
         List<TreeReference> selectedChildren = null;
+        int resolved = 0;
 
-        //Lazy init these until we've determined that our predicate is hintable
-        HashMap<XPathPathExpr, String> indices=  null;
-        List<TreeElement> kids = null;
-
-        predicate:
-        for(int i = 0 ; i < predicates.size() ; ++i) {
-            XPathExpression xpe = predicates.get(i);
-            //what we want here is a static evaluation of the expression to see if it consists of evaluating
-            //something we index with something static.
-            if(xpe instanceof XPathEqExpr) {
-                XPathExpression left = ((XPathEqExpr)xpe).a;
-                XPathExpression right = ((XPathEqExpr)xpe).b;
-
-                //For now, only cheat when this is a string literal (this basically just means that we're
-                //handling attribute based referencing with very reasonable timing, but it's complex otherwise)
-                if(left instanceof XPathPathExpr && right instanceof XPathStringLiteral) {
-
-                    //We're lazily initializing this, since it might actually take a while, and we
-                    //don't want the overhead if our predicate is too complex anyway
-                    if(indices == null) {
-                        indices = new HashMap<XPathPathExpr, String>();
-                        kids = this.getChildrenWithName(name);
-
-                        if(kids.size() == 0 ) { return null; }
-
-                        //Anything that we're going to use across elements should be on all of them
-                        TreeElement kid = kids.get(0);
-                        for(int j = 0 ; j < kid.getAttributeCount(); ++j) {
-                            String attribute = kid.getAttributeName(j);
-                            indices.put(XPathReference.getPathExpr("@" + attribute), attribute);
-                        }
-                    }
-
-                    for(XPathPathExpr expr : indices.keySet()) {
-                        if(expr.equals(left)) {
-                            String attributeName = indices.get(expr);
-
-                            for (TreeElement kid : kids) {
-                                if (kid.getAttributeValue(null, attributeName).equals(((XPathStringLiteral) right).s)) {
-                                    if (selectedChildren == null) {
-                                        selectedChildren = new ArrayList<TreeReference>();
-                                    }
-                                    selectedChildren.add(kid.getRef());
-                                }
-                            }
-
-                            //Note that this predicate is evaluated and doesn't need to be evaluated in the future.
-                            toRemove.add(DataUtil.integer(i));
-                            continue predicate;
-                        }
-                    }
-                }
+        for (XPathExpression xpe : predicates) {
+            List<TreeReference> matches = resolvePredicate(name, xpe, evalContext);
+            if (matches == null) {
+                break;
             }
-            //There's only one case where we want to keep moving along, and we would have triggered it if it were going to happen,
-            //so otherwise, just get outta here.
-            break;
+            selectedChildren = selectedChildren == null ? matches : intersect(selectedChildren, matches);
+            resolved++;
         }
 
         //if we weren't able to evaluate any predicates, signal that.
-        if(selectedChildren == null) { return null; }
+        if (resolved == 0) { return null; }
 
         //otherwise, remove all of the predicates we've already evaluated
-        for(int i = toRemove.size() - 1; i >= 0 ; i--)  {
-            predicates.remove(toRemove.get(i).intValue());
-        }
+        predicates.subList(0, resolved).clear();
 
         return selectedChildren;
     }
 
+    /**
+     * @return the children with the given name which pass the predicate, in
+     * document order, or null if it can't be resolved through an index
+     */
+    private List<TreeReference> resolvePredicate(String name, XPathExpression xpe, EvaluationContext evalContext) {
+        if (xpe instanceof XPathBoolExpr && ((XPathBoolExpr) xpe).op == XPathBoolExpr.AND) {
+            List<TreeReference> a = resolvePredicate(name, ((XPathBoolExpr) xpe).a, evalContext);
+            if (a == null) {
+                return null;
+            }
+            List<TreeReference> b = resolvePredicate(name, ((XPathBoolExpr) xpe).b, evalContext);
+            return b == null ? null : intersect(a, b);
+        }
+
+        XPathExpression keyExpr;
+        XPathExpression valueExpr;
+        if (xpe instanceof XPathEqExpr && ((XPathEqExpr) xpe).equal) {
+            keyExpr = ((XPathEqExpr) xpe).a;
+            valueExpr = ((XPathEqExpr) xpe).b;
+        } else if (xpe instanceof XPathCmpExpr) {
+            keyExpr = ((XPathCmpExpr) xpe).a;
+            valueExpr = ((XPathCmpExpr) xpe).b;
+        } else {
+            return null;
+        }
+
+        boolean swapped = false;
+        String keyStep = getIndexKeyStep(keyExpr);
+        if (keyStep == null || !isIndependentOfCandidate(valueExpr)) {
+            XPathExpression other = keyExpr;
+            keyExpr = valueExpr;
+            valueExpr = other;
+            swapped = true;
+            keyStep = getIndexKeyStep(keyExpr);
+            if (keyStep == null || !isIndependentOfCandidate(valueExpr)) {
+                return null;
+            }
+        }
+
+        Object value;
+        try {
+            value = XPathFuncExpr.unpack(valueExpr.eval(evalContext.getMainInstance(), evalContext));
+        } catch (XPathException e) {
+            // let the regular evaluation report it
+            return null;
+        }
+
+        if (xpe instanceof XPathEqExpr) {
+            // other types are compared as numbers or booleans
+            if (!(value instanceof String)) {
+                return null;
+            }
+            HashMap<String, List<TreeReference>> index = getChildIndex(name, keyStep);
+            if (index == null) {
+                return null;
+            }
+            List<TreeReference> matches = index.get(value);
+            return matches == null ? new ArrayList<TreeReference>(0) : new ArrayList<TreeReference>(matches);
+        }
+
+        ChildRangeIndex index = getChildRangeIndex(name, keyStep);
+        if (index == null) {
+            return null;
+        }
+
+        // pivot the comparison, as written with the key first, around the key
+        int op = ((XPathCmpExpr) xpe).op;
+        if (swapped) {
+            op = op == XPathCmpExpr.LT ? XPathCmpExpr.GT
+                    : op == XPathCmpExpr.GT ? XPathCmpExpr.LT
+                    : op == XPathCmpExpr.LTE ? XPathCmpExpr.GTE
+                    : XPathCmpExpr.LTE;
+        }
+        List<Object> pivots = new ArrayList<Object>(1);
+        try {
+            XPathExpression cmp = new XPathCmpExpr(op, keyExpr, new XPathNumericLiteral(XPathFuncExpr.toNumeric(value)));
+            cmp.pivot(evalContext.getMainInstance(), evalContext, pivots, ((XPathPathExpr) keyExpr).getReference());
+        } catch (UnpivotableExpressionException e) {
+            return null;
+        } catch (XPathException e) {
+            return null;
+        }
+        if (pivots.size() != 1 || !(pivots.get(0) instanceof CmpPivot)) {
+            return null;
+        }
+        return index.select((CmpPivot) pivots.get(0));
+    }
+
+    private static List<TreeReference> intersect(List<TreeReference> a, List<TreeReference> b) {
+        List<TreeReference> both = new ArrayList<TreeReference>(a);
+        both.retainAll(new HashSet<TreeReference>(b));
+        return both;
+    }
+
+    /**
+     * @return "name" or "@name" if expr is the path to a child element or an
+     * attribute of the candidate node, otherwise null
+     */
+    private static String getIndexKeyStep(XPathExpression expr) {
+        if (!(expr instanceof XPathPathExpr)) {
+            return null;
+        }
+        XPathPathExpr path = (XPathPathExpr) expr;
+        if (path.init_context != XPathPathExpr.INIT_CONTEXT_RELATIVE || path.steps.length != 1) {
+            return null;
+        }
+        XPathStep step = path.steps[0];
+        if (step.test != XPathStep.TEST_NAME || step.name.namespace != null || step.predicates.length > 0) {
+            return null;
+        }
+        if (step.axis == XPathStep.AXIS_CHILD) {
+            return step.name.name;
+        } else if (step.axis == XPathStep.AXIS_ATTRIBUTE) {
+            return "@" + step.name.name;
+        }
+        return null;
+    }
+
+    private static boolean isIndependentOfCandidate(XPathExpression expr) {
+        // numbers are only answered by the range index; equalities with them fall back to the scan
+        if (expr instanceof XPathStringLiteral || expr instanceof XPathNumericLiteral) {
+            return true;
+        }
+        if (!(expr instanceof XPathPathExpr)) {
+            return false;
+        }
+        XPathPathExpr path = (XPathPathExpr) expr;
+        if (path.init_context == XPathPathExpr.INIT_CONTEXT_ROOT) {
+            return true;
+        }
+        // instance('name')/... and current()/...
+        if (path.init_context == XPathPathExpr.INIT_CONTEXT_EXPR
+                && path.filtExpr.predicates.length == 0
+                && path.filtExpr.x instanceof XPathFuncExpr) {
+            String function = ((XPathFuncExpr) path.filtExpr.x).id.toString();
+            return function.equals("instance") || function.equals("current");
+        }
+        return false;
+    }
+
+    /**
+     * @return the value an XPath path to the keyStep child or attribute of
+     * the given node unpacks to, or null if the node has several keyStep
+     * elements
+     */
+    private static Object getKeyValue(TreeElement node, String keyStep) {
+        TreeElement keyNode;
+        if (keyStep.startsWith("@")) {
+            keyNode = node.getAttribute(null, keyStep.substring(1));
+        } else {
+            List<TreeElement> keyNodes = node.getChildrenWithName(keyStep);
+            if (keyNodes.size() > 1) {
+                return null;
+            }
+            keyNode = keyNodes.isEmpty() ? null : keyNodes.get(0);
+        }
+        return XPathPathExpr.unpackValue(keyNode != null && keyNode.isRelevant() ? keyNode.getValue() : null);
+    }
+
+    /**
+     * @return the children with the given name, by the string value of their
+     * keyStep child or attribute, or null if some of those values aren't
+     * strings or a child has several keyStep elements
+     */
+    private synchronized HashMap<String, List<TreeReference>> getChildIndex(String name, String keyStep) {
+        String indexName = name + "/" + keyStep;
+        if (childIndexes == null) {
+            childIndexes = new HashMap<String, HashMap<String, List<TreeReference>>>();
+        } else if (childIndexes.containsKey(indexName)) {
+            return childIndexes.get(indexName);
+        }
+
+        HashMap<String, List<TreeReference>> index = new HashMap<String, List<TreeReference>>();
+        for (TreeElement kid : getChildrenWithName(name)) {
+            Object value = getKeyValue(kid, keyStep);
+            if (!(value instanceof String)) {
+                index = null;
+                break;
+            }
+
+            List<TreeReference> refs = index.get(value);
+            if (refs == null) {
+                refs = new ArrayList<TreeReference>(1);
+                index.put((String) value, refs);
+            }
+            refs.add(kid.getRef());
+        }
+
+        childIndexes.put(indexName, index);
+        return index;
+    }
+
+    /**
+     * @return the children with the given name, sorted by the numeric value
+     * of their keyStep child or attribute, or null if a child has several
+     * keyStep elements
+     */
+    private synchronized ChildRangeIndex getChildRangeIndex(String name, String keyStep) {
+        String indexName = name + "/" + keyStep;
+        if (childRangeIndexes == null) {
+            childRangeIndexes = new HashMap<String, ChildRangeIndex>();
+        } else if (childRangeIndexes.containsKey(indexName)) {
+            return childRangeIndexes.get(indexName);
+        }
+
+        List<TreeElement> kids = getChildrenWithName(name);
+        TreeReference[] refs = new TreeReference[kids.size()];
+        double[] values = new double[kids.size()];
+        ChildRangeIndex index = null;
+        int i = 0;
+        for (; i < kids.size(); i++) {
+            Object value = getKeyValue(kids.get(i), keyStep);
+            if (value == null) {
+                break;
+            }
+            try {
+                values[i] = XPathFuncExpr.toNumeric(value).doubleValue();
+            } catch (XPathException e) {
+                break;
+            }
+            refs[i] = kids.get(i).getRef();
+        }
+        if (i == kids.size()) {
+            index = new ChildRangeIndex(refs, values);
+        }
+
+        childRangeIndexes.put(indexName, index);
+        return index;
+    }
+
+    private synchronized void clearChildIndexes() {
+        childIndexes = null;
+        childRangeIndexes = null;
+    }
+
     public String getNamespacePrefix() {
         return namespacePrefix;
     }
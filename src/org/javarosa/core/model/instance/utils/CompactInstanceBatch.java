@@ -0,0 +1,492 @@
+package org.javarosa.core.model.instance.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.InvalidReferenceException;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapNullable;
+import org.javarosa.core.util.externalizable.Externalizable;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+
+/**
+ * A column-oriented serialization format for many FormInstances of the same form, for bulk export and
+ * archiving. Like CompactInstanceWrapper, it leaves out everything the template instance already says; on top
+ * of that, the values of each leaf are stored together across the whole batch, where they compress well.
+ *
+ * The format is:
+ * 1) the form id, then the id and date saved of each instance
+ * 2) the structure of every instance -- the number of each child at each level, in the order
+ *    CompactInstanceWrapper writes them -- as one column, preceded by the length of each instance's part of it
+ * 3) a dictionary of every distinct value in the batch, serialized as CompactInstanceWrapper would
+ * 4) for each leaf path, without multiplicities (e.g., /data/person/name), the data type of the leaf, the number
+ *    of values each instance has for it, and the dictionary index of each of those values
+ *
+ * Every column of ints is run-length encoded when that makes it smaller.
+ *
+ * A single column can be read with getColumn() without a template, and without building any TreeElements.
+ * Rebuilding whole instances with getInstance() requires the template, as with CompactInstanceWrapper.
+ */
+public class CompactInstanceBatch implements Externalizable {
+    private CompactInstanceWrapper answers; /* encodes the values, and provides the templates */
+
+    private int formId = -1;
+    private IntList ids = new IntList();
+    private List<Date> datesSaved = new ArrayList<Date>();
+    private IntList structure = new IntList();
+    private IntList structureLengths = new IntList();
+    private List<byte[]> dictionary = new ArrayList<byte[]>();
+    private HashMap<ValueKey, Integer> dictionaryIndex = new HashMap<ValueKey, Integer>();
+    private LinkedHashMap<String, Column> columns = new LinkedHashMap<String, Column>();
+
+    private int[] structureStarts; /* where each instance's structure starts; computed when first needed */
+
+    public CompactInstanceBatch () {
+        this(null);
+    }
+
+    /**
+     * @param templateMgr template provider; if null, template is always fetched on-demand from RMS (slow!)
+     */
+    public CompactInstanceBatch (InstanceTemplateManager templateMgr) {
+        this.answers = new CompactInstanceWrapper(templateMgr);
+    }
+
+    /**
+     * add an instance to the end of the batch
+     *
+     * @throws IllegalArgumentException if the instance is of a different form than the ones already in the batch
+     */
+    public void add (FormInstance instance) {
+        if (ids.size() == 0) {
+            formId = instance.getFormId();
+        } else if (instance.getFormId() != formId) {
+            throw new IllegalArgumentException("instance of form " + instance.getFormId() + " can't be added to a batch of form " + formId);
+        }
+
+        for (Column column : columns.values()) {
+            column.counts.add(0);
+            column.starts = null;
+        }
+        structureStarts = null;
+
+        int structureStart = structure.size();
+        TreeElement root = instance.getRoot();
+        writeTreeElement(instance, root, "/" + root.getName());
+
+        ids.add(instance.getID());
+        datesSaved.add(instance.getDateSaved());
+        structureLengths.add(structure.size() - structureStart);
+    }
+
+    public int size () {
+        return ids.size();
+    }
+
+    public int getFormId () {
+        return formId;
+    }
+
+    public int getID (int index) {
+        return ids.get(index);
+    }
+
+    public Date getDateSaved (int index) {
+        return datesSaved.get(index);
+    }
+
+    /**
+     * @return the paths of the leaves which have values in the batch, in the order they were first seen
+     */
+    public List<String> getColumnPaths () {
+        return new ArrayList<String>(columns.keySet());
+    }
+
+    /**
+     * read the values of one leaf in every instance, without rebuilding the instances
+     *
+     * @param path path of the leaf, without multiplicities (e.g., /data/person/name)
+     * @return for each instance in the batch, the values of all the nodes at that path, in document order (empty
+     *     nodes are null). values which are equal are returned as the same object. null if no instance has
+     *     the leaf
+     */
+    public IAnswerData[][] getColumn (String path) throws DeserializationException {
+        Column column = columns.get(path);
+        if (column == null) {
+            return null;
+        }
+
+        HashMap<Integer, IAnswerData> decoded = new HashMap<Integer, IAnswerData>();
+        IAnswerData[][] values = new IAnswerData[ids.size()][];
+        int pos = 0;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new IAnswerData[column.counts.get(i)];
+            for (int j = 0; j < values[i].length; j++) {
+                int value = column.values.get(pos++);
+                if (!decoded.containsKey(value)) {
+                    decoded.put(value, answers.readAnswer(column.dataType, dictionary.get(value)));
+                }
+                values[i][j] = decoded.get(value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * rebuild an instance of the batch, by filling out the template instance
+     */
+    public FormInstance getInstance (int index) throws DeserializationException {
+        if (structureStarts == null) {
+            structureStarts = structureLengths.starts();
+        }
+        for (Column column : columns.values()) {
+            if (column.starts == null) {
+                column.starts = column.counts.starts();
+            }
+        }
+
+        FormInstance instance = answers.getTemplateInstance(formId).clone();
+        instance.setID(ids.get(index));
+        instance.setDateSaved(datesSaved.get(index));
+
+        Cursor cursor = new Cursor(index);
+        TreeElement root = instance.getRoot();
+        readTreeElement(instance, root, "/" + root.getName(), cursor);
+        return instance;
+    }
+
+    /**
+     * recursively write out a node of the instance, mirroring CompactInstanceWrapper
+     */
+    private void writeTreeElement (FormInstance instance, TreeElement e, String path) {
+        TreeElement templ = instance.getTemplatePath(e.getRef());
+
+        if (!templ.isLeaf()) {
+            List<String> childTypesHandled = new ArrayList<String>(templ.getNumChildren());
+            for (int i = 0; i < templ.getNumChildren(); i++) {
+                String childName = templ.getChildAt(i).getName();
+                if (!childTypesHandled.contains(childName)) {
+                    childTypesHandled.add(childName);
+
+                    int mult = e.getChildMultiplicity(childName);
+                    if (mult > 0 && !e.getChild(childName, 0).isRelevant()) {
+                        mult = 0;
+                    }
+
+                    structure.add(mult);
+                    for (int j = 0; j < mult; j++) {
+                        writeTreeElement(instance, e.getChild(childName, j), path + "/" + childName);
+                    }
+                }
+            }
+        } else {
+            Column column = columns.get(path);
+            if (column == null) {
+                column = new Column(templ.getDataType());
+                // the instances before this one had no value for the leaf
+                for (int i = 0; i <= ids.size(); i++) {
+                    column.counts.add(0);
+                }
+                columns.put(path, column);
+            }
+            column.counts.set(ids.size(), column.counts.get(ids.size()) + 1);
+            column.values.add(getDictionaryIndex(answers.writeAnswer(column.dataType, e.getValue())));
+        }
+    }
+
+    /**
+     * recursively read in a node of the instance, mirroring CompactInstanceWrapper
+     */
+    private void readTreeElement (FormInstance instance, TreeElement e, String path, Cursor cursor) throws DeserializationException {
+        TreeElement templ = instance.getTemplatePath(e.getRef());
+
+        if (!templ.isLeaf()) {
+            List<String> childTypes = new ArrayList<String>(templ.getNumChildren());
+            for (int i = 0; i < templ.getNumChildren(); i++) {
+                String childName = templ.getChildAt(i).getName();
+                if (!childTypes.contains(childName)) {
+                    childTypes.add(childName);
+                }
+            }
+
+            for (int i = 0; i < childTypes.size(); i++) {
+                String childName = childTypes.get(i);
+                String childPath = path + "/" + childName;
+
+                TreeReference childTemplRef = e.getRef().extendRef(childName, 0);
+                TreeElement childTempl = instance.getTemplatePath(childTemplRef);
+
+                boolean repeatable = childTempl.isRepeatable();
+                int n = structure.get(cursor.structure++);
+
+                boolean relevant = (n > 0);
+                if (!repeatable && n > 1) {
+                    throw new DeserializationException("Detected repeated instances of a non-repeatable node");
+                }
+
+                if (repeatable) {
+                    int mult = e.getChildMultiplicity(childName);
+                    for (int j = mult - 1; j >= 0; j--) {
+                        e.removeChild(childName, j);
+                    }
+
+                    for (int j = 0; j < n; j++) {
+                        TreeReference dstRef = e.getRef().extendRef(childName, j);
+                        try {
+                            instance.copyNode(childTempl, dstRef);
+                        } catch (InvalidReferenceException ire) {
+                            throw new DeserializationException("Invalid Reference while attempting to deserialize! " + ire.getMessage());
+                        }
+
+                        TreeElement child = e.getChild(childName, j);
+                        child.setRelevant(true);
+                        readTreeElement(instance, child, childPath, cursor);
+                    }
+                } else {
+                    TreeElement child = e.getChild(childName, 0);
+                    child.setRelevant(relevant);
+                    if (relevant) {
+                        readTreeElement(instance, child, childPath, cursor);
+                    }
+                }
+            }
+        } else {
+            Column column = columns.get(path);
+            if (column == null) {
+                throw new DeserializationException("No values for " + path + " in the batch");
+            }
+            int pos = cursor.next(path, column);
+            e.setValue(answers.readAnswer(column.dataType, dictionary.get(column.values.get(pos))));
+        }
+    }
+
+    private int getDictionaryIndex (byte[] value) {
+        ValueKey key = new ValueKey(value);
+        Integer index = dictionaryIndex.get(key);
+        if (index == null) {
+            index = dictionary.size();
+            dictionary.add(value);
+            dictionaryIndex.put(key, index);
+        }
+        return index;
+    }
+
+    public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        formId = ExtUtil.readInt(in);
+        int n = ExtUtil.readInt(in);
+        ids = new IntList();
+        datesSaved = new ArrayList<Date>(n);
+        for (int i = 0; i < n; i++) {
+            ids.add(ExtUtil.readInt(in));
+            datesSaved.add((Date)ExtUtil.read(in, new ExtWrapNullable(Date.class), pf));
+        }
+
+        structureLengths = IntList.read(in);
+        structure = IntList.read(in);
+        structureStarts = null;
+
+        int numValues = ExtUtil.readInt(in);
+        dictionary = new ArrayList<byte[]>(numValues);
+        dictionaryIndex = new HashMap<ValueKey, Integer>(numValues);
+        for (int i = 0; i < numValues; i++) {
+            getDictionaryIndex(ExtUtil.readBytes(in));
+        }
+
+        int numColumns = ExtUtil.readInt(in);
+        columns = new LinkedHashMap<String, Column>(numColumns);
+        for (int i = 0; i < numColumns; i++) {
+            String path = ExtUtil.readString(in);
+            Column column = new Column(ExtUtil.readInt(in));
+            column.counts = IntList.read(in);
+            column.values = IntList.read(in);
+            columns.put(path, column);
+        }
+    }
+
+    public void writeExternal(DataOutputStream out) throws IOException {
+        ExtUtil.writeNumeric(out, formId);
+        ExtUtil.writeNumeric(out, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            ExtUtil.writeNumeric(out, ids.get(i));
+            ExtUtil.write(out, new ExtWrapNullable(datesSaved.get(i)));
+        }
+
+        structureLengths.write(out);
+        structure.write(out);
+
+        ExtUtil.writeNumeric(out, dictionary.size());
+        for (byte[] value : dictionary) {
+            ExtUtil.writeBytes(out, value);
+        }
+
+        ExtUtil.writeNumeric(out, columns.size());
+        for (Map.Entry<String, Column> entry : columns.entrySet()) {
+            ExtUtil.writeString(out, entry.getKey());
+            ExtUtil.writeNumeric(out, entry.getValue().dataType);
+            entry.getValue().counts.write(out);
+            entry.getValue().values.write(out);
+        }
+    }
+
+    /**
+     * the values of one leaf path across the batch
+     */
+    private static class Column {
+        final int dataType;
+        IntList counts = new IntList(); /* number of values in each instance */
+        IntList values = new IntList(); /* dictionary index of each value */
+        int[] starts;                   /* where each instance's values start; computed when first needed */
+
+        Column (int dataType) {
+            this.dataType = dataType;
+        }
+    }
+
+    /**
+     * the position of an instance being rebuilt in the structure and in each column
+     */
+    private class Cursor {
+        final int index;
+        int structure;
+        final HashMap<String, Integer> values = new HashMap<String, Integer>();
+
+        Cursor (int index) {
+            this.index = index;
+            this.structure = structureStarts[index];
+        }
+
+        int next (String path, Column column) throws DeserializationException {
+            Integer seen = values.get(path);
+            int n = (seen == null ? 0 : seen);
+            if (n >= column.counts.get(index)) {
+                throw new DeserializationException("Too few values for " + path + " in the batch");
+            }
+            values.put(path, n + 1);
+            return column.starts[index] + n;
+        }
+    }
+
+    /**
+     * a serialized value, compared by content
+     */
+    private static class ValueKey {
+        final byte[] value;
+        final int hash;
+
+        ValueKey (byte[] value) {
+            this.value = value;
+            this.hash = Arrays.hashCode(value);
+        }
+
+        public int hashCode () {
+            return hash;
+        }
+
+        public boolean equals (Object o) {
+            return o instanceof ValueKey && Arrays.equals(value, ((ValueKey)o).value);
+        }
+    }
+
+    /**
+     * a growable list of ints, written run-length encoded when that is smaller
+     */
+    private static class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add (int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        int get (int i) {
+            return data[i];
+        }
+
+        void set (int i, int value) {
+            data[i] = value;
+        }
+
+        int size () {
+            return size;
+        }
+
+        /**
+         * @return the sum of the values before each value
+         */
+        int[] starts () {
+            int[] starts = new int[size];
+            int sum = 0;
+            for (int i = 0; i < size; i++) {
+                starts[i] = sum;
+                sum += data[i];
+            }
+            return starts;
+        }
+
+        void write (DataOutputStream out) throws IOException {
+            int runs = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || data[i] != data[i - 1]) {
+                    runs++;
+                }
+            }
+
+            ExtUtil.writeNumeric(out, size);
+            boolean encodeRuns = runs * 2 < size;
+            ExtUtil.writeBool(out, encodeRuns);
+            if (encodeRuns) {
+                for (int i = 0; i < size; ) {
+                    int run = 1;
+                    while (i + run < size && data[i + run] == data[i]) {
+                        run++;
+                    }
+                    ExtUtil.writeNumeric(out, data[i]);
+                    ExtUtil.writeNumeric(out, run);
+                    i += run;
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    ExtUtil.writeNumeric(out, data[i]);
+                }
+            }
+        }
+
+        static IntList read (DataInputStream in) throws IOException {
+            IntList list = new IntList();
+            int size = ExtUtil.readInt(in);
+            list.data = new int[Math.max(size, 16)];
+            if (ExtUtil.readBool(in)) {
+                while (list.size < size) {
+                    int value = ExtUtil.readInt(in);
+                    int run = ExtUtil.readInt(in);
+                    if (run <= 0 || run > size - list.size) {
+                        throw new IOException("run of " + run + " overflows a list of " + size);
+                    }
+                    Arrays.fill(list.data, list.size, list.size + run, value);
+                    list.size += run;
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    list.data[list.size++] = ExtUtil.readInt(in);
+                }
+            }
+            return list;
+        }
+    }
+}
@@ -145,7 +145,7 @@ public class CompactInstanceWrapper implements WrappingStorageUtility.Serializat
         writeTreeElement(out, instance.getRoot());
     }
 
-    private FormInstance getTemplateInstance (int formID) {
+    FormInstance getTemplateInstance (int formID) {
         if (templateMgr != null) {
             return templateMgr.getTemplateInstance(formID);
         } else {
@@ -277,6 +277,22 @@ public class CompactInstanceWrapper implements WrappingStorageUtility.Serializat
         }
     }
 
+    /**
+     * serialize a single node's data, exactly as it is written within a compact instance
+     * @param dataType data type of the node in the template
+     */
+    byte[] writeAnswer (int dataType, IAnswerData val) {
+        return ExtUtil.serialize(new ExtWrapAnswerData(dataType, val));
+    }
+
+    /**
+     * deserialize a single node's data written by writeAnswer()
+     * @param dataType data type of the node in the template
+     */
+    IAnswerData readAnswer (int dataType, byte[] data) throws DeserializationException {
+        return (IAnswerData)ExtUtil.deserialize(data, new ExtWrapAnswerData(dataType));
+    }
+
     /**
      * ExternalizableWrapper to handle writing out a node's data. In particular, handles:
      *   * empty nodes
@@ -16,11 +16,14 @@
 
 package org.javarosa.core.services.locale;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,10 +36,11 @@ import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapList;
 import org.javarosa.core.util.externalizable.ExtWrapListPoly;
-import org.javarosa.core.util.externalizable.ExtWrapMap;
 import org.javarosa.core.util.externalizable.ExtWrapNullable;
 import org.javarosa.core.util.externalizable.Externalizable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.javarosa.core.util.externalizable.StringTableInputStream;
+import org.javarosa.core.util.externalizable.StringTableOutputStream;
 
 /**
  * The Localizer object maintains mappings for locale ID's and Object
@@ -55,6 +59,19 @@ public class Localizer implements Externalizable {
     private boolean fallbackDefaultForm;
     private List<Localizable> observers = new ArrayList<>(0);
 
+    /**
+     * The serialized resources of the locales read by readExternal() which haven't been needed since. A form is
+     * usually only shown in one or two of its languages, so the others are only deserialized on first use.
+     */
+    private HashMap<String, byte[]> deferredResources = new HashMap<>(0);
+    private PrototypeFactory deferredPrototypes;
+
+    /**
+     * The strings, mostly itext keys, which the serialized resources of more than one locale have in common. They
+     * are written once, before the locales, and each locale's string table starts with them.
+     */
+    private List<String> sharedStrings = new ArrayList<>(0);
+
     /**
      * Default constructor. Disables all fallback modes.
      */
@@ -79,6 +96,8 @@ public class Localizer implements Externalizable {
     public boolean equals(Object o) {
         if (o instanceof Localizer) {
             Localizer l = (Localizer) o;
+            loadDeferredResources();
+            l.loadDeferredResources();
 
             //TODO: Compare all resources
             return (ExtUtil.equals(locales, locales) &&
@@ -282,7 +301,7 @@ public class Localizer implements Externalizable {
         }
         List<LocaleDataSource> resources;
         if (localeResources.containsKey(locale)) {
-            resources = localeResources.get(locale);
+            resources = getResources(locale);
         } else {
             resources = new ArrayList<>(1);
         }
@@ -319,7 +338,7 @@ public class Localizer implements Externalizable {
         // If there's a default locale, we load all of its elements into memory first, then allow
         // the current locale to overwrite any differences between the two.
         if (fallbackDefaultLocale && defaultLocale != null) {
-            for (LocaleDataSource defaultResource : localeResources.get(defaultLocale)) {
+            for (LocaleDataSource defaultResource : getResources(defaultLocale)) {
                 loadTable(data, defaultResource.getLocalizedText());
             }
             for (String key : data.keySet()) {
@@ -327,7 +346,7 @@ public class Localizer implements Externalizable {
             }
         }
 
-        for (LocaleDataSource resource : localeResources.get(locale)) {
+        for (LocaleDataSource resource : getResources(locale)) {
             loadTable(data, resource.getLocalizedText());
         }
 
@@ -387,7 +406,7 @@ public class Localizer implements Externalizable {
                     "Attempted to access an undefined locale (" + locale + ") while checking for a mapping for  " +
                             textID);
         }
-        for (LocaleDataSource source : localeResources.get(locale)) {
+        for (LocaleDataSource source : getResources(locale)) {
             if (source.getLocalizedText().containsKey(textID)) {
                 return true;
             }
@@ -411,6 +430,7 @@ public class Localizer implements Externalizable {
         boolean removed = hasLocale(locale);
         locales.remove(locale);
         localeResources.remove(locale);
+        deferredResources.remove(locale);
 
         if (locale.equals(defaultLocale))
             defaultLocale = null;
@@ -703,6 +723,64 @@ public class Localizer implements Externalizable {
 
     /* === (DE)SERIALIZATION === */
 
+    /**
+     * Get the resources registered for a locale, deserializing them if that was put off by readExternal().
+     */
+    private List<LocaleDataSource> getResources(String locale) {
+        byte[] serialized = deferredResources.remove(locale);
+        if (serialized != null) {
+            try {
+                localeResources.put(locale, (List<LocaleDataSource>) ExtUtil.read(
+                        new StringTableInputStream(new ByteArrayInputStream(serialized), sharedStrings),
+                        new ExtWrapListPoly(), deferredPrototypes));
+            } catch (IOException | DeserializationException e) {
+                throw new RuntimeException("Error reading the text of locale " + locale + ": " + e.getMessage());
+            }
+        }
+        return localeResources.get(locale);
+    }
+
+    private static byte[] serializeResources(List<LocaleDataSource> resources, List<String> shared) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StringTableOutputStream out = new StringTableOutputStream(bytes, shared);
+        ExtUtil.write(out, new ExtWrapListPoly(resources));
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the strings written in the resources of more than one locale
+     */
+    private List<String> findSharedStrings() throws IOException {
+        // string -> the number of locales whose resources contain it
+        LinkedHashMap<String, Integer> counts = new LinkedHashMap<>();
+        for (List<LocaleDataSource> resources : localeResources.values()) {
+            if (resources == null) {
+                continue;
+            }
+            StringTableOutputStream out = new StringTableOutputStream(new ByteArrayOutputStream());
+            ExtUtil.write(out, new ExtWrapListPoly(resources));
+            for (String val : out.getStrings()) {
+                Integer count = counts.get(val);
+                counts.put(val, count == null ? 1 : count + 1);
+            }
+        }
+
+        List<String> shared = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > 1) {
+                shared.add(entry.getKey());
+            }
+        }
+        return shared;
+    }
+
+    private void loadDeferredResources() {
+        for (String locale : new ArrayList<>(deferredResources.keySet())) {
+            getResources(locale);
+        }
+    }
+
     /**
      * Reads the object from a stream.
      */
@@ -710,8 +788,20 @@ public class Localizer implements Externalizable {
             IOException, DeserializationException {
         fallbackDefaultLocale = ExtUtil.readBool(dis);
         fallbackDefaultForm = ExtUtil.readBool(dis);
-        localeResources = (OrderedMap<String, List<LocaleDataSource>>)
-                ExtUtil.read(dis, new ExtWrapMap(String.class, new ExtWrapListPoly(), ExtWrapMap.TYPE_ORDERED), pf);
+
+        sharedStrings = (List<String>) ExtUtil.read(dis, new ExtWrapList(String.class), pf);
+
+        // only the current and default locales are deserialized here, by setLocale()
+        int numLocales = ExtUtil.readInt(dis);
+        localeResources = new OrderedMap<>();
+        deferredResources = new HashMap<>(numLocales);
+        deferredPrototypes = pf;
+        for (int i = 0; i < numLocales; i++) {
+            String locale = ExtUtil.readString(dis);
+            localeResources.put(locale, null);
+            deferredResources.put(locale, ExtUtil.readBytes(dis));
+        }
+
         locales = (List<String>) ExtUtil.read(dis, new ExtWrapList(String.class));
         setDefaultLocale((String) ExtUtil.read(dis, new ExtWrapNullable(String.class), pf));
         String currentLocale = (String) ExtUtil.read(dis, new ExtWrapNullable(String.class), pf);
@@ -726,7 +816,19 @@ public class Localizer implements Externalizable {
     @Override public void writeExternal(DataOutputStream dos) throws IOException {
         ExtUtil.writeBool(dos, fallbackDefaultLocale);
         ExtUtil.writeBool(dos, fallbackDefaultForm);
-        ExtUtil.write(dos, new ExtWrapMap(localeResources, new ExtWrapListPoly()));
+
+        // the resources still serialized were written with the shared strings they were read with
+        List<String> shared = deferredResources.isEmpty() ? findSharedStrings() : sharedStrings;
+        ExtUtil.write(dos, new ExtWrapList(shared));
+
+        // each locale's resources are length-prefixed, so that they can be read separately
+        ExtUtil.writeNumeric(dos, localeResources.size());
+        for (Map.Entry<String, List<LocaleDataSource>> entry : localeResources.entrySet()) {
+            ExtUtil.writeString(dos, entry.getKey());
+            byte[] serialized = deferredResources.get(entry.getKey());
+            ExtUtil.writeBytes(dos, serialized != null ? serialized : serializeResources(entry.getValue(), shared));
+        }
+
         ExtUtil.write(dos, new ExtWrapList(locales));
         ExtUtil.write(dos, new ExtWrapNullable(defaultLocale));
         ExtUtil.write(dos, new ExtWrapNullable(currentLocale));
@@ -8,4 +8,23 @@ import org.javarosa.core.util.externalizable.Externalizable;
  */
 public interface IStorageIterator<E extends Externalizable> extends Iterator<E>{
 
+    /**
+     * Return the raw bytes of the next record in the set, without deserializing it. Does not advance the
+     * iteration cursor.
+     *
+     * @return serialized form of the next record
+     * @throws IllegalStateException if all records have already been iterated through
+     */
+    byte[] peekBytes ();
+
+    /**
+     * Return the value of a meta-data field of the next record in the set. Storage that keeps the meta-data
+     * of its records apart from them answers without deserializing the record. Does not advance the
+     * iteration cursor.
+     *
+     * @param fieldName name of the meta-data field
+     * @return value of the field, or null if the record has no value for it
+     * @throws IllegalStateException if all records have already been iterated through
+     */
+    Object peekMetaData (String fieldName);
 }
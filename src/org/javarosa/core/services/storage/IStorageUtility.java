@@ -91,6 +91,29 @@ public interface IStorageUtility<E extends Externalizable> {
 
     List<Integer> removeAll (EntityFilter ef);
 
+    /**
+     * Start a batch of writes. Until the batch is committed, the StorageUtility may put off maintaining its
+     * indexes and other derived data, so that storing many records at once updates them only once. Lookups by
+     * index made during a batch may not see the records written in it.
+     *
+     * @throws IllegalStateException if a batch has already been started
+     */
+    void beginBatch ();
+
+    /**
+     * Finish the current batch, making its writes and removals visible to lookups by index.
+     *
+     * @throws IllegalStateException if no batch has been started
+     */
+    void commitBatch ();
+
+    /**
+     * Abandon the current batch, undoing every write and removal made since beginBatch().
+     *
+     * @throws IllegalStateException if no batch has been started
+     */
+    void rollbackBatch ();
+
     /**
      * Return the number of records in the store
      *
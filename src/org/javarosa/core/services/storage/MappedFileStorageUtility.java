@@ -0,0 +1,1077 @@
+package org.javarosa.core.services.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+import org.javarosa.core.util.InvalidIndexException;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.ExtWrapTagged;
+import org.javarosa.core.util.externalizable.Externalizable;
+
+/**
+ * An indexed storage utility which keeps its records in files rather than on the heap, so
+ * that it can hold far more records than would fit in memory.
+ *
+ * The storage is a directory with three files:
+ * <ul>
+ * <li><code>records.dat</code>, an append-only segment of entries, accessed through a
+ * MappedByteBuffer. Every write appends the new version of the record (with its meta-data),
+ * and every removal appends a tombstone, so the segment alone is enough to rebuild the
+ * storage. Each entry has a CRC of its contents.</li>
+ * <li><code>ids.dat</code>, the table from record ids to the offset of their current entry,
+ * also memory-mapped.</li>
+ * <li><code>meta.dat</code>, the meta-data indexes used by getIDsForValue(), written by
+ * close(). Only the indexes are kept on the heap while the storage is open.</li>
+ * </ul>
+ *
+ * The segment header records whether the storage was closed cleanly. If it wasn't, the
+ * storage is repaired when it's opened again: the segment is scanned up to the first damaged
+ * entry, and the id table and the indexes are rebuilt from it. The entries written in a batch
+ * are followed by a commit entry, and are dropped when it's missing. repack() rewrites the
+ * segment without the superseded entries.
+ *
+ * A single segment is limited to 2GB, after which writes throw a StorageFullException.
+ */
+public class MappedFileStorageUtility<E extends Externalizable> implements IStorageUtilityIndexed<E> {
+    private static final String RECORDS_FILE = "records.dat";
+    private static final String IDS_FILE = "ids.dat";
+    private static final String META_FILE = "meta.dat";
+
+    private static final int RECORDS_MAGIC = 0x4a52534d;
+    private static final int IDS_MAGIC = 0x4a524944;
+    private static final int META_MAGIC = 0x4a524d44;
+    private static final int VERSION = 1;
+
+    // magic, version, end of the entries, clean flag
+    private static final int RECORDS_HEADER = 16;
+    private static final int END_OFFSET = 8;
+    private static final int CLEAN_OFFSET = 12;
+
+    // magic, next id
+    private static final int IDS_HEADER = 8;
+
+    // length of the body, id, CRC of the body
+    private static final int ENTRY_HEADER = 12;
+
+    private static final byte KIND_TOMBSTONE = 0;
+    private static final byte KIND_RECORD = 1;
+    // entries written in a batch only count once the commit entry after them is written
+    private static final byte KIND_BATCH_TOMBSTONE = 2;
+    private static final byte KIND_BATCH_RECORD = 3;
+    private static final byte KIND_COMMIT = 4;
+
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private final File directory;
+    private final Class<E> type;
+
+    private RandomAccessFile recordsFile;
+    private MappedByteBuffer records;
+    private RandomAccessFile idsFile;
+    private MappedByteBuffer ids;
+
+    private int end;
+    private int nextId;
+    private int numRecords;
+    private long totalSize;
+    private boolean clean;
+    private boolean readOnly;
+
+    // field name -> value -> ids of the records with that value
+    private HashMap<String, HashMap<Object, List<Integer>>> meta;
+    private final ArrayList<String> dynamicIndices = new ArrayList<String>(0);
+
+    // id -> offset before the current batch of the records written in it, or null outside of a batch
+    private HashMap<Integer, Integer> batchOffsets;
+    private int batchEnd;
+    private int batchNextId;
+    private int batchNumRecords;
+    private long batchTotalSize;
+
+    /**
+     * Opens the storage in the given directory, creating it if needed.
+     *
+     * @param type the class the records are deserialized into
+     */
+    public MappedFileStorageUtility(File directory, Class<E> type) {
+        this.directory = directory;
+        this.type = type;
+        open();
+    }
+
+    private void open() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Couldn't create storage directory " + directory);
+        }
+        try {
+            recordsFile = new RandomAccessFile(new File(directory, RECORDS_FILE), "rw");
+            idsFile = new RandomAccessFile(new File(directory, IDS_FILE), "rw");
+
+            boolean existing = recordsFile.length() >= RECORDS_HEADER;
+            records = map(recordsFile, Math.max(recordsFile.length(), MIN_CAPACITY));
+            ids = map(idsFile, Math.max(idsFile.length(), MIN_CAPACITY));
+
+            if (!existing) {
+                records.putInt(0, RECORDS_MAGIC);
+                records.putInt(4, VERSION);
+                records.putInt(END_OFFSET, RECORDS_HEADER);
+                records.putInt(CLEAN_OFFSET, 1);
+                clearIds();
+            } else if (records.getInt(0) != RECORDS_MAGIC || records.getInt(4) != VERSION) {
+                throw new RuntimeException("Not a storage file: " + new File(directory, RECORDS_FILE));
+            }
+
+            end = records.getInt(END_OFFSET);
+            clean = records.getInt(CLEAN_OFFSET) == 1;
+            if (clean && ids.getInt(0) == IDS_MAGIC && end >= RECORDS_HEADER && end <= records.capacity()) {
+                load();
+            } else {
+                rebuild();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't open storage " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads the id table and the indexes of a storage that was closed cleanly.
+     */
+    private void load() throws IOException {
+        nextId = ids.getInt(4);
+        numRecords = 0;
+        totalSize = 0;
+        for (int id = 0; id < nextId; id++) {
+            int offset = getOffset(id);
+            if (offset != 0) {
+                numRecords++;
+                totalSize += payloadLength(offset);
+            }
+        }
+
+        if (!readMeta()) {
+            rebuildMeta();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#read(int)
+     */
+    public synchronized E read(int id) {
+        byte[] payload = readBytes(id);
+        if (payload == null) {
+            return null;
+        }
+        try {
+            return (E) ExtUtil.deserialize(payload, type);
+        } catch (DeserializationException e) {
+            throw new RuntimeException("Couldn't deserialize record " + id + ": " + e.getMessage());
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#readBytes(int)
+     */
+    public synchronized byte[] readBytes(int id) {
+        int offset = getOffset(id);
+        if (offset == 0) {
+            return null;
+        }
+        byte[] body = readBody(offset);
+        int metaLength = ByteBuffer.wrap(body, 1, 4).getInt();
+        byte[] payload = new byte[body.length - 5 - metaLength];
+        System.arraycopy(body, 5 + metaLength, payload, 0, payload.length);
+        return payload;
+    }
+
+    /**
+     * @return the meta-data stored with the record, without deserializing it, or null if
+     * there is no such record
+     */
+    public synchronized HashMap<String, Object> readMetaData(int id) {
+        int offset = getOffset(id);
+        return offset == 0 ? null : readMetaData(readBody(offset));
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#write(org.javarosa.core.services.storage.Persistable)
+     */
+    public synchronized void write(Persistable p) throws StorageFullException {
+        if (p.getID() == -1) {
+            p.setID(nextId);
+        }
+        store(p.getID(), (E) p);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#add(org.javarosa.core.util.externalizable.Externalizable)
+     */
+    public synchronized int add(E e) throws StorageFullException {
+        int id = nextId;
+        store(id, e);
+        return id;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#update(int, org.javarosa.core.util.externalizable.Externalizable)
+     */
+    public synchronized void update(int id, E e) throws StorageFullException {
+        store(id, e);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#remove(int)
+     */
+    public synchronized void remove(int id) {
+        checkWritable();
+        int offset = getOffset(id);
+        if (offset == 0) {
+            return;
+        }
+        replacing(id, offset);
+        append(id, new byte[] {batchOffsets == null ? KIND_TOMBSTONE : KIND_BATCH_TOMBSTONE});
+        setOffset(id, 0);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#remove(org.javarosa.core.services.storage.Persistable)
+     */
+    public synchronized void remove(Persistable p) {
+        remove(p.getID());
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#removeAll()
+     */
+    public synchronized void removeAll() {
+        checkWritable();
+        checkNoBatch("removeAll()");
+        closeFiles();
+        new File(directory, RECORDS_FILE).delete();
+        new File(directory, IDS_FILE).delete();
+        new File(directory, META_FILE).delete();
+        open();
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#removeAll(org.javarosa.core.services.storage.EntityFilter)
+     */
+    public synchronized List<Integer> removeAll(EntityFilter ef) {
+        List<Integer> removed = new ArrayList<Integer>();
+        for (int id = 0; id < nextId; id++) {
+            int offset = getOffset(id);
+            if (offset == 0) {
+                continue;
+            }
+            switch (ef.preFilter(id, readMetaData(readBody(offset)))) {
+            case EntityFilter.PREFILTER_INCLUDE:
+                removed.add(id);
+                continue;
+            case EntityFilter.PREFILTER_EXCLUDE:
+                continue;
+            }
+            if (ef.matches(read(id))) {
+                removed.add(id);
+            }
+        }
+        for (Integer id : removed) {
+            remove(id.intValue());
+        }
+        return removed;
+    }
+
+    /**
+     * Starts a batch. The indexes are brought up to date once, when the batch is committed, and
+     * if the storage isn't closed before then, the batch is left out when it's repaired.
+     * removeAll(), repack(), registerIndex() and close() can't be used during a batch.
+     */
+    public synchronized void beginBatch() {
+        checkNoBatch("beginBatch()");
+        batchOffsets = new HashMap<Integer, Integer>();
+        batchEnd = end;
+        batchNextId = nextId;
+        batchNumRecords = numRecords;
+        batchTotalSize = totalSize;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#commitBatch()
+     */
+    public synchronized void commitBatch() {
+        checkBatch();
+        if (end != batchEnd) {
+            append(0, new byte[] {KIND_COMMIT});
+        }
+        HashMap<Integer, Integer> changed = batchOffsets;
+        batchOffsets = null;
+        for (Map.Entry<Integer, Integer> change : changed.entrySet()) {
+            int id = change.getKey();
+            if (change.getValue() != 0) {
+                unindex(id, readMetaData(readBody(change.getValue())));
+            }
+            int offset = getOffset(id);
+            if (offset != 0) {
+                index(id, readMetaData(readBody(offset)));
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#rollbackBatch()
+     */
+    public synchronized void rollbackBatch() {
+        checkBatch();
+        for (Map.Entry<Integer, Integer> change : batchOffsets.entrySet()) {
+            setOffset(change.getKey(), change.getValue());
+        }
+        batchOffsets = null;
+        nextId = batchNextId;
+        ids.putInt(4, nextId);
+        numRecords = batchNumRecords;
+        totalSize = batchTotalSize;
+        zero(records, batchEnd, end);
+        end = batchEnd;
+        records.putInt(END_OFFSET, end);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#getNumRecords()
+     */
+    public synchronized int getNumRecords() {
+        return numRecords;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#isEmpty()
+     */
+    public synchronized boolean isEmpty() {
+        return numRecords == 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#exists(int)
+     */
+    public synchronized boolean exists(int id) {
+        return getOffset(id) != 0;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#getTotalSize()
+     */
+    public synchronized int getTotalSize() {
+        return (int) totalSize;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#getRecordSize(int)
+     */
+    public synchronized int getRecordSize(int id) {
+        int offset = getOffset(id);
+        return offset == 0 ? 0 : payloadLength(offset);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#iterate()
+     */
+    public synchronized IStorageIterator<E> iterate() {
+        int[] live = new int[numRecords];
+        int n = 0;
+        for (int id = 0; id < nextId && n < live.length; id++) {
+            if (getOffset(id) != 0) {
+                live[n++] = id;
+            }
+        }
+        return new MappedFileStorageIterator(live);
+    }
+
+    /**
+     * Writes the indexes and marks the storage as cleanly closed. The storage stays usable.
+     */
+    public synchronized void close() {
+        checkNoBatch("close()");
+        if (clean) {
+            return;
+        }
+        try {
+            writeMeta();
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't write the indexes of " + directory + ": " + e.getMessage());
+        }
+        ids.force();
+        records.force();
+        records.putInt(CLEAN_OFFSET, 1);
+        records.force();
+        clean = true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#destroy()
+     */
+    public synchronized void destroy() {
+        closeFiles();
+        new File(directory, RECORDS_FILE).delete();
+        new File(directory, IDS_FILE).delete();
+        new File(directory, META_FILE).delete();
+        directory.delete();
+    }
+
+    /**
+     * Rewrites the segment with only the current entry of each record, in id order.
+     *
+     * The packed segment is written next to the old one, which is marked as not cleanly closed
+     * first, and the id table is only pointed at the packed entries once the packed segment has
+     * replaced the old one. If repacking stops on the way, the storage is repaired from
+     * whichever segment is in place when it's opened again.
+     */
+    public synchronized void repack() {
+        checkWritable();
+        checkNoBatch("repack()");
+        markDirty();
+        File current = new File(directory, RECORDS_FILE);
+        File packed = new File(directory, RECORDS_FILE + ".tmp");
+        try {
+            RandomAccessFile packedFile = new RandomAccessFile(packed, "rw");
+            packedFile.setLength(0);
+            MappedByteBuffer packedRecords = map(packedFile, Math.max(end, MIN_CAPACITY));
+            packedRecords.putInt(0, RECORDS_MAGIC);
+            packedRecords.putInt(4, VERSION);
+            packedRecords.putInt(CLEAN_OFFSET, 0);
+
+            int[] packedOffsets = new int[nextId];
+            int packedEnd = RECORDS_HEADER;
+            for (int id = 0; id < nextId; id++) {
+                int offset = getOffset(id);
+                if (offset == 0) {
+                    continue;
+                }
+                // the packed segment has no batches, so records written in one need a new kind
+                byte[] body = readBody(offset);
+                body[0] = KIND_RECORD;
+                writeEntry(packedRecords, packedEnd, id, body);
+                packedOffsets[id] = packedEnd;
+                packedEnd += ENTRY_HEADER + body.length;
+            }
+            packedRecords.putInt(END_OFFSET, packedEnd);
+            packedRecords.force();
+
+            recordsFile.close();
+            if (!replaceSegment(packed, current)) {
+                recordsFile = new RandomAccessFile(current, "rw");
+                packedFile.close();
+                packed.delete();
+                throw new IOException("couldn't replace " + RECORDS_FILE);
+            }
+            recordsFile = packedFile;
+            records = packedRecords;
+            end = packedEnd;
+            for (int id = 0; id < nextId; id++) {
+                if (packedOffsets[id] != 0) {
+                    setOffset(id, packedOffsets[id]);
+                }
+            }
+            ids.force();
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't repack " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the packed segment over the current one, whose file is closed.
+     *
+     * @return false if it couldn't be moved, leaving the current segment in place
+     */
+    protected boolean replaceSegment(File packed, File current) {
+        return packed.renameTo(current);
+    }
+
+    /**
+     * Rebuilds the id table and the indexes from the segment, dropping any damaged entries at
+     * its end. This happens automatically when a storage that wasn't closed is opened.
+     */
+    public synchronized void repair() {
+        try {
+            rebuild();
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't repair " + directory + ": " + e.getMessage());
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#getAccessLock()
+     */
+    public Object getAccessLock() {
+        return this;
+    }
+
+    /**
+     * Makes every later modification of the storage throw an IllegalStateException.
+     */
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtilityIndexed#getIDsForValue(java.lang.String, java.lang.Object)
+     */
+    public synchronized List<Integer> getIDsForValue(String fieldName, Object value) {
+        HashMap<Object, List<Integer>> values = meta.get(fieldName);
+        List<Integer> matches = values == null ? null : values.get(value);
+        return matches == null ? new ArrayList<Integer>(0) : new ArrayList<Integer>(matches);
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtilityIndexed#getRecordForValue(java.lang.String, java.lang.Object)
+     */
+    public synchronized E getRecordForValue(String fieldName, Object value) throws NoSuchElementException, InvalidIndexException {
+        List<Integer> matches = getIDsForValue(fieldName, value);
+        if (matches.size() == 0) {
+            throw new NoSuchElementException("No record matching meta index " + fieldName + " with value " + value);
+        }
+        if (matches.size() > 1) {
+            throw new InvalidIndexException("Multiple records matching meta index " + fieldName + " with value " + value, fieldName);
+        }
+        return read(matches.get(0));
+    }
+
+    /**
+     * Indexes the records by the given meta-data field, in addition to their own fields. The
+     * records written before the index was registered are read again to index them.
+     */
+    public synchronized void registerIndex(String filterIndex) {
+        if (dynamicIndices.contains(filterIndex)) {
+            return;
+        }
+        checkNoBatch("registerIndex()");
+        dynamicIndices.add(filterIndex);
+        if (!meta.containsKey(filterIndex)) {
+            HashMap<Object, List<Integer>> values = new HashMap<Object, List<Integer>>();
+            meta.put(filterIndex, values);
+            for (int id = 0; id < nextId; id++) {
+                if (getOffset(id) != 0) {
+                    E e = read(id);
+                    if (e instanceof IMetaData) {
+                        addToIndex(values, ((IMetaData) e).getMetaData(filterIndex), id);
+                    }
+                }
+            }
+            clean = false;
+        }
+    }
+
+    // writing
+
+    private void store(int id, E e) {
+        checkWritable();
+        HashMap<String, Object> metaData = getMetaData(e);
+
+        replacing(id, getOffset(id));
+
+        byte[] body;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(batchOffsets == null ? KIND_RECORD : KIND_BATCH_RECORD);
+            byte[] metaBytes = serializeMetaData(metaData);
+            out.writeInt(metaBytes.length);
+            out.write(metaBytes);
+            e.writeExternal(out);
+            out.flush();
+            body = bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new RuntimeException("Couldn't serialize record " + id + ": " + ioe.getMessage());
+        }
+
+        int offset = append(id, body);
+        setOffset(id, offset);
+        numRecords++;
+        totalSize += payloadLength(offset);
+        if (batchOffsets == null) {
+            index(id, metaData);
+        }
+    }
+
+    /**
+     * Takes the current version of a record, if any, out of the count and the indexes, before
+     * it's replaced or removed. In a batch, the indexes are left for commitBatch().
+     */
+    private void replacing(int id, int offset) {
+        if (batchOffsets != null && !batchOffsets.containsKey(id)) {
+            batchOffsets.put(id, offset);
+        }
+        if (offset != 0) {
+            if (batchOffsets == null) {
+                unindex(id, readMetaData(readBody(offset)));
+            }
+            numRecords--;
+            totalSize -= payloadLength(offset);
+        }
+    }
+
+    /**
+     * Appends an entry to the segment.
+     *
+     * @return the offset of the entry
+     */
+    private int append(int id, byte[] body) {
+        markDirty();
+        long newEnd = (long) end + ENTRY_HEADER + body.length;
+        if (newEnd > Integer.MAX_VALUE) {
+            throw new StorageFullException();
+        }
+        records = ensureCapacity(recordsFile, records, (int) newEnd);
+
+        int offset = end;
+        writeEntry(records, offset, id, body);
+        end = (int) newEnd;
+        records.putInt(END_OFFSET, end);
+        if (id >= nextId) {
+            nextId = id + 1;
+            ids.putInt(4, nextId);
+        }
+        return offset;
+    }
+
+    private static void writeEntry(ByteBuffer buffer, int offset, int id, byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        buffer.putInt(offset, body.length);
+        buffer.putInt(offset + 4, id);
+        buffer.putInt(offset + 8, (int) crc.getValue());
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset + ENTRY_HEADER);
+        target.put(body);
+    }
+
+    private void markDirty() {
+        if (clean) {
+            records.putInt(CLEAN_OFFSET, 0);
+            records.force();
+            clean = false;
+        }
+    }
+
+    private void checkWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("Storage " + directory + " is read-only");
+        }
+    }
+
+    private void checkBatch() {
+        if (batchOffsets == null) {
+            throw new IllegalStateException("No batch has been started");
+        }
+    }
+
+    private void checkNoBatch(String operation) {
+        if (batchOffsets != null) {
+            throw new IllegalStateException(operation + " can't be used during a batch");
+        }
+    }
+
+    // entries and the id table
+
+    private int getOffset(int id) {
+        if (id < 0 || id >= nextId) {
+            return 0;
+        }
+        return ids.getInt(IDS_HEADER + id * 4);
+    }
+
+    private void setOffset(int id, int offset) {
+        ids = ensureCapacity(idsFile, ids, IDS_HEADER + (id + 1) * 4);
+        ids.putInt(IDS_HEADER + id * 4, offset);
+    }
+
+    private void clearIds() {
+        zero(ids, 0, ids.capacity());
+        ids.putInt(0, IDS_MAGIC);
+        ids.putInt(4, 0);
+        nextId = 0;
+    }
+
+    private byte[] readBody(int offset) {
+        byte[] body = new byte[records.getInt(offset)];
+        ByteBuffer source = records.duplicate();
+        source.position(offset + ENTRY_HEADER);
+        source.get(body);
+        return body;
+    }
+
+    private int payloadLength(int offset) {
+        return records.getInt(offset) - 5 - records.getInt(offset + ENTRY_HEADER + 1);
+    }
+
+    /**
+     * Scans the segment from the start, stopping at the first damaged entry, and rebuilds the
+     * id table and the indexes from the entries before it.
+     */
+    private void rebuild() throws IOException {
+        // an unfinished batch is dropped along with the damaged entries
+        batchOffsets = null;
+        clearIds();
+        numRecords = 0;
+        totalSize = 0;
+
+        int offset = RECORDS_HEADER;
+        // the entries of the batch being scanned, as pairs of ids and offsets
+        ArrayList<int[]> batch = new ArrayList<int[]>();
+        int batchStart = offset;
+        CRC32 crc = new CRC32();
+        while (offset <= records.capacity() - ENTRY_HEADER) {
+            int length = records.getInt(offset);
+            if (length <= 0 || length > records.capacity() - offset - ENTRY_HEADER) {
+                break;
+            }
+            int id = records.getInt(offset + 4);
+            byte[] body = readBody(offset);
+            crc.reset();
+            crc.update(body, 0, body.length);
+            if (id < 0 || records.getInt(offset + 8) != (int) crc.getValue()) {
+                break;
+            }
+
+            if (body[0] == KIND_BATCH_RECORD || body[0] == KIND_BATCH_TOMBSTONE) {
+                if (batch.isEmpty()) {
+                    batchStart = offset;
+                }
+                batch.add(new int[] {id, offset});
+            } else if (body[0] == KIND_COMMIT) {
+                for (int[] entry : batch) {
+                    replay(entry[0], entry[1]);
+                }
+                batch.clear();
+            } else {
+                replay(id, offset);
+            }
+            offset += ENTRY_HEADER + length;
+        }
+        if (!batch.isEmpty()) {
+            // the batch was never committed
+            offset = batchStart;
+        }
+
+        // clear whatever follows, so that old entries can't come back in a later scan
+        zero(records, offset, records.capacity());
+
+        end = offset;
+        records.putInt(END_OFFSET, end);
+        clean = false;
+        rebuildMeta();
+    }
+
+    /**
+     * Applies an entry of the segment to the id table and the counts.
+     */
+    private void replay(int id, int offset) {
+        if (id >= nextId) {
+            nextId = id + 1;
+            ids.putInt(4, nextId);
+        }
+        int old = getOffset(id);
+        if (old != 0) {
+            numRecords--;
+            totalSize -= payloadLength(old);
+        }
+        byte kind = records.get(offset + ENTRY_HEADER);
+        if (kind == KIND_RECORD || kind == KIND_BATCH_RECORD) {
+            setOffset(id, offset);
+            numRecords++;
+            totalSize += payloadLength(offset);
+        } else {
+            setOffset(id, 0);
+        }
+    }
+
+    private static void zero(ByteBuffer buffer, int from, int to) {
+        ByteBuffer zeros = ByteBuffer.allocate(4096);
+        ByteBuffer target = buffer.duplicate();
+        target.position(from);
+        target.limit(to);
+        while (target.hasRemaining()) {
+            zeros.clear();
+            zeros.limit(Math.min(zeros.capacity(), target.remaining()));
+            target.put(zeros);
+        }
+    }
+
+    private static MappedByteBuffer map(RandomAccessFile file, long capacity) throws IOException {
+        if (file.length() < capacity) {
+            file.setLength(capacity);
+        }
+        return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    private static MappedByteBuffer ensureCapacity(RandomAccessFile file, MappedByteBuffer buffer, int needed) {
+        if (needed <= buffer.capacity()) {
+            return buffer;
+        }
+        long capacity = Math.min(Math.max((long) buffer.capacity() * 2, needed), Integer.MAX_VALUE);
+        try {
+            buffer.force();
+            return map(file, capacity);
+        } catch (IOException e) {
+            throw new StorageFullException();
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            records.force();
+            ids.force();
+            recordsFile.close();
+            idsFile.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't close storage " + directory + ": " + e.getMessage());
+        }
+    }
+
+    // meta-data
+
+    private HashMap<String, Object> getMetaData(E e) {
+        HashMap<String, Object> metaData = new HashMap<String, Object>();
+        // records written through a WrappingStorageUtility whose wrapper has no meta-data
+        if (e instanceof FauxIndexedPersistable && ((FauxIndexedPersistable) e).m == null) {
+            return metaData;
+        }
+        if (e instanceof IMetaData) {
+            IMetaData m = (IMetaData) e;
+            for (String field : m.getMetaDataFields()) {
+                metaData.put(field, m.getMetaData(field));
+            }
+            for (String field : dynamicIndices) {
+                if (!metaData.containsKey(field)) {
+                    metaData.put(field, m.getMetaData(field));
+                }
+            }
+        }
+        return metaData;
+    }
+
+    private static byte[] serializeMetaData(HashMap<String, Object> metaData) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = 0;
+        for (Object value : metaData.values()) {
+            if (value != null) {
+                count++;
+            }
+        }
+        ExtUtil.writeNumeric(out, count);
+        for (Map.Entry<String, Object> field : metaData.entrySet()) {
+            if (field.getValue() != null) {
+                ExtUtil.writeString(out, field.getKey());
+                ExtUtil.write(out, new ExtWrapTagged(field.getValue()));
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static HashMap<String, Object> readMetaData(byte[] body) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, 5, ByteBuffer.wrap(body, 1, 4).getInt()));
+        try {
+            int count = ExtUtil.readInt(in);
+            HashMap<String, Object> metaData = new HashMap<String, Object>(count);
+            for (int i = 0; i < count; i++) {
+                String field = ExtUtil.readString(in);
+                metaData.put(field, ExtUtil.read(in, new ExtWrapTagged()));
+            }
+            return metaData;
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't read the meta-data of a record: " + e.getMessage());
+        } catch (DeserializationException e) {
+            throw new RuntimeException("Couldn't read the meta-data of a record: " + e.getMessage());
+        }
+    }
+
+    private void index(int id, HashMap<String, Object> metaData) {
+        for (Map.Entry<String, Object> field : metaData.entrySet()) {
+            HashMap<Object, List<Integer>> values = meta.get(field.getKey());
+            if (values == null) {
+                values = new HashMap<Object, List<Integer>>();
+                meta.put(field.getKey(), values);
+            }
+            addToIndex(values, field.getValue(), id);
+        }
+    }
+
+    private static void addToIndex(HashMap<Object, List<Integer>> values, Object value, int id) {
+        if (value == null) {
+            return;
+        }
+        List<Integer> matches = values.get(value);
+        if (matches == null) {
+            matches = new ArrayList<Integer>(1);
+            values.put(value, matches);
+        }
+        matches.add(id);
+    }
+
+    private void unindex(int id, HashMap<String, Object> metaData) {
+        for (Map.Entry<String, Object> field : metaData.entrySet()) {
+            HashMap<Object, List<Integer>> values = meta.get(field.getKey());
+            List<Integer> matches = values == null ? null : values.get(field.getValue());
+            if (matches != null) {
+                matches.remove(Integer.valueOf(id));
+                if (matches.isEmpty()) {
+                    values.remove(field.getValue());
+                }
+            }
+        }
+    }
+
+    private void rebuildMeta() {
+        meta = new HashMap<String, HashMap<Object, List<Integer>>>();
+        for (String field : dynamicIndices) {
+            meta.put(field, new HashMap<Object, List<Integer>>());
+        }
+        for (int id = 0; id < nextId; id++) {
+            int offset = getOffset(id);
+            if (offset != 0) {
+                index(id, readMetaData(readBody(offset)));
+            }
+        }
+    }
+
+    private void writeMeta() throws IOException {
+        File temp = new File(directory, META_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(META_MAGIC);
+            out.writeInt(end);
+            ExtUtil.writeNumeric(out, dynamicIndices.size());
+            for (String field : dynamicIndices) {
+                ExtUtil.writeString(out, field);
+            }
+            ExtUtil.writeNumeric(out, meta.size());
+            for (Map.Entry<String, HashMap<Object, List<Integer>>> field : meta.entrySet()) {
+                ExtUtil.writeString(out, field.getKey());
+                ExtUtil.writeNumeric(out, field.getValue().size());
+                for (Map.Entry<Object, List<Integer>> value : field.getValue().entrySet()) {
+                    ExtUtil.write(out, new ExtWrapTagged(value.getKey()));
+                    ExtUtil.writeNumeric(out, value.getValue().size());
+                    for (Integer id : value.getValue()) {
+                        ExtUtil.writeNumeric(out, id);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        File file = new File(directory, META_FILE);
+        file.delete();
+        if (!temp.renameTo(file)) {
+            throw new IOException("couldn't replace " + META_FILE);
+        }
+    }
+
+    /**
+     * @return whether the indexes were read from a file matching the segment
+     */
+    private boolean readMeta() throws IOException {
+        File file = new File(directory, META_FILE);
+        if (!file.exists()) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != META_MAGIC || in.readInt() != end) {
+                return false;
+            }
+            dynamicIndices.clear();
+            int numIndices = ExtUtil.readInt(in);
+            for (int i = 0; i < numIndices; i++) {
+                dynamicIndices.add(ExtUtil.readString(in));
+            }
+            int numFields = ExtUtil.readInt(in);
+            meta = new HashMap<String, HashMap<Object, List<Integer>>>(numFields);
+            for (int i = 0; i < numFields; i++) {
+                String field = ExtUtil.readString(in);
+                int numValues = ExtUtil.readInt(in);
+                HashMap<Object, List<Integer>> values = new HashMap<Object, List<Integer>>(numValues);
+                for (int j = 0; j < numValues; j++) {
+                    Object value = ExtUtil.read(in, new ExtWrapTagged());
+                    int numIds = ExtUtil.readInt(in);
+                    List<Integer> matches = new ArrayList<Integer>(numIds);
+                    for (int k = 0; k < numIds; k++) {
+                        matches.add(ExtUtil.readInt(in));
+                    }
+                    values.put(value, matches);
+                }
+                meta.put(field, values);
+            }
+            return true;
+        } catch (DeserializationException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    private class MappedFileStorageIterator implements IStorageIterator<E> {
+        private final int[] ids;
+        private int count;
+
+        MappedFileStorageIterator(int[] ids) {
+            this.ids = ids;
+        }
+
+        public int numRecords() {
+            return ids.length;
+        }
+
+        public int peekID() {
+            return ids[count];
+        }
+
+        public int nextID() {
+            return ids[count++];
+        }
+
+        public E nextRecord() {
+            return read(nextID());
+        }
+
+        public byte[] peekBytes() {
+            return readBytes(peekID());
+        }
+
+        /**
+         * Answers from the meta-data stored with the record, only deserializing it for fields
+         * which weren't stored.
+         */
+        public Object peekMetaData(String fieldName) {
+            HashMap<String, Object> metaData = readMetaData(peekID());
+            if (metaData == null) {
+                // removed since the iterator was created
+                return null;
+            }
+            if (metaData.containsKey(fieldName)) {
+                return metaData.get(fieldName);
+            }
+            E e = read(peekID());
+            return e instanceof IMetaData ? ((IMetaData) e).getMetaData(fieldName) : null;
+        }
+
+        public boolean hasMore() {
+            return count < ids.length;
+        }
+    }
+}
@@ -127,6 +127,14 @@ public class WrappingStorageUtility implements IStorageUtilityIndexed {
             public int peekID() {
                 return baseIterator.peekID();
             }
+
+            public byte[] peekBytes() {
+                return baseIterator.peekBytes();
+            }
+
+            public Object peekMetaData(String fieldName) {
+                return baseIterator.peekMetaData(fieldName);
+            }
         };
     }
 
@@ -152,6 +160,18 @@ public class WrappingStorageUtility implements IStorageUtilityIndexed {
         return storage.removeAll(ef);
     }
 
+    public void beginBatch() {
+        storage.beginBatch();
+    }
+
+    public void commitBatch() {
+        storage.commitBatch();
+    }
+
+    public void rollbackBatch() {
+        storage.rollbackBatch();
+    }
+
     public boolean exists(int id) {
         return storage.exists(id);
     }
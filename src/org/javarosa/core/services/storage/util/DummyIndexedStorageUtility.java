@@ -34,6 +34,11 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
 
     int curCount;
 
+    /** the records as they were when the current batch was started, or null outside of a batch */
+    private Hashtable<Integer, T> batchData;
+
+    private int batchCount;
+
     public DummyIndexedStorageUtility() {
         meta = new Hashtable<String, Hashtable<Object, ArrayList<Integer>>>();
         data = new Hashtable<Integer, T>();
@@ -265,7 +270,46 @@ public class DummyIndexedStorageUtility<T extends Persistable> implements IStora
         }
     }
 
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#beginBatch()
+     */
+    public void beginBatch() {
+        if(batchData != null) {
+            throw new IllegalStateException("A batch has already been started");
+        }
+        batchData = new Hashtable<Integer, T>(data);
+        batchCount = curCount;
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#commitBatch()
+     */
+    public void commitBatch() {
+        if(batchData == null) {
+            throw new IllegalStateException("No batch has been started");
+        }
+        batchData = null;
+        syncMeta();
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageUtility#rollbackBatch()
+     */
+    public void rollbackBatch() {
+        if(batchData == null) {
+            throw new IllegalStateException("No batch has been started");
+        }
+        data = batchData;
+        curCount = batchCount;
+        batchData = null;
+        syncMeta();
+    }
+
     private void syncMeta() {
+        //The indices are rebuilt once the batch is committed
+        if(batchData != null) {
+            return;
+        }
         meta.clear();
         for(Enumeration<Integer> en = data.keys(); en.hasMoreElements() ; ) {
             Integer i = en.nextElement();
@@ -3,9 +3,13 @@
  */
 package org.javarosa.core.services.storage.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Enumeration;
 import java.util.Hashtable;
 
+import org.javarosa.core.services.storage.IMetaData;
 import org.javarosa.core.services.storage.IStorageIterator;
 import org.javarosa.core.services.storage.Persistable;
 import org.javarosa.core.util.DataUtil;
@@ -64,4 +68,28 @@ public class DummyStorageIterator<T extends Persistable> implements IStorageIter
         return keys[count];
     }
 
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageIterator#peekBytes()
+     */
+    public byte[] peekBytes() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            data.get(keys[count]).writeExternal(new DataOutputStream(stream));
+            return stream.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't serialize data to return to peekBytes");
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see org.javarosa.core.services.storage.IStorageIterator#peekMetaData(java.lang.String)
+     */
+    public Object peekMetaData(String fieldName) {
+        T record = data.get(keys[count]);
+        if(record instanceof IMetaData) {
+            return ((IMetaData)record).getMetaData(fieldName);
+        }
+        return null;
+    }
+
 }
@@ -3,131 +3,125 @@
  */
 package org.javarosa.core.util;
 
-import org.javarosa.core.io.Std;
-
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.Enumeration;
-import java.util.Hashtable;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * A table for interning objects, which holds them weakly, so that it never keeps an object alive
+ * on its own.
+ *
+ * Lookups don't lock, so the table can be shared by threads which deserialize or parse in
+ * parallel. Entries are compared with equals(), so objects whose hash codes collide are interned
+ * correctly. The entries of collected objects are purged by the threads using the table, as
+ * their references come off a ReferenceQueue.
+ *
  * @author ctsims
  *
  */
 public class CacheTable<K> {
-    int totalAdditions = 0;
-
-    // Object is actually K...
-    private Hashtable<Integer, WeakReference<Object>> currentTable;
-
-    private static Vector<WeakReference<CacheTable<?>>> caches = new Vector<WeakReference<CacheTable<?>>>(1);
+    private final ConcurrentHashMap<WeakKey<K>, WeakKey<K>> table = new ConcurrentHashMap<WeakKey<K>, WeakKey<K>>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
 
-    private static Thread cleaner = new Thread(new Runnable() {
-        public void run() {
-            Vector<Integer> toRemove = new Vector<Integer>();
-            while(true) {
-                try {
-                    toRemove.removeAllElements();
-                    for (int i = 0; i < caches.size(); ++i) {
-                        CacheTable<?> cache = caches.elementAt(i).get();
-                        if (cache == null) {
-                            toRemove.addElement(DataUtil.integer(i));
-                        } else {
-                            Hashtable<Integer, WeakReference<Object>> table = cache.currentTable;
-                            for (Enumeration<Integer> en = table.keys(); en.hasMoreElements();) {
-                                Integer key = en.nextElement();
-
-                                synchronized(cache) {
-                                    //See whether or not the cached reference has been cleared by the GC
-                                    if (table.get(key).get() == null) {
-                                            //If so, remove the entry, it's no longer useful.
-                                            table.remove(key);
-                                    }
-                                }
-                            }
+    public CacheTable() {
+        super();
+    }
 
-                            synchronized(cache) {
-                                //See if our current size is 25% the size of the largest size we've been
-                                //and compact (clone to a new table) if so, since the table maintains the
-                                //largest size it has ever been.
-                                //TODO: 50 is a super arbitrary upper bound
-                                if(cache.totalAdditions > 50 && cache.totalAdditions - cache.currentTable.size() > (cache.currentTable.size() >> 2) ) {
-                                    Hashtable<Integer,WeakReference<Object>> newTable = new Hashtable<Integer,WeakReference<Object>>(cache.currentTable.size());
-                                    int oldMax = cache.totalAdditions;
-                                    for (Enumeration<Integer> en = table.keys(); en.hasMoreElements();) {
-                                        Integer key = en.nextElement();
-                                        newTable.put(key, cache.currentTable.get(key));
-                                    }
-                                    cache.currentTable = newTable;
-                                    cache.totalAdditions = cache.currentTable.size();
-                                }
-                            }
+    /**
+     * @return the object in the table which equals k, or k itself after adding it to the table
+     */
+    public K intern(K k) {
+        purge();
 
-                        }
-                    }
-                    for (int id = toRemove.size() - 1; id >= 0; --id) {
-                        caches.removeElementAt(toRemove.elementAt(id));
-                    }
-                    try {
-                        Thread.sleep(3000);
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        Std.printStack(e);
-                    }
-                } catch (Exception e) {
-                    Std.printStack(e);
-                }
+        WeakKey<K> existing = table.get(new WeakKey<K>(k, null));
+        if (existing != null) {
+            K current = existing.get();
+            if (current != null) {
+                return current;
             }
-
         }
-    });
 
-    private static void registerCache(CacheTable<?> table) {
-        caches.addElement(new WeakReference<CacheTable<?>>(table));
-        synchronized(cleaner) {
-            if(!cleaner.isAlive()) {
-                cleaner.start();
+        WeakKey<K> key = new WeakKey<K>(k, queue);
+        while (true) {
+            existing = table.putIfAbsent(key, key);
+            if (existing == null) {
+                return k;
+            }
+            K current = existing.get();
+            if (current != null) {
+                return current;
             }
+            // collected, but not purged yet
+            table.remove(existing, existing);
         }
     }
 
-    public CacheTable() {
-        super();
-        currentTable = new Hashtable<Integer, WeakReference<Object>>();
-        registerCache(this);
-    }
-
-    public K intern(K k) {
-        synchronized(this) {
-            int hash = k.hashCode();
-            K nk = retrieve(hash);
-            if(nk == null) {
-                register(hash, k);
+    /**
+     * @return an object in the table whose hash code is key, or null if there is none
+     * @deprecated objects are found by equality; use intern()
+     */
+    @Deprecated
+    public K retrieve(int key) {
+        for (WeakKey<K> entry : table.keySet()) {
+            K k = entry.get();
+            if (k != null && entry.hash == key) {
                 return k;
             }
-            if(k.equals(nk)) {
-                return nk;
-            } else {
-                //Collision. We should deal with this better for interning (and not manually caching) tables.
-            }
-            return k;
         }
+        return null;
+    }
+
+    /**
+     * Adds an object to the table, unless there is already one which equals it.
+     *
+     * @deprecated objects are found by equality, so key is ignored; use intern()
+     */
+    @Deprecated
+    public void register(int key, K item) {
+        intern(item);
     }
 
+    /**
+     * @return the number of objects in the table
+     */
+    public int size() {
+        purge();
+        return table.size();
+    }
 
-    public K retrieve(int key) {
-        synchronized(this) {
-            if(!currentTable.containsKey(DataUtil.integer(key))) { return null; }
-            K retVal = (K)currentTable.get(DataUtil.integer(key)).get();
-            if(retVal == null) { currentTable.remove(DataUtil.integer(key)); }
-            return retVal;
+    private void purge() {
+        Reference<? extends K> collected;
+        while ((collected = queue.poll()) != null) {
+            table.remove(collected);
         }
     }
 
-    public void register(int key, K item) {
-        synchronized(this) {
-            currentTable.put(DataUtil.integer(key), new WeakReference<Object>(item));
-            totalAdditions++;
+    /**
+     * A weak reference which is equal to the references to equal objects. Once its object is
+     * collected, it is only equal to itself.
+     */
+    private static class WeakKey<K> extends WeakReference<K> {
+        final int hash;
+
+        WeakKey(K k, ReferenceQueue<K> queue) {
+            super(k, queue);
+            hash = k.hashCode();
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof WeakKey) || ((WeakKey<?>) o).hash != hash) {
+                return false;
+            }
+            K k = get();
+            return k != null && k.equals(((WeakKey<?>) o).get());
         }
     }
 }
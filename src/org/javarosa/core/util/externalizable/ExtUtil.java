@@ -120,12 +120,32 @@ public class ExtUtil {
         }
     }
 
+    /**
+     * Writes data tagged with its type, as an ExtWrapTagged does. Through a StringTableOutputStream,
+     * an object written there before is written as a reference to it instead, so that an object
+     * shared by several others is written once. Read with readShared().
+     */
+    public static void writeShared(DataOutputStream out, Object data) throws IOException {
+        if (out instanceof StringTableOutputStream) {
+            ((StringTableOutputStream) out).writeTableObject(data);
+        } else {
+            write(out, new ExtWrapTagged(data));
+        }
+    }
+
     public static void writeNumeric(DataOutputStream out, long val) throws IOException {
-        writeNumeric(out, val, new ExtWrapIntEncodingUniform());
+        ExtWrapIntEncodingUniform.encode(out, val);
     }
 
     public static void writeNumeric(DataOutputStream out, long val, ExtWrapIntEncoding encoding) throws IOException {
-        write(out, encoding.clone(val));
+        //the built-in encodings are written directly, so they don't need a wrapper per value
+        if (encoding instanceof ExtWrapIntEncodingUniform) {
+            ExtWrapIntEncodingUniform.encode(out, val);
+        } else if (encoding instanceof ExtWrapIntEncodingSmall) {
+            ExtWrapIntEncodingSmall.encode(out, val, ((ExtWrapIntEncodingSmall) encoding).bias);
+        } else {
+            write(out, encoding.clone(val));
+        }
     }
 
     public static void writeChar(DataOutputStream out, char val) throws IOException {
@@ -141,8 +161,11 @@ public class ExtUtil {
     }
 
     public static void writeString(DataOutputStream out, String val) throws IOException {
-        out.writeUTF(val);
-        //we could easily come up with more efficient default encoding for string
+        if (out instanceof StringTableOutputStream) {
+            ((StringTableOutputStream) out).writeTableString(val);
+        } else {
+            out.writeUTF(val);
+        }
     }
 
     public static void writeDate(DataOutputStream out, Date val) throws IOException {
@@ -218,11 +241,27 @@ public class ExtUtil {
         return ew.val;
     }
 
+    /**
+     * Reads an object written by writeShared(). Through a StringTableInputStream, the objects
+     * which were shared when written are shared again.
+     */
+    public static Object readShared(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+        if (in instanceof StringTableInputStream) {
+            return ((StringTableInputStream) in).readTableObject(pf);
+        }
+        return read(in, new ExtWrapTagged(), pf);
+    }
+
     public static long readNumeric(DataInputStream in) throws IOException {
-        return readNumeric(in, new ExtWrapIntEncodingUniform());
+        return ExtWrapIntEncodingUniform.decode(in);
     }
 
     public static long readNumeric(DataInputStream in, ExtWrapIntEncoding encoding) throws IOException {
+        if (encoding instanceof ExtWrapIntEncodingUniform) {
+            return ExtWrapIntEncodingUniform.decode(in);
+        } else if (encoding instanceof ExtWrapIntEncodingSmall) {
+            return ExtWrapIntEncodingSmall.decode(in, ((ExtWrapIntEncodingSmall) encoding).bias);
+        }
         try {
             return (Long) read(in, encoding);
         } catch (DeserializationException de) {
@@ -255,6 +294,9 @@ public class ExtUtil {
     }
 
     public static String readString(DataInputStream in) throws IOException {
+        if (in instanceof StringTableInputStream) {
+            return ((StringTableInputStream) in).readTableString(interning && stringCache != null);
+        }
         String s = in.readUTF();
         return (interning && stringCache != null) ? stringCache.intern(s) : s;
     }
@@ -59,6 +59,18 @@ public class ExtWrapIntEncodingSmall extends ExtWrapIntEncoding {
     }
 
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException {
+        val = new Long(decode(in, bias));
+    }
+
+    public void writeExternal(DataOutputStream out) throws IOException {
+        encode(out, ((Long)val).longValue(), bias);
+    }
+
+    /**
+     * deserialize a numeric value written by encode() with the same bias, without allocating a
+     * wrapper
+     **/
+    public static long decode(DataInputStream in, int bias) throws IOException {
         byte b = in.readByte();
         long l;
 
@@ -68,17 +80,15 @@ public class ExtWrapIntEncodingSmall extends ExtWrapIntEncoding {
             l = (b < 0 ? b + 256 : b) - bias;
         }
 
-        val = new Long(l);
+        return l;
     }
 
     /**
-     * serialize a numeric value, only using as many bytes as needed. splits up the value into
-     * chunks of 7 bits, using as many chunks as needed to unambiguously represent the value. each
-     * chunk is serialized as a single byte, where the most-significant bit is set to 1 to indicate
-     * there are more bytes to follow, or 0 to indicate the last byte
+     * serialize a numeric value, using a single byte if it falls in [-bias, 254 - bias], or a
+     * 0xff marker followed by the full 4-byte int otherwise
      **/
-    public void writeExternal(DataOutputStream out) throws IOException {
-        int n = ExtUtil.toInt(((Long)val).longValue());
+    public static void encode(DataOutputStream out, long l, int bias) throws IOException {
+        int n = ExtUtil.toInt(l);
 
         if (n >= -bias && n < 255 - bias) {
             n += bias;
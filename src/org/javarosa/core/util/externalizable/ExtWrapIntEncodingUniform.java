@@ -39,6 +39,17 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
     }
 
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException {
+        val = new Long(decode(in));
+    }
+
+    public void writeExternal(DataOutputStream out) throws IOException {
+        encode(out, ((Long)val).longValue());
+    }
+
+    /**
+     * deserialize a numeric value written by encode(), without allocating a wrapper
+     **/
+    public static long decode(DataInputStream in) throws IOException {
         long l = 0;
         byte b;
         boolean firstByte = true;
@@ -54,7 +65,7 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
             l = (l << 7) | (b & 0x7f);
         } while (((b >> 7) & 0x01) == 1);
 
-        val = new Long(l);
+        return l;
     }
 
     /**
@@ -63,9 +74,7 @@ public class ExtWrapIntEncodingUniform extends ExtWrapIntEncoding {
      * chunk is serialized as a single byte, where the most-significant bit is set to 1 to indicate
      * there are more bytes to follow, or 0 to indicate the last byte
      **/
-    public void writeExternal(DataOutputStream out) throws IOException {
-        long l = ((Long)val).longValue();
-
+    public static void encode(DataOutputStream out, long l) throws IOException {
         int sig = -1;
         long k;
         do {
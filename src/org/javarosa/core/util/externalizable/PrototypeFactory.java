@@ -18,21 +18,51 @@ package org.javarosa.core.util.externalizable;
 
 import static org.javarosa.xpath.expr.DigestAlgorithm.MD5;
 
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
 import java.util.Date;
 import java.util.List;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.javarosa.core.io.Std;
 
+/**
+ * Maps the 4-byte class hashes written by ExtWrapTagged back to the classes
+ * they were computed from, and creates instances of those classes.
+ *
+ * Classes are kept in an open-addressing table keyed by the hash packed
+ * into an int. The table is replaced rather than modified when classes are
+ * added, so lookups don't need to lock; a batch of classes is registered
+ * into a single copy.
+ */
 public class PrototypeFactory {
     public final static int CLASS_HASH_SIZE = 4;
 
-    private final Vector<Class> classes = new Vector<>();
-    private final Vector<byte[]> hashes = new Vector<>();
+    //the no-arg constructors of the classes we've created instances of. Only
+    //classes from our own class loader or its parents are kept, as those can't
+    //be unloaded before this class is, so holding them here doesn't pin them
+    private static final ConcurrentHashMap<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+    private static final Class<?>[] BASE_TYPES = {
+            Object.class,
+            Integer.class,
+            Long.class,
+            Short.class,
+            Byte.class,
+            Character.class,
+            Boolean.class,
+            Float.class,
+            Double.class,
+            String.class,
+            Date.class
+    };
+
+    private volatile ClassTable classes = new ClassTable(16);
 
     //lazy evaluation
     private List<String> classNames;
-    private boolean initialized;
+    private volatile boolean initialized;
 
     public PrototypeFactory () {
         this(null);
@@ -43,92 +73,128 @@ public class PrototypeFactory {
         initialized = false;
     }
 
-    private void lazyInit () {
-        initialized = true;
+    private synchronized void lazyInit () {
+        if (initialized) {
+            return;
+        }
 
-        addDefaultClasses();
+        ClassTable table = classes.copy(BASE_TYPES.length + (classNames == null ? 0 : classNames.size()));
+        for (Class<?> baseType : BASE_TYPES) {
+            register(table, baseType);
+        }
 
         if (classNames != null) {
             for (String className : classNames) {
                 try {
-                    addClass(Class.forName(className));
+                    register(table, Class.forName(className));
                 } catch (ClassNotFoundException cnfe) {
                     throw new CannotCreateObjectException(className + ": not found");
                 }
             }
             classNames = null;
         }
-    }
+        classes = table;
 
-    private void addDefaultClasses () {
-        Class[] baseTypes = {
-                Object.class,
-                Integer.class,
-                Long.class,
-                Short.class,
-                Byte.class,
-                Character.class,
-                Boolean.class,
-                Float.class,
-                Double.class,
-                String.class,
-                Date.class
-        };
-
-        for (Class baseType : baseTypes) {
-            addClass(baseType);
-        }
+        //only now, so that other threads wait for the whole list
+        initialized = true;
     }
 
-    public void addClass (Class c) {
+    public synchronized void addClass (Class<?> c) {
         if (!initialized) {
             lazyInit();
         }
+        ClassTable table = classes.copy(1);
+        register(table, c);
+        classes = table;
+    }
 
+    /**
+     * Adds a class to a table that hasn't been published yet.
+     */
+    private static void register (ClassTable table, Class<?> c) {
         byte[] hash = getClassHash(c);
 
         if (compareHash(hash, ExtWrapTagged.WRAPPER_TAG)) {
             throw new Error("Hash collision! " + c.getName() + " and reserved wrapper tag");
         }
 
-        Class d = getClass(hash);
+        Class<?> d = table.get(packHash(hash));
         if (d != null && d != c) {
             throw new Error("Hash collision! " + c.getName() + " and " + d.getName());
         }
 
-        classes.addElement(c);
-        hashes.addElement(hash);
+        if (d == null) {
+            table.put(packHash(hash), c);
+        }
     }
 
-    public Class getClass (byte[] hash) {
+    public Class<?> getClass (byte[] hash) {
         if (!initialized) {
             lazyInit();
         }
 
-        for (int i = 0; i < classes.size(); i++) {
-            if (compareHash(hash, hashes.elementAt(i))) {
-                return classes.elementAt(i);
-            }
+        if (hash.length != CLASS_HASH_SIZE) {
+            return null;
         }
-
-        return null;
+        return classes.get(packHash(hash));
     }
 
     public Object getInstance (byte[] hash) {
         return getInstance(getClass(hash));
     }
 
-    public static Object getInstance (Class c) {
+    public static Object getInstance (Class<?> c) {
+        Constructor<?> constructor = constructors.get(c);
+        if (constructor == null) {
+            if (c.isInterface() || Modifier.isAbstract(c.getModifiers())) {
+                throw new CannotCreateObjectException(c.getName() + ": not instantiable");
+            }
+            try {
+                constructor = c.getConstructor();
+            } catch (NoSuchMethodException nsme) {
+                throw new CannotCreateObjectException(c.getName() + ": not accessible or no empty constructor");
+            }
+            if (isCacheable(c)) {
+                constructors.put(c, constructor);
+            }
+        }
+
         try {
-            return c.newInstance();
+            return constructor.newInstance();
         } catch (IllegalAccessException iae) {
             throw new CannotCreateObjectException(c.getName() + ": not accessible or no empty constructor");
         } catch (InstantiationException e) {
             throw new CannotCreateObjectException(c.getName() + ": not instantiable");
+        } catch (InvocationTargetException ite) {
+            //rethrow what the constructor threw, as Class.newInstance() did
+            Throwable cause = ite.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CannotCreateObjectException(c.getName() + ": " + cause);
         }
     }
 
-    public static byte[] getClassHash (Class type) {
+    private static boolean isCacheable (Class<?> c) {
+        ClassLoader loader = c.getClassLoader();
+        if (loader == null) {
+            return true;
+        }
+        for (ClassLoader own = PrototypeFactory.class.getClassLoader(); own != null; own = own.getParent()) {
+            if (own == loader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int packHash (byte[] hash) {
+        return ((hash[0] & 0xff) << 24) | ((hash[1] & 0xff) << 16) | ((hash[2] & 0xff) << 8) | (hash[3] & 0xff);
+    }
+
+    public static byte[] getClassHash (Class<?> type) {
         byte[] hash = new byte[CLASS_HASH_SIZE];
         byte[] md5 = MD5.digest(type.getName());
 
@@ -153,4 +219,63 @@ public class PrototypeFactory {
 
         return true;
     }
+
+    /**
+     * An open-addressing hash table from packed class hashes to classes, with
+     * linear probing. The keys are MD5 prefixes, so their low bits are used
+     * as they are. Never modified once it has been published.
+     */
+    private static class ClassTable {
+        private final int[] keys;
+        private final Class<?>[] values;
+        private int size;
+
+        ClassTable (int capacity) {
+            keys = new int[capacity];
+            values = new Class<?>[capacity];
+        }
+
+        Class<?> get (int key) {
+            int mask = keys.length - 1;
+            for (int i = key & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return a copy of this table with room for the given number of
+         * additional keys, keeping it at most half full
+         */
+        ClassTable copy (int extra) {
+            int capacity = keys.length;
+            while ((size + extra) * 2 > capacity) {
+                capacity *= 2;
+            }
+            ClassTable copy = new ClassTable(capacity);
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    copy.put(keys[i], values[i]);
+                }
+            }
+            return copy;
+        }
+
+        /**
+         * Only for tables that haven't been published, and that were copied
+         * with room for the key.
+         */
+        void put (int key, Class<?> value) {
+            int mask = keys.length - 1;
+            int i = key & mask;
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package org.javarosa.core.util.externalizable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A DataInputStream which reads the strings written by a StringTableOutputStream. Every
+ * occurrence of a string is returned as the same String object, so only the first occurrence
+ * goes through ExtUtil's string cache. Likewise, the objects which were written shared are read
+ * shared.
+ */
+public class StringTableInputStream extends DataInputStream {
+    private final ArrayList<String> table = new ArrayList<String>();
+    private final ArrayList<Object> objects = new ArrayList<Object>();
+
+    public StringTableInputStream(InputStream in) {
+        super(in);
+    }
+
+    /**
+     * @param shared the strings the StringTableOutputStream which wrote the stream started with
+     */
+    public StringTableInputStream(InputStream in, List<String> shared) {
+        super(in);
+        table.addAll(shared);
+    }
+
+    String readTableString(boolean intern) throws IOException {
+        int index = ExtUtil.readInt(this);
+        if (index > 0) {
+            if (index > table.size()) {
+                throw new IOException("String " + index + " read before it was defined");
+            }
+            return table.get(index - 1);
+        }
+        String val = readUTF();
+        if (intern) {
+            val = ExtUtil.stringCache.intern(val);
+        }
+        table.add(val);
+        return val;
+    }
+
+    Object readTableObject(PrototypeFactory pf) throws IOException, DeserializationException {
+        int index = ExtUtil.readInt(this);
+        if (index > 0) {
+            if (index > objects.size()) {
+                throw new IOException("Object " + index + " read before it was defined");
+            }
+            return objects.get(index - 1);
+        }
+        Object val = ExtUtil.read(this, new ExtWrapTagged(), pf);
+        objects.add(val);
+        return val;
+    }
+}
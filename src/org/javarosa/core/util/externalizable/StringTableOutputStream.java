@@ -0,0 +1,77 @@
+package org.javarosa.core.util.externalizable;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A DataOutputStream which writes each distinct string only once. Strings written through
+ * ExtUtil.writeString() are numbered in the order they are first written; the first occurrence
+ * of a string is written as 0 followed by the string itself, and every later occurrence only as
+ * its number plus one.
+ *
+ * Objects written through ExtUtil.writeShared() are tabled the same way, but by identity, and
+ * numbered once they have been written, so after any shared objects inside them.
+ *
+ * A stream can start with a table of strings shared with other streams, which are then never
+ * written to it.
+ *
+ * Must be read with a StringTableInputStream.
+ */
+public class StringTableOutputStream extends DataOutputStream {
+    private final HashMap<String, Integer> table = new HashMap<String, Integer>();
+    private final IdentityHashMap<Object, Integer> objects = new IdentityHashMap<Object, Integer>();
+
+    public StringTableOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * @param shared distinct strings to start the table with, which the StringTableInputStream
+     *               that reads this stream must be given too
+     */
+    public StringTableOutputStream(OutputStream out, List<String> shared) {
+        super(out);
+        for (String val : shared) {
+            table.put(val, table.size());
+        }
+    }
+
+    /**
+     * @return the strings in the table, including the shared ones, in the order they were numbered
+     */
+    public List<String> getStrings() {
+        String[] strings = new String[table.size()];
+        for (Map.Entry<String, Integer> entry : table.entrySet()) {
+            strings[entry.getValue()] = entry.getKey();
+        }
+        return Arrays.asList(strings);
+    }
+
+    void writeTableString(String val) throws IOException {
+        Integer index = table.get(val);
+        if (index != null) {
+            ExtUtil.writeNumeric(this, index + 1);
+        } else {
+            table.put(val, table.size());
+            ExtUtil.writeNumeric(this, 0);
+            writeUTF(val);
+        }
+    }
+
+    void writeTableObject(Object val) throws IOException {
+        Integer index = objects.get(val);
+        if (index != null) {
+            ExtUtil.writeNumeric(this, index + 1);
+        } else {
+            ExtUtil.writeNumeric(this, 0);
+            ExtUtil.write(this, new ExtWrapTagged(val));
+            objects.put(val, objects.size());
+        }
+    }
+}
@@ -57,13 +57,21 @@ class FormInstanceParser {
     }
 
     FormInstance parseInstance(Element e, boolean isMainInstance, String name, Map<String, String> namespacePrefixesByUri) {
+        FormInstance instanceModel = buildInstance(e, isMainInstance, name, namespacePrefixesByUri);
+        finishInstance(instanceModel, e, isMainInstance);
+        return instanceModel;
+    }
+
+    /**
+     * Builds the tree of an instance, without applying the binds to it. This only reads the
+     * parser's state, so secondary instances can be built on several threads at once.
+     */
+    FormInstance buildInstance(Element e, boolean isMainInstance, String name, Map<String, String> namespacePrefixesByUri) {
         TreeElement root = buildInstanceStructure(e, null, !isMainInstance ? name : null, e.getNamespace(),
                 namespacePrefixesByUri, null);
         FormInstance instanceModel = new FormInstance(root);
         instanceModel.setName(isMainInstance ? formDef.getTitle() : name);
 
-        final List<String> usedAtts = Collections.unmodifiableList(Arrays.asList("id", "version", "uiVersion", "name"));
-
         String schema = e.getNamespace();
         if (schema != null && schema.length() > 0 && !schema.equals(defaultNamespace)) {
             instanceModel.schema = schema;
@@ -72,6 +80,16 @@ class FormInstanceParser {
         instanceModel.uiVersion = e.getAttributeValue(null, "uiVersion");
 
         XFormParser.loadNamespaces(e, instanceModel);
+        return instanceModel;
+    }
+
+    /**
+     * Applies the binds and controls to an instance built by {@link #buildInstance}, which adds
+     * targets to the binds' conditions, so instances have to be finished one at a time.
+     */
+    void finishInstance(FormInstance instanceModel, Element e, boolean isMainInstance) {
+        final List<String> usedAtts = Collections.unmodifiableList(Arrays.asList("id", "version", "uiVersion", "name"));
+
         if (isMainInstance) {
             // the initialization of the references is done twice.
             // The first time is here because they are needed before these
@@ -88,8 +106,6 @@ class FormInstanceParser {
         if (XFormUtils.showUnusedAttributeWarning(e, usedAtts)){
             reporter.warning(XFormParserReporter.TYPE_UNKNOWN_MARKUP, XFormUtils.unusedAttWarning(e, usedAtts), getVagueLocation(e));
         }
-
-        return instanceModel;
     }
 
     /**
@@ -41,7 +41,6 @@ import org.javarosa.core.model.osm.OSMTag;
 import org.javarosa.core.model.osm.OSMTagItem;
 import org.javarosa.core.model.util.restorable.Restorable;
 import org.javarosa.core.model.util.restorable.RestoreUtils;
-import org.javarosa.core.services.Logger;
 import org.javarosa.core.services.locale.Localizer;
 import org.javarosa.core.services.locale.TableLocaleSource;
 import org.javarosa.core.util.CacheTable;
@@ -78,9 +77,14 @@ import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static org.javarosa.core.model.instance.ExternalDataInstance.getPathIfExternalDataInstance;
 import static org.javarosa.xform.parse.Constants.ID_ATTR;
@@ -120,11 +124,14 @@ public class XFormParser implements IXFormParserFunctions {
     private static final int CONTAINER_GROUP = 1;
     private static final int CONTAINER_REPEAT = 2;
 
-    private static HashMap<String, IElementHandler> topLevelHandlers;
-    private static HashMap<String, IElementHandler> groupLevelHandlers;
+    private static final Map<String, IElementHandler> defaultTopLevelHandlers;
+    private static final Map<String, IElementHandler> defaultGroupLevelHandlers;
     private static final Map<String, Integer> typeMappings = TypeMappings.getMap();
-    private static PrototypeFactoryDeprecated modelPrototypes;
-    private static List<SubmissionParser> submissionParsers;
+    private static final PrototypeFactoryDeprecated modelPrototypes = new PrototypeFactoryDeprecated();
+
+    private final XFormParserConfig config;
+    private final Map<String, IElementHandler> topLevelHandlers;
+    private final Map<String, IElementHandler> groupLevelHandlers;
 
     private Reader _reader;
     private Document _xmldoc;
@@ -152,32 +159,25 @@ public class XFormParser implements IXFormParserFunctions {
     //incremented to provide unique question ID for each question
     private int serialQuestionID = 1;
 
-    private static IAnswerResolver answerResolver;
+    private static volatile IAnswerResolver answerResolver;
 
     public static IAnswerResolver getAnswerResolver() {
         return answerResolver;
     }
 
+    /**
+     * Sets the resolver used by parsers made without a config, and by
+     * {@link TreeElement#populate(TreeElement, FormDef)}.
+     *
+     * @deprecated set it on the {@link XFormParserConfig} of the parser
+     */
+    @Deprecated
     public static void setAnswerResolver(IAnswerResolver answerResolver) {
         XFormParser.answerResolver = answerResolver;
     }
 
     static {
-        try {
-            staticInit();
-        } catch (Exception e) {
-            Logger.die("xfparser-static-init", e);
-        }
-    }
-
-    private static void staticInit() {
-        initProcessingRules();
-        modelPrototypes = new PrototypeFactoryDeprecated();
-        submissionParsers = new ArrayList<>(1);
-    }
-
-    private static void initProcessingRules() {
-        groupLevelHandlers = new HashMap<String, IElementHandler>() {{
+        Map<String, IElementHandler> groupLevelHandlers = new HashMap<String, IElementHandler>() {{
             put("input", new IElementHandler() {
                 @Override public void handle(XFormParser p, Element e, Object parent) {
                     // Attributes that are passed through to additionalAttributes but shouldn't lead to warnings.
@@ -243,7 +243,7 @@ public class XFormParser implements IXFormParserFunctions {
             });
         }};
 
-        topLevelHandlers = new HashMap<String, IElementHandler>() {{
+        Map<String, IElementHandler> topLevelHandlers = new HashMap<String, IElementHandler>() {{
             put("model", new IElementHandler() {
                 @Override public void handle(XFormParser p, Element e, Object parent) {
                     p.parseModel(e);
@@ -261,6 +261,9 @@ public class XFormParser implements IXFormParserFunctions {
             });
         }};
         topLevelHandlers.putAll(groupLevelHandlers);
+
+        defaultGroupLevelHandlers = Collections.unmodifiableMap(groupLevelHandlers);
+        defaultTopLevelHandlers = Collections.unmodifiableMap(topLevelHandlers);
     }
 
     private void initState () {
@@ -301,37 +304,106 @@ public class XFormParser implements IXFormParserFunctions {
 
     CacheTable<String> stringCache;
 
+    private boolean streaming;
+
+    private ForkJoinPool parsingPool;
+
+    /*
+     * The parsers made without a config take theirs from the static settings of this class and
+     * FormDef, as they are when the parser is made.
+     */
+
     public XFormParser(Reader reader) {
-        _reader = reader;
+        this(reader, XFormParserConfig.fromStaticSettings());
     }
 
     public XFormParser(Document doc) {
-        _xmldoc = doc;
+        this(doc, XFormParserConfig.fromStaticSettings());
     }
 
     public XFormParser(Reader form, Reader instance) {
+        this(form, instance, XFormParserConfig.fromStaticSettings());
+    }
+
+    public XFormParser(Document form, Document instance) {
+        this(form, instance, XFormParserConfig.fromStaticSettings());
+    }
+
+    public XFormParser(Reader reader, XFormParserConfig config) {
+        this(config);
+        _reader = reader;
+    }
+
+    public XFormParser(Document doc, XFormParserConfig config) {
+        this(config);
+        _xmldoc = doc;
+    }
+
+    public XFormParser(Reader form, Reader instance, XFormParserConfig config) {
+        this(config);
         _reader = form;
         _instReader = instance;
     }
 
-    public XFormParser(Document form, Document instance) {
+    public XFormParser(Document form, Document instance, XFormParserConfig config) {
+        this(config);
         _xmldoc = form;
         _instDoc = instance;
     }
 
+    private XFormParser(XFormParserConfig config) {
+        this.config = config;
+        streaming = config.isStreaming();
+        parsingPool = config.getParsingPool();
+
+        Map<String, IElementHandler> handlers = config.getElementHandlers();
+        if (handlers.isEmpty()) {
+            topLevelHandlers = defaultTopLevelHandlers;
+            groupLevelHandlers = defaultGroupLevelHandlers;
+        } else {
+            topLevelHandlers = new HashMap<>(defaultTopLevelHandlers);
+            topLevelHandlers.putAll(handlers);
+            groupLevelHandlers = new HashMap<>(defaultGroupLevelHandlers);
+            groupLevelHandlers.putAll(handlers);
+        }
+    }
+
     public void attachReporter(XFormParserReporter reporter) {
         this.reporter = reporter;
     }
 
+    /**
+     * Sets whether a form read from a Reader is parsed as it is read, rather than first being read
+     * into a whole document. Streaming holds far less of the form in memory at once; forms given
+     * as documents are always parsed from the document. This overrides the setting of the config.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets the pool on which the translations of the itext, and the secondary instances, are
+     * parsed concurrently (null parses them one at a time). The form is the same either way. When
+     * streaming, the itext is built whole so that its translations can be parsed concurrently.
+     * This overrides the pool of the config.
+     */
+    public void setParsingPool(ForkJoinPool parsingPool) {
+        this.parsingPool = parsingPool;
+    }
+
     public FormDef parse() throws IOException {
         if (_f == null) {
             Std.out.println("Parsing form...");
 
-            if (_xmldoc == null) {
-                _xmldoc = getXMLDocument(_reader, stringCache);
-            }
+            if (_xmldoc == null && streaming) {
+                parseStream(_reader);
+            } else {
+                if (_xmldoc == null) {
+                    _xmldoc = getXMLDocument(_reader, stringCache);
+                }
 
-            parseDoc(buildNamespacesMap(_xmldoc.getRootElement()));
+                parseDoc(buildNamespacesMap(_xmldoc.getRootElement()));
+            }
 
             //load in a custom xml instance, if applicable
             if (_instReader != null) {
@@ -419,11 +491,314 @@ public class XFormParser implements IXFormParserFunctions {
 
     private void parseDoc(Map<String, String> namespacePrefixesByUri) {
         final CodeTimer codeTimer = new CodeTimer("Creating FormDef from parsed XML");
-        _f = new FormDef();
+        _f = config.newFormDef();
 
         initState();
-        final String defaultNamespace = _xmldoc.getRootElement().getNamespaceUri(null);
         parseElement(_xmldoc.getRootElement(), _f, topLevelHandlers);
+        parseInstances(namespacePrefixesByUri);
+
+        codeTimer.logDone();
+    }
+
+    /**
+     * Parses the form as it is read, without building a document for all of it. Only the elements
+     * which are handled, such as the binds, itext texts and controls, are built, and each is
+     * dropped once it has been parsed, apart from the instances. Elements which just contain others,
+     * such as the root, head and body, are built without their children, so that namespaces and
+     * locations can still be looked up.
+     */
+    private void parseStream(Reader reader) throws IOException {
+        final CodeTimer codeTimer = new CodeTimer("Creating FormDef from streamed XML");
+        _f = config.newFormDef();
+
+        initState();
+        _xmldoc = new Document();
+        try {
+            KXmlParser parser = stringCache != null ? new InterningKXmlParser(stringCache) : new KXmlParser();
+            parser.setInput(reader);
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+
+            int event;
+            while ((event = parser.nextToken()) != XmlPullParser.START_TAG) {
+                if (event == XmlPullParser.END_DOCUMENT) {
+                    throw new XFormParseException("XForm Parse: document has no root element");
+                }
+            }
+            streamElement(parser, _xmldoc, _f);
+        } catch (XmlPullParserException e) {
+            String errorMsg = "XML Syntax Error at Line: " + e.getLineNumber() +", Column: "+ e.getColumnNumber()+ "!";
+            Std.err.println(errorMsg);
+            Std.printStack(e);
+            throw new XFormParseException(errorMsg);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Std.out.println("Error closing reader");
+                Std.printStack(e);
+            }
+        }
+
+        parseInstances(buildNamespacesMap(_xmldoc.getRootElement()));
+
+        codeTimer.logDone();
+    }
+
+    /**
+     * Builds the non-main instances on the parsing pool. Binds are applied to the instances in
+     * order once they have all been built, since that changes the binds, and then their data is
+     * loaded on the pool again, as it depends on the data types the binds give them.
+     */
+    private void parseNonMainInstancesInParallel(final FormInstanceParser instanceParser,
+            final Map<String, String> namespacePrefixesByUri) {
+        List<Callable<DataInstance>> builds = new ArrayList<>();
+        final List<DeferredReporter> reporters = new ArrayList<>();
+        for (int instanceIndex = 1; instanceIndex < instanceNodes.size(); instanceIndex++) {
+            final Element instance = instanceNodes.get(instanceIndex);
+            final String instanceId = instanceNodeIdStrs.get(instanceIndex);
+            final String ediPath = getPathIfExternalDataInstance(instance.getAttributeValue(null, "src"));
+            final DeferredReporter deferredReporter = new DeferredReporter();
+            reporters.add(deferredReporter);
+
+            builds.add(new Callable<DataInstance>() {
+                @Override public DataInstance call() {
+                    if (ediPath == null) {
+                        return instanceParser.buildInstance(instance, false, instanceId, namespacePrefixesByUri);
+                    }
+                    return buildExternalInstance(instance, ediPath, instanceId, deferredReporter);
+                }
+            });
+        }
+        List<DataInstance> instances = invokeAll(builds);
+        for (DeferredReporter deferredReporter : reporters) {
+            deferredReporter.replay(reporter);
+        }
+
+        List<Callable<Void>> loads = new ArrayList<>();
+        for (int i = 0; i < instances.size(); i++) {
+            if (instances.get(i) instanceof FormInstance) {
+                final Element instance = instanceNodes.get(i + 1);
+                final FormInstance fi = (FormInstance) instances.get(i);
+                instanceParser.finishInstance(fi, instance, false);
+                loadNamespaces(_xmldoc.getRootElement(), fi);
+                loads.add(new Callable<Void>() {
+                    @Override public Void call() {
+                        loadInstanceData(instance, fi.getRoot(), _f);
+                        return null;
+                    }
+                });
+            }
+        }
+        invokeAll(loads);
+
+        for (DataInstance instance : instances) {
+            if (instance != null) {
+                _f.addNonMainInstance(instance);
+            }
+        }
+    }
+
+    /**
+     * Loads an external secondary instance. A form whose external instance can't be loaded is still
+     * parsed, without that instance, so the failure is reported as a warning.
+     *
+     * @return the instance, or null if it couldn't be loaded
+     */
+    private DataInstance buildExternalInstance(Element instance, String ediPath, String instanceId,
+            XFormParserReporter reporter) {
+        try {
+            return ExternalDataInstance.buildFromPath(ediPath, instanceId);
+        } catch (IOException | UnfullfilledRequirementsException | InvalidStructureException | XmlPullParserException e) {
+            reporter.warning(XFormParserReporter.TYPE_ERROR_PRONE, "Couldn't load external instance '" + instanceId
+                    + "' from " + ediPath + ": " + e.getMessage(), getVagueLocation(instance));
+            return null;
+        }
+    }
+
+    /**
+     * Runs the tasks on the parsing pool, returning their results in order, or throwing the
+     * exception of the first task which failed.
+     */
+    private <T> List<T> invokeAll(List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : parsingPool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing form", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+        return results;
+    }
+
+    /**
+     * Parses the element whose start tag the parser is at, as {@link #parseElement} does, leaving
+     * the parser after its end tag.
+     */
+    private void streamElement(KXmlParser parser, Node parentNode, Object parent)
+            throws IOException, XmlPullParserException {
+        String name = parser.getName();
+        IElementHandler eh = topLevelHandlers.get(name);
+
+        if ("model".equals(name)) {
+            streamModel(parser, startElement(parser, parentNode));
+        } else if (eh != null) {
+            Element e = buildElement(parser, parentNode);
+            eh.handle(this, e, parent);
+        } else {
+            Element e = startElement(parser, parentNode);
+            if (!validElementNames.contains(name)) {
+                reporter.warning(XFormParserReporter.TYPE_UNKNOWN_MARKUP,
+                        "Unrecognized element [" + name    + "]. Ignoring and processing children...",
+                        getVagueLocation(e));
+            }
+            int event = parser.nextToken();
+            while (event != XmlPullParser.END_TAG) {
+                if (event == XmlPullParser.START_TAG) {
+                    streamElement(parser, e, parent);
+                    event = parser.getEventType();
+                } else {
+                    event = parser.nextToken();
+                }
+            }
+            parser.nextToken();
+        }
+
+        // the root is kept for its namespaces
+        if (!(parentNode instanceof Document)) {
+            parentNode.removeChild(parentNode.getChildCount() - 1);
+        }
+    }
+
+    /**
+     * Parses the model whose start tag the parser is at, as {@link #parseModel} does, building one
+     * child at a time.
+     */
+    private void streamModel(KXmlParser parser, Element model) throws IOException, XmlPullParserException {
+        List<Element> delayedParseElements = new ArrayList<>();
+        boolean parsing = startModel(model);
+
+        int event = parser.nextToken();
+        while (event != XmlPullParser.END_TAG) {
+            if (event == XmlPullParser.START_TAG) {
+                if (parsing && parsingPool == null && "itext".equals(parser.getName())) {
+                    streamIText(parser, startElement(parser, model));
+                } else {
+                    Element child = buildElement(parser, model);
+                    if (parsing) {
+                        parseModelChild(child, delayedParseElements);
+                    }
+                }
+                model.removeChild(model.getChildCount() - 1);
+                event = parser.getEventType();
+            } else {
+                if (parsing && (event == XmlPullParser.TEXT || event == XmlPullParser.ENTITY_REF)
+                        && parser.getText().trim().length() != 0) {
+                    throw new XFormParseException("Unrecognized text content found within <model>: \""
+                            + parser.getText().trim() + "\"", model);
+                }
+                event = parser.nextToken();
+            }
+        }
+        parser.nextToken();
+
+        if (parsing) {
+            parseDelayedModelElements(delayedParseElements);
+        }
+    }
+
+    /**
+     * Parses the itext whose start tag the parser is at, as {@link #parseIText} does, building one
+     * text at a time.
+     */
+    private void streamIText(KXmlParser parser, Element itext) throws IOException, XmlPullParserException {
+        Localizer l = new Localizer(true, true);
+
+        int event = parser.nextToken();
+        while (event != XmlPullParser.END_TAG) {
+            if (event == XmlPullParser.START_TAG) {
+                if ("translation".equals(parser.getName())) {
+                    streamTranslation(parser, l, startElement(parser, itext));
+                } else {
+                    buildElement(parser, itext);
+                }
+                itext.removeChild(itext.getChildCount() - 1);
+                event = parser.getEventType();
+            } else {
+                event = parser.nextToken();
+            }
+        }
+        parser.nextToken();
+
+        finishIText(l, itext);
+    }
+
+    private void streamTranslation(KXmlParser parser, Localizer l, Element trans)
+            throws IOException, XmlPullParserException {
+        TableLocaleSource source = startTranslation(l, trans);
+
+        int event = parser.nextToken();
+        while (event != XmlPullParser.END_TAG) {
+            if (event == XmlPullParser.START_TAG) {
+                boolean isText = "text".equals(parser.getName());
+                Element text = buildElement(parser, trans);
+                if (isText) {
+                    parseTextHandle(source, text, reporter, null);
+                }
+                trans.removeChild(trans.getChildCount() - 1);
+                event = parser.getEventType();
+            } else {
+                event = parser.nextToken();
+            }
+        }
+        parser.nextToken();
+
+        finishTranslation(l, trans, source);
+    }
+
+    /**
+     * @return an element with the name, namespaces and attributes of the start tag the parser is
+     * at, but no children, added to parentNode
+     */
+    private static Element startElement(KXmlParser parser, Node parentNode) throws XmlPullParserException {
+        Element e = parentNode.createElement(parser.getNamespace(), parser.getName());
+        for (int i = parser.getNamespaceCount(parser.getDepth() - 1); i < parser.getNamespaceCount(parser.getDepth()); i++) {
+            e.setPrefix(parser.getNamespacePrefix(i), parser.getNamespaceUri(i));
+        }
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            e.setAttribute(parser.getAttributeNamespace(i), parser.getAttributeName(i), parser.getAttributeValue(i));
+        }
+        parentNode.addChild(Node.ELEMENT, e);
+        return e;
+    }
+
+    /**
+     * @return the whole element whose start tag the parser is at, with its text consolidated,
+     * added to parentNode. The parser is left after its end tag.
+     */
+    private Element buildElement(KXmlParser parser, Node parentNode) throws IOException, XmlPullParserException {
+        Element e = parentNode.createElement(parser.getNamespace(), parser.getName());
+        parentNode.addChild(Node.ELEMENT, e);
+        e.parse(parser);
+        XmlTextConsolidator.consolidateText(stringCache, e);
+        return e;
+    }
+
+    /**
+     * Builds the instances saved while parsing the model, once the binds and controls they depend
+     * on have been parsed.
+     */
+    private void parseInstances(Map<String, String> namespacePrefixesByUri) {
+        final String defaultNamespace = _xmldoc.getRootElement().getNamespaceUri(null);
         collapseRepeatGroups(_f);
 
         final FormInstanceParser instanceParser = new FormInstanceParser(_f, defaultNamespace, reporter,
@@ -433,17 +808,18 @@ public class XFormParser implements IXFormParserFunctions {
         //we assume that the non-main instances won't
         //reference the main node, so we do them first.
         //if this assumption is wrong, well, then we're screwed.
-        if (instanceNodes.size() > 1) {
+        if (instanceNodes.size() > 2 && parsingPool != null) {
+            parseNonMainInstancesInParallel(instanceParser, namespacePrefixesByUri);
+        } else if (instanceNodes.size() > 1) {
             for (int instanceIndex = 1; instanceIndex < instanceNodes.size(); instanceIndex++) {
                 final Element instance = instanceNodes.get(instanceIndex);
                 final String instanceId = instanceNodeIdStrs.get(instanceIndex);
                 final String ediPath = getPathIfExternalDataInstance(instance.getAttributeValue(null, "src"));
 
                 if (ediPath != null) {
-                    try { /* todo implement better error handling */
-                        _f.addNonMainInstance(ExternalDataInstance.buildFromPath(ediPath, instanceId));
-                    } catch (IOException | UnfullfilledRequirementsException | InvalidStructureException | XmlPullParserException e) {
-                        e.printStackTrace();
+                    DataInstance externalInstance = buildExternalInstance(instance, ediPath, instanceId, reporter);
+                    if (externalInstance != null) {
+                        _f.addNonMainInstance(externalInstance);
                     }
                 } else {
                     FormInstance fi = instanceParser.parseInstance(instance, false,
@@ -482,8 +858,6 @@ public class XFormParser implements IXFormParserFunctions {
         }
         _f.getMainInstance().getRoot().clearChildrenCaches();
         _f.getMainInstance().getRoot().clearCaches();
-
-        codeTimer.logDone();
     }
 
     private final Set<String> validElementNames = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
@@ -502,7 +876,7 @@ public class XFormParser implements IXFormParserFunctions {
             "delHeader"
     )));
 
-    private void parseElement (Element e, Object parent, HashMap<String, IElementHandler> handlers) {
+    private void parseElement (Element e, Object parent, Map<String, IElementHandler> handlers) {
         String name = e.getName();
 
         IElementHandler eh = handlers.get(name);
@@ -561,19 +935,11 @@ public class XFormParser implements IXFormParserFunctions {
 
     //for ease of parsing, we assume a model comes before the controls, which isn't necessarily mandated by the xforms spec
     private void parseModel (Element e) {
-        List<String> usedAtts = new ArrayList<>(); //no attributes parsed in title.
         List<Element> delayedParseElements = new ArrayList<>();
 
-        if (modelFound) {
-            reporter.warning(XFormParserReporter.TYPE_INVALID_STRUCTURE,
-                    "Multiple models not supported. Ignoring subsequent models.", getVagueLocation(e));
+        if (!startModel(e)) {
             return;
         }
-        modelFound = true;
-
-        if(XFormUtils.showUnusedAttributeWarning(e, usedAtts)){
-            reporter.warning(XFormParserReporter.TYPE_UNKNOWN_MARKUP, XFormUtils.unusedAttWarning(e, usedAtts), getVagueLocation(e));
-        }
 
         for (int i = 0; i < e.getChildCount(); i++) {
 
@@ -581,24 +947,10 @@ public class XFormParser implements IXFormParserFunctions {
             Element child = (type == Node.ELEMENT ? e.getElement(i) : null);
             String childName = (child != null ? child.getName() : null);
 
-            if ("itext".equals(childName)) {
-                parseIText(child);
-            } else if ("instance".equals(childName)) {
-                //we save parsing the instance node until the end, giving us the information we need about
-                //binds and data types and such
-                saveInstanceNode(child);
-            } else if (BIND_ATTR.equals(childName)) { //<instance> must come before <bind>s
-                parseBind(child);
-            } else if("submission".equals(childName)) {
-                delayedParseElements.add(child);
-            } else if(namedActions.contains(childName) || (childName != null && structuredActions.containsKey(childName))) {
-                delayedParseElements.add(child);
-            } else { //invalid model content
-                if (type == Node.ELEMENT) {
-                    throw new XFormParseException("Unrecognized top-level tag [" + childName + "] found within <model>",child);
-                } else if (type == Node.TEXT && getXMLText(e, i, true).length() != 0) {
-                    throw new XFormParseException("Unrecognized text content found within <model>: \"" + getXMLText(e, i, true) + "\"",child == null ? e : child);
-                }
+            if (child != null) {
+                parseModelChild(child, delayedParseElements);
+            } else if (type == Node.TEXT && getXMLText(e, i, true).length() != 0) { //invalid model content
+                throw new XFormParseException("Unrecognized text content found within <model>: \"" + getXMLText(e, i, true) + "\"", e);
             }
 
             if(child == null || BIND_ATTR.equals(childName) || "itext".equals(childName)) {
@@ -613,7 +965,50 @@ public class XFormParser implements IXFormParserFunctions {
             }
         }
 
-        //Now parse out the submission/action blocks (we needed the binds to all be set before we could)
+        parseDelayedModelElements(delayedParseElements);
+    }
+
+    /**
+     * @return whether the model should be parsed, which it isn't if there was one before it
+     */
+    private boolean startModel (Element e) {
+        List<String> usedAtts = new ArrayList<>(); //no attributes parsed in title.
+
+        if (modelFound) {
+            reporter.warning(XFormParserReporter.TYPE_INVALID_STRUCTURE,
+                    "Multiple models not supported. Ignoring subsequent models.", getVagueLocation(e));
+            return false;
+        }
+        modelFound = true;
+
+        if(XFormUtils.showUnusedAttributeWarning(e, usedAtts)){
+            reporter.warning(XFormParserReporter.TYPE_UNKNOWN_MARKUP, XFormUtils.unusedAttWarning(e, usedAtts), getVagueLocation(e));
+        }
+        return true;
+    }
+
+    private void parseModelChild (Element child, List<Element> delayedParseElements) {
+        String childName = child.getName();
+
+        if ("itext".equals(childName)) {
+            parseIText(child);
+        } else if ("instance".equals(childName)) {
+            //we save parsing the instance node until the end, giving us the information we need about
+            //binds and data types and such
+            saveInstanceNode(child);
+        } else if (BIND_ATTR.equals(childName)) { //<instance> must come before <bind>s
+            parseBind(child);
+        } else if("submission".equals(childName)) {
+            delayedParseElements.add(child);
+        } else if(namedActions.contains(childName) || structuredActions.containsKey(childName)) {
+            delayedParseElements.add(child);
+        } else { //invalid model content
+            throw new XFormParseException("Unrecognized top-level tag [" + childName + "] found within <model>",child);
+        }
+    }
+
+    //Now parse out the submission/action blocks (we needed the binds to all be set before we could)
+    private void parseDelayedModelElements (List<Element> delayedParseElements) {
         for(Element child : delayedParseElements) {
             String name = child.getName();
             if(name.equals("submission")) {
@@ -694,7 +1089,7 @@ public class XFormParser implements IXFormParserFunctions {
         String action = submission.getAttributeValue(null, "action");
 
         SubmissionParser parser = new SubmissionParser();
-        for(SubmissionParser p : submissionParsers) {
+        for(SubmissionParser p : config.getSubmissionParsers()) {
             if(p.matchesCustomMethod(method)) {
                 parser = p;
             }
@@ -1076,6 +1471,10 @@ public class XFormParser implements IXFormParserFunctions {
     }
 
     private void recurseForOutput(Element e){
+        recurseForOutput(e, reporter);
+    }
+
+    private void recurseForOutput(Element e, XFormParserReporter reporter){
         if(e.getChildCount() == 0) return;
 
         for(int i=0;i<e.getChildCount();i++){
@@ -1086,19 +1485,19 @@ public class XFormParser implements IXFormParserFunctions {
 
             //is just text
             if(kidType == Node.ELEMENT && XFormUtils.isOutput(kid)){
-                String s = "${"+parseOutput(kid)+"}";
+                String s = "${"+parseOutput(kid, reporter)+"}";
                 e.removeChild(i);
                 e.addChild(i, Node.TEXT, s);
 
             //has kids? Recurse through them and swap output tag for parsed version
             }else if(kid.getChildCount() !=0){
-                recurseForOutput(kid);
+                recurseForOutput(kid, reporter);
                 //is something else
             }
         }
     }
 
-    private String parseOutput (Element e) {
+    private String parseOutput (Element e, XFormParserReporter reporter) {
         List<String> usedAtts = new ArrayList<>();
         usedAtts.add(REF_ATTR);
         usedAtts.add(VALUE);
@@ -1541,15 +1940,79 @@ public class XFormParser implements IXFormParserFunctions {
     private void parseIText (Element itext) {
         Localizer l = new Localizer(true, true);
 
-        ArrayList<String> usedAtts = new ArrayList<>(); //used for warning message
-
+        List<Element> translations = new ArrayList<>();
         for (int i = 0; i < itext.getChildCount(); i++) {
             Element trans = itext.getElement(i);
             if (trans == null || !trans.getName().equals("translation"))
                 continue;
 
-            parseTranslation(l, trans);
+            translations.add(trans);
+        }
+
+        if (translations.size() > 1 && parsingPool != null) {
+            parseTranslationsInParallel(l, translations);
+        } else {
+            for (Element trans : translations) {
+                parseTranslation(l, trans);
+            }
+        }
+
+        finishIText(l, itext);
+    }
+
+    /**
+     * Parses the texts of each translation on the parsing pool. Outputs are numbered as the form
+     * is parsed, so they are parsed first, in order. Their warnings are held back until the text
+     * they are in is parsed, and the warnings of each translation are reported in order once they
+     * have all been parsed, so they come out in the order of a serial parse.
+     */
+    private void parseTranslationsInParallel (Localizer l, List<Element> translations) {
+        List<TableLocaleSource> sources = new ArrayList<>();
+        List<Callable<DeferredReporter>> tasks = new ArrayList<>();
+        final Map<Element, DeferredReporter> outputWarnings = new IdentityHashMap<>();
+        for (final Element trans : translations) {
+            final TableLocaleSource source = startTranslation(l, trans);
+            parseTranslationOutputs(trans, outputWarnings);
+            sources.add(source);
+            tasks.add(new Callable<DeferredReporter>() {
+                @Override public DeferredReporter call() {
+                    DeferredReporter deferredReporter = new DeferredReporter();
+                    parseTexts(source, trans, deferredReporter, outputWarnings);
+                    return deferredReporter;
+                }
+            });
+        }
+
+        List<DeferredReporter> reporters = invokeAll(tasks);
+        for (int i = 0; i < translations.size(); i++) {
+            reporters.get(i).replay(reporter);
+            finishTranslation(l, translations.get(i), sources.get(i));
+        }
+    }
+
+    /**
+     * Parses the outputs of a translation, keeping the warnings of each value's outputs in
+     * outputWarnings.
+     */
+    private void parseTranslationOutputs (Element trans, Map<Element, DeferredReporter> outputWarnings) {
+        for (int j = 0; j < trans.getChildCount(); j++) {
+            Element text = trans.getElement(j);
+            if (text == null || !text.getName().equals("text")) {
+                continue;
+            }
+            for (int k = 0; k < text.getChildCount(); k++) {
+                Element value = text.getElement(k);
+                if (value != null && value.getName().equals(VALUE)) {
+                    DeferredReporter deferredReporter = new DeferredReporter();
+                    recurseForOutput(value, deferredReporter);
+                    outputWarnings.put(value, deferredReporter);
+                }
+            }
         }
+    }
+
+    private void finishIText (Localizer l, Element itext) {
+        ArrayList<String> usedAtts = new ArrayList<>(); //used for warning message
 
         if (l.getAvailableLocales().length == 0)
             throw new XFormParseException("no <translation>s defined",itext);
@@ -1566,12 +2029,33 @@ public class XFormParser implements IXFormParserFunctions {
     }
 
     private void parseTranslation (Localizer l, Element trans) {
-        /////for warning message
-        List<String> usedAtts = new ArrayList<>();
-        usedAtts.add("lang");
-        usedAtts.add("default");
-        /////////////////////////
+        TableLocaleSource source = startTranslation(l, trans);
+        parseTexts(source, trans, reporter, null);
+        finishTranslation(l, trans, source);
+    }
+
+    private void parseTexts (TableLocaleSource source, Element trans, XFormParserReporter reporter,
+            Map<Element, DeferredReporter> outputWarnings) {
+        Collection<Integer> removeIndexes = new HashSet<>();
+
+        for (int j = 0; j < trans.getChildCount(); j++) {
+            Element text = trans.getElement(j);
+            if (text == null || !text.getName().equals("text")) {
+                continue;
+            }
+
+            parseTextHandle(source, text, reporter, outputWarnings);
+            //Clayton Sims - Jun 17, 2009 - This code is used when the stinginess flag
+            //is set for the build. It dynamically wipes out old model nodes once they're
+            //used. This is sketchy if anything else plans on touching the nodes.
+            //This code can be removed once we're pull-parsing
+            //#if org.javarosa.xform.stingy
+            removeIndexes.add(j);
+        }
+        ElementChildDeleter.delete(trans, removeIndexes);
+    }
 
+    private TableLocaleSource startTranslation (Localizer l, Element trans) {
         String lang = trans.getAttributeValue("", "lang");
         if (lang == null || lang.length() == 0) {
             throw new XFormParseException("no language specified for <translation>",trans);
@@ -1588,34 +2072,30 @@ public class XFormParser implements IXFormParserFunctions {
             l.setDefaultLocale(lang);
         }
 
-        TableLocaleSource source = new TableLocaleSource();
-        Collection<Integer> removeIndexes = new HashSet<>();
-
-        for (int j = 0; j < trans.getChildCount(); j++) {
-            Element text = trans.getElement(j);
-            if (text == null || !text.getName().equals("text")) {
-                continue;
-            }
+        return new TableLocaleSource();
+    }
 
-            parseTextHandle(source, text);
-            //Clayton Sims - Jun 17, 2009 - This code is used when the stinginess flag
-            //is set for the build. It dynamically wipes out old model nodes once they're
-            //used. This is sketchy if anything else plans on touching the nodes.
-            //This code can be removed once we're pull-parsing
-            //#if org.javarosa.xform.stingy
-            removeIndexes.add(j);
-        }
-        ElementChildDeleter.delete(trans, removeIndexes);
+    private void finishTranslation (Localizer l, Element trans, TableLocaleSource source) {
+        /////for warning message
+        List<String> usedAtts = new ArrayList<>();
+        usedAtts.add("lang");
+        usedAtts.add("default");
+        /////////////////////////
 
         //print unused attribute warning message for parent element
         if(XFormUtils.showUnusedAttributeWarning(trans, usedAtts)){
             reporter.warning(XFormParserReporter.TYPE_UNKNOWN_MARKUP, XFormUtils.unusedAttWarning(trans, usedAtts), getVagueLocation(trans));
         }
 
-        l.registerLocaleResource(lang, source);
+        l.registerLocaleResource(trans.getAttributeValue("", "lang"), source);
     }
 
-    private void parseTextHandle (TableLocaleSource l, Element text) {
+    /**
+     * @param outputWarnings the warnings of the outputs in each value, if they were parsed
+     *                       beforehand; null if they are parsed here
+     */
+    private void parseTextHandle (TableLocaleSource l, Element text, XFormParserReporter reporter,
+            Map<Element, DeferredReporter> outputWarnings) {
         String id = text.getAttributeValue("", ID_ATTR);
 
         //used for parser warnings...
@@ -1642,6 +2122,9 @@ public class XFormParser implements IXFormParserFunctions {
             if (form != null && form.length() == 0) {
                 form = null;
             }
+            if (outputWarnings != null && outputWarnings.containsKey(value)) {
+                outputWarnings.get(value).replay(reporter);
+            }
             String data = getLabel(value);
             if (data == null) {
                 data = "";
@@ -2011,7 +2494,7 @@ public class XFormParser implements IXFormParserFunctions {
      *
      * call before f.initialize()!
      */
-    private static void loadXmlInstance(FormDef f, Document xmlInst) {
+    private void loadXmlInstance(FormDef f, Document xmlInst) {
         TreeElement savedRoot = XFormParser.restoreDataModel(xmlInst, null).getRoot();
         TreeElement templateRoot = f.getMainInstance().getRoot().deepCopy(true);
 
@@ -2024,7 +2507,7 @@ public class XFormParser implements IXFormParserFunctions {
         // populate the data model
         TreeReference tr = TreeReference.rootRef();
         tr.add(templateRoot.getName(), TreeReference.INDEX_UNBOUND);
-        templateRoot.populate(savedRoot, f);
+        templateRoot.populate(savedRoot, f, config.getAnswerResolver());
 
         // populated model to current form
         f.getMainInstance().setRoot(templateRoot);
@@ -2151,4 +2634,32 @@ public class XFormParser implements IXFormParserFunctions {
     void setStringCache(CacheTable<String> stringCache) {
         this.stringCache = stringCache;
     }
+
+    /**
+     * Holds the warnings and errors of work done out of order, or on the parsing pool, so that
+     * they can be reported in the order a serial parse would report them.
+     */
+    private static class DeferredReporter extends XFormParserReporter {
+        private final List<String[]> warnings = new ArrayList<>();
+
+        @Override
+        public void warning(String type, String message, String xmlLocation) {
+            warnings.add(new String[] {type, message, xmlLocation});
+        }
+
+        @Override
+        public void error(String message) {
+            warnings.add(new String[] {TYPE_ERROR, message, null});
+        }
+
+        void replay(XFormParserReporter reporter) {
+            for (String[] warning : warnings) {
+                if (TYPE_ERROR.equals(warning[0])) {
+                    reporter.error(warning[1]);
+                } else {
+                    reporter.warning(warning[0], warning[1], warning[2]);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,202 @@
+package org.javarosa.xform.parse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.FormDef.EvalBehavior;
+import org.javarosa.core.model.instance.utils.DefaultAnswerResolver;
+import org.javarosa.core.model.instance.utils.IAnswerResolver;
+import org.javarosa.debug.EventNotifier;
+import org.javarosa.debug.EventNotifierSilent;
+
+/**
+ * The settings of an {@link XFormParser}: handlers for extra elements, parsers for custom
+ * submission methods, how the answers of a loaded instance are resolved, the settings of the
+ * FormDefs it builds, and how it reads the form.
+ *
+ * A config can't be changed; each of the with methods returns a changed copy. So one config can
+ * be shared by parsers working on many threads, and parsers made with a config don't depend on
+ * the static settings of XFormParser and FormDef, which the parsers made without one still use.
+ */
+public final class XFormParserConfig {
+    private final Map<String, IElementHandler> handlers;
+    private final List<SubmissionParser> submissionParsers;
+    private final IAnswerResolver answerResolver;
+    private final EvalBehavior evalBehavior;
+    private final EventNotifier eventNotifier;
+    private final int maxPrecomputedCascadeSize;
+    private final boolean incrementalCascade;
+    private final ForkJoinPool initializationPool;
+    private final boolean streaming;
+    private final ForkJoinPool parsingPool;
+
+    /**
+     * Makes a config with the default settings, whatever the static settings of XFormParser and
+     * FormDef are.
+     */
+    public XFormParserConfig() {
+        this(Collections.<String, IElementHandler>emptyMap(), Collections.<SubmissionParser>emptyList(),
+                new DefaultAnswerResolver(), FormDef.recommendedMode, new EventNotifierSilent(), 0, false,
+                null, false, null);
+    }
+
+    private XFormParserConfig(Map<String, IElementHandler> handlers, List<SubmissionParser> submissionParsers,
+            IAnswerResolver answerResolver, EvalBehavior evalBehavior, EventNotifier eventNotifier,
+            int maxPrecomputedCascadeSize, boolean incrementalCascade, ForkJoinPool initializationPool,
+            boolean streaming, ForkJoinPool parsingPool) {
+        if (answerResolver == null || evalBehavior == null || eventNotifier == null) {
+            throw new NullPointerException();
+        }
+        if (maxPrecomputedCascadeSize < 0) {
+            throw new IllegalArgumentException("maxSize must not be negative: " + maxPrecomputedCascadeSize);
+        }
+        this.handlers = handlers;
+        this.submissionParsers = submissionParsers;
+        this.answerResolver = answerResolver;
+        this.evalBehavior = evalBehavior;
+        this.eventNotifier = eventNotifier;
+        this.maxPrecomputedCascadeSize = maxPrecomputedCascadeSize;
+        this.incrementalCascade = incrementalCascade;
+        this.initializationPool = initializationPool;
+        this.streaming = streaming;
+        this.parsingPool = parsingPool;
+    }
+
+    /**
+     * @return a config with the settings made through the static setters of XFormParser and
+     * FormDef, as they are now
+     */
+    static XFormParserConfig fromStaticSettings() {
+        IAnswerResolver answerResolver = XFormParser.getAnswerResolver();
+        return new XFormParserConfig(Collections.<String, IElementHandler>emptyMap(),
+                Collections.<SubmissionParser>emptyList(),
+                answerResolver != null ? answerResolver : new DefaultAnswerResolver(),
+                FormDef.getDefaultEvalBehavior(), FormDef.getDefaultEventNotifier(), 0, false, null, false, null);
+    }
+
+    /**
+     * @return a copy of this config whose parsers hand elements with the given name, in the body or
+     * in a group or repeat, to handler, rather than to the handler built in for that name
+     */
+    public XFormParserConfig withElementHandler(String name, IElementHandler handler) {
+        Map<String, IElementHandler> handlers = new HashMap<>(this.handlers);
+        handlers.put(name, handler);
+        return new XFormParserConfig(Collections.unmodifiableMap(handlers), submissionParsers, answerResolver,
+                evalBehavior, eventNotifier, maxPrecomputedCascadeSize, incrementalCascade, initializationPool,
+                streaming, parsingPool);
+    }
+
+    /**
+     * @return a copy of this config whose parsers use parser for the submissions whose method it
+     * matches. Parsers added earlier are tried first.
+     */
+    public XFormParserConfig withSubmissionParser(SubmissionParser parser) {
+        List<SubmissionParser> submissionParsers = new ArrayList<>(this.submissionParsers);
+        submissionParsers.add(parser);
+        return new XFormParserConfig(handlers, Collections.unmodifiableList(submissionParsers), answerResolver,
+                evalBehavior, eventNotifier, maxPrecomputedCascadeSize, incrementalCascade, initializationPool,
+                streaming, parsingPool);
+    }
+
+    /**
+     * @return a copy of this config whose parsers turn the text of the answers in an instance they
+     * load into values with answerResolver
+     */
+    public XFormParserConfig withAnswerResolver(IAnswerResolver answerResolver) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    public XFormParserConfig withEvalBehavior(EvalBehavior evalBehavior) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    public XFormParserConfig withEventNotifier(EventNotifier eventNotifier) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    /** See IDag.setMaxPrecomputedCascadeSize(int) */
+    public XFormParserConfig withMaxPrecomputedCascadeSize(int maxPrecomputedCascadeSize) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    /** See IDag.setIncrementalCascade(boolean) */
+    public XFormParserConfig withIncrementalCascade(boolean incrementalCascade) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    /** See IDag.setInitializationPool(ForkJoinPool) */
+    public XFormParserConfig withInitializationPool(ForkJoinPool initializationPool) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    /** See {@link XFormParser#setStreaming(boolean)} */
+    public XFormParserConfig withStreaming(boolean streaming) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    /** See {@link XFormParser#setParsingPool(ForkJoinPool)} */
+    public XFormParserConfig withParsingPool(ForkJoinPool parsingPool) {
+        return new XFormParserConfig(handlers, submissionParsers, answerResolver, evalBehavior, eventNotifier,
+                maxPrecomputedCascadeSize, incrementalCascade, initializationPool, streaming, parsingPool);
+    }
+
+    public Map<String, IElementHandler> getElementHandlers() {
+        return handlers;
+    }
+
+    public List<SubmissionParser> getSubmissionParsers() {
+        return submissionParsers;
+    }
+
+    public IAnswerResolver getAnswerResolver() {
+        return answerResolver;
+    }
+
+    public EvalBehavior getEvalBehavior() {
+        return evalBehavior;
+    }
+
+    public EventNotifier getEventNotifier() {
+        return eventNotifier;
+    }
+
+    public int getMaxPrecomputedCascadeSize() {
+        return maxPrecomputedCascadeSize;
+    }
+
+    public boolean isIncrementalCascade() {
+        return incrementalCascade;
+    }
+
+    public ForkJoinPool getInitializationPool() {
+        return initializationPool;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public ForkJoinPool getParsingPool() {
+        return parsingPool;
+    }
+
+    /**
+     * @return a new, empty form with the settings of this config
+     */
+    public FormDef newFormDef() {
+        return new FormDef(evalBehavior, eventNotifier, maxPrecomputedCascadeSize, incrementalCascade,
+                initializationPool);
+    }
+}
@@ -18,6 +18,7 @@ import org.kxml2.kdom.Document;
  */
 public class XFormParserFactory implements IXFormParserFactory {
     CacheTable<String> stringCache;
+    XFormParserConfig config;
 
     public XFormParserFactory() {
     }
@@ -26,8 +27,17 @@ public class XFormParserFactory implements IXFormParserFactory {
         this.stringCache = stringCache;
     }
 
+    /**
+     * Makes a factory whose parsers all use config, so that it can be shared by threads parsing
+     * forms at the same time. A null config makes parsers which use the static settings.
+     */
+    public XFormParserFactory(CacheTable<String> stringCache, XFormParserConfig config) {
+        this.stringCache = stringCache;
+        this.config = config;
+    }
+
     public XFormParser getXFormParser(Reader reader) {
-        XFormParser parser = new XFormParser(reader);
+        XFormParser parser = config == null ? new XFormParser(reader) : new XFormParser(reader, config);
         init(parser);
         return parser;
     }
@@ -39,19 +49,19 @@ public class XFormParserFactory implements IXFormParserFactory {
     }
 
     public XFormParser getXFormParser(Document doc) {
-        XFormParser parser = new XFormParser(doc);
+        XFormParser parser = config == null ? new XFormParser(doc) : new XFormParser(doc, config);
         init(parser);
         return parser;
     }
 
     public XFormParser getXFormParser(Reader form, Reader instance) {
-        XFormParser parser = new XFormParser(form, instance);
+        XFormParser parser = config == null ? new XFormParser(form, instance) : new XFormParser(form, instance, config);
         init(parser);
         return parser;
     }
 
     public XFormParser getXFormParser(Document form, Document instance) {
-        XFormParser parser = new XFormParser(form, instance);
+        XFormParser parser = config == null ? new XFormParser(form, instance) : new XFormParser(form, instance, config);
         init(parser);
         return parser;
     }
@@ -40,33 +40,54 @@ import org.kxml2.kdom.Element;
  *
  */
 public class XFormUtils {
-    private static IXFormParserFactory _factory = new XFormParserFactory();
+    private static volatile IXFormParserFactory _factory = new XFormParserFactory();
 
-    public static IXFormParserFactory setXFormParserFactory(IXFormParserFactory factory) {
+    /**
+     * Sets the factory used by the methods which aren't given one.
+     *
+     * @deprecated pass the factory to the methods which parse, so that threads can use their own
+     */
+    @Deprecated
+    public static synchronized IXFormParserFactory setXFormParserFactory(IXFormParserFactory factory) {
         IXFormParserFactory oldFactory = _factory;
         _factory = factory;
         return oldFactory;
     }
 
     public static FormDef getFormFromResource (String resource) {
+        return getFormFromResource(resource, _factory);
+    }
+
+    public static FormDef getFormFromResource (String resource, IXFormParserFactory factory) {
         InputStream is = System.class.getResourceAsStream(resource);
         if (is == null) {
             Std.err.println("Can't find form resource \"" + resource + "\". Is it in the JAR?");
             return null;
         }
 
-        return getFormFromInputStream(is);
+        return getFormFromInputStream(is, factory);
     }
 
 
     public static FormDef getFormRaw(InputStreamReader isr) throws XFormParseException, IOException{
-        return _factory.getXFormParser(isr).parse();
+        return getFormRaw(isr, _factory);
+    }
+
+    public static FormDef getFormRaw(InputStreamReader isr, IXFormParserFactory factory) throws XFormParseException, IOException{
+        return factory.getXFormParser(isr).parse();
     }
 
     /*
      * This method throws XFormParseException when the form has errors.
      */
     public static FormDef getFormFromInputStream(InputStream is) throws XFormParseException {
+        return getFormFromInputStream(is, _factory);
+    }
+
+    /*
+     * This method throws XFormParseException when the form has errors.
+     */
+    public static FormDef getFormFromInputStream(InputStream is, IXFormParserFactory factory) throws XFormParseException {
         InputStreamReader isr = null;
         try {
             try {
@@ -75,7 +96,7 @@ public class XFormUtils {
                 throw new XFormParseException("IO Exception during parse! " + uee.getMessage());
             }
 
-            return _factory.getXFormParser(isr).parse();
+            return factory.getXFormParser(isr).parse();
         } catch(IOException e) {
             throw new XFormParseException("IO Exception during parse! " + e.getMessage());
         } finally {
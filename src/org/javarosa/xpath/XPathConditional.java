@@ -31,7 +31,6 @@ import org.javarosa.core.model.instance.DataInstance;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.xpath.expr.XPathBinaryOpExpr;
 import org.javarosa.xpath.expr.XPathExpression;
@@ -153,12 +152,12 @@ public class XPathConditional implements IConditionExpr {
     }
 
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
-        expr = (XPathExpression)ExtUtil.read(in, new ExtWrapTagged(), pf);
+        expr = (XPathExpression)ExtUtil.readShared(in, pf);
         hasNow = (boolean)ExtUtil.readBool(in);
     }
 
     public void writeExternal(DataOutputStream out) throws IOException {
-        ExtUtil.write(out, new ExtWrapTagged(expr));
+        ExtUtil.writeShared(out, expr);
         ExtUtil.writeBool(out, hasNow);
     }
 
@@ -0,0 +1,290 @@
+package org.javarosa.xpath;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.xpath.expr.XPathArithExpr;
+import org.javarosa.xpath.expr.XPathBinaryOpExpr;
+import org.javarosa.xpath.expr.XPathBoolExpr;
+import org.javarosa.xpath.expr.XPathCmpExpr;
+import org.javarosa.xpath.expr.XPathEqExpr;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFilterExpr;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathPathExpr;
+import org.javarosa.xpath.expr.XPathStep;
+import org.javarosa.xpath.expr.XPathUnaryOpExpr;
+import org.javarosa.xpath.parser.Parser;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+
+/**
+ * A cache of parsed XPath expressions, by their text. The same expressions recur throughout a
+ * form, and across forms, so each distinct text is only lexed and parsed once; the parsed tree
+ * is shared by everyone who parses that text, and so must not be changed.
+ *
+ * Newly parsed trees are also hash-consed: each subtree which equals one parsed before is
+ * replaced with that one, so /data/age in "/data/age &gt; 5" and in "selected(/data/age, 'x')" is
+ * the same object. Forms hold, and serialize, each shared subtree once.
+ *
+ * Both tables are bounded. The least recently used texts are dropped, and the table of subtrees
+ * is emptied when it fills up; trees already shared stay shared.
+ *
+ * The cache can be used by several threads at once. XPathParseTool only parses through one once
+ * it has been attached with {@link XPathParseTool#attachParseCache(XPathParseCache)}.
+ */
+public class XPathParseCache {
+    private final Map<String, XPathExpression> expressions;
+    private final ConcurrentHashMap<Node, Object> nodes = new ConcurrentHashMap<Node, Object>();
+    private final int maxNodes;
+
+    private final AtomicLong parses = new AtomicLong();
+    private final AtomicLong parseHits = new AtomicLong();
+    private final AtomicLong nodeLookups = new AtomicLong();
+    private final AtomicLong nodeHits = new AtomicLong();
+
+    /**
+     * @param maxExpressions the number of texts whose trees are kept
+     * @param maxNodes       the number of distinct subtrees kept for sharing
+     */
+    public XPathParseCache(final int maxExpressions, int maxNodes) {
+        if (maxExpressions < 1 || maxNodes < 1) {
+            throw new IllegalArgumentException("The cache must hold at least one expression and node");
+        }
+        this.maxNodes = maxNodes;
+        expressions = new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                return size() > maxExpressions;
+            }
+        };
+    }
+
+    /**
+     * @return the shared tree of xpath, which must not be changed
+     */
+    public XPathExpression parse(String xpath) throws XPathSyntaxException {
+        parses.incrementAndGet();
+        XPathExpression expr;
+        synchronized (expressions) {
+            expr = expressions.get(xpath);
+        }
+        if (expr != null) {
+            parseHits.incrementAndGet();
+            return expr;
+        }
+
+        expr = share(Parser.parse(xpath));
+        synchronized (expressions) {
+            expressions.put(xpath, expr);
+        }
+        return expr;
+    }
+
+    /**
+     * Replaces the subtrees of a newly parsed expr with the equal ones parsed before, from the
+     * leaves up, so that each node only needs comparing with its children by identity.
+     *
+     * @return the tree parsed before which equals expr, or expr itself
+     */
+    private XPathExpression share(XPathExpression expr) {
+        if (expr instanceof XPathBinaryOpExpr) {
+            XPathBinaryOpExpr x = (XPathBinaryOpExpr) expr;
+            x.a = share(x.a);
+            x.b = share(x.b);
+        } else if (expr instanceof XPathUnaryOpExpr) {
+            XPathUnaryOpExpr x = (XPathUnaryOpExpr) expr;
+            x.a = share(x.a);
+        } else if (expr instanceof XPathFuncExpr) {
+            XPathFuncExpr x = (XPathFuncExpr) expr;
+            share(x.args);
+        } else if (expr instanceof XPathFilterExpr) {
+            XPathFilterExpr x = (XPathFilterExpr) expr;
+            x.x = share(x.x);
+            share(x.predicates);
+        } else if (expr instanceof XPathPathExpr) {
+            XPathPathExpr x = (XPathPathExpr) expr;
+            if (x.filtExpr != null) {
+                x.filtExpr = (XPathFilterExpr) share(x.filtExpr);
+            }
+            for (int i = 0; i < x.steps.length; i++) {
+                share(x.steps[i].predicates);
+                x.steps[i] = (XPathStep) intern(x.steps[i]);
+            }
+        }
+        return (XPathExpression) intern(expr);
+    }
+
+    private void share(XPathExpression[] exprs) {
+        for (int i = 0; i < exprs.length; i++) {
+            exprs[i] = share(exprs[i]);
+        }
+    }
+
+    private Object intern(Object node) {
+        if (node instanceof XPathFuncExpr && !((XPathFuncExpr) node).isRepeatable()) {
+            return node;
+        }
+
+        nodeLookups.incrementAndGet();
+        Node key = new Node(node);
+        Object existing = nodes.get(key);
+        if (existing != null) {
+            nodeHits.incrementAndGet();
+            return existing;
+        }
+        if (nodes.size() >= maxNodes) {
+            nodes.clear();
+        }
+        existing = nodes.putIfAbsent(key, node);
+        return existing != null ? existing : node;
+    }
+
+    /**
+     * @return the share of parses answered from the cache, between 0 and 1
+     */
+    public double getParseHitRate() {
+        return rate(parseHits.get(), parses.get());
+    }
+
+    /**
+     * @return the share of newly parsed subtrees which were replaced by shared ones, between 0 and 1
+     */
+    public double getSharedNodeRate() {
+        return rate(nodeHits.get(), nodeLookups.get());
+    }
+
+    private static double rate(long hits, long lookups) {
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    public int size() {
+        synchronized (expressions) {
+            return expressions.size();
+        }
+    }
+
+    public String toString() {
+        return "XPathParseCache: " + parses.get() + " parses, " + Math.round(100 * getParseHitRate())
+                + "% from the cache; " + nodeLookups.get() + " subtrees parsed, "
+                + Math.round(100 * getSharedNodeRate()) + "% shared";
+    }
+
+    /**
+     * A node of a tree whose children are already shared, so it can be compared by its own fields
+     * and the identity of its children. Leaves compare as they always do.
+     */
+    private static final class Node {
+        private final Object node;
+        private final int hash;
+
+        Node(Object node) {
+            this.node = node;
+            this.hash = 31 * node.getClass().hashCode() + shallowHashCode(node);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) {
+                return false;
+            }
+            Object other = ((Node) o).node;
+            return hash == ((Node) o).hash && node.getClass() == other.getClass() && shallowEquals(node, other);
+        }
+
+        private static int shallowHashCode(Object node) {
+            if (node instanceof XPathBinaryOpExpr) {
+                XPathBinaryOpExpr x = (XPathBinaryOpExpr) node;
+                return 31 * (31 * operator(x) + System.identityHashCode(x.a)) + System.identityHashCode(x.b);
+            } else if (node instanceof XPathUnaryOpExpr) {
+                return System.identityHashCode(((XPathUnaryOpExpr) node).a);
+            } else if (node instanceof XPathFuncExpr) {
+                XPathFuncExpr x = (XPathFuncExpr) node;
+                return 31 * x.id.hashCode() + identityHashCode(x.args);
+            } else if (node instanceof XPathFilterExpr) {
+                XPathFilterExpr x = (XPathFilterExpr) node;
+                return 31 * System.identityHashCode(x.x) + identityHashCode(x.predicates);
+            } else if (node instanceof XPathPathExpr) {
+                XPathPathExpr x = (XPathPathExpr) node;
+                return 31 * (31 * x.init_context + System.identityHashCode(x.filtExpr)) + identityHashCode(x.steps);
+            } else if (node instanceof XPathStep) {
+                XPathStep x = (XPathStep) node;
+                return 31 * (31 * x.axis + x.test) + identityHashCode(x.predicates)
+                        + (x.name != null ? x.name.hashCode() : 0);
+            } else {
+                return node.hashCode();
+            }
+        }
+
+        private static boolean shallowEquals(Object node, Object other) {
+            if (node instanceof XPathBinaryOpExpr) {
+                XPathBinaryOpExpr x = (XPathBinaryOpExpr) node;
+                XPathBinaryOpExpr y = (XPathBinaryOpExpr) other;
+                return operator(x) == operator(y) && x.a == y.a && x.b == y.b;
+            } else if (node instanceof XPathUnaryOpExpr) {
+                return ((XPathUnaryOpExpr) node).a == ((XPathUnaryOpExpr) other).a;
+            } else if (node instanceof XPathFuncExpr) {
+                XPathFuncExpr x = (XPathFuncExpr) node;
+                XPathFuncExpr y = (XPathFuncExpr) other;
+                return x.id.equals(y.id) && identical(x.args, y.args);
+            } else if (node instanceof XPathFilterExpr) {
+                XPathFilterExpr x = (XPathFilterExpr) node;
+                XPathFilterExpr y = (XPathFilterExpr) other;
+                return x.x == y.x && identical(x.predicates, y.predicates);
+            } else if (node instanceof XPathPathExpr) {
+                XPathPathExpr x = (XPathPathExpr) node;
+                XPathPathExpr y = (XPathPathExpr) other;
+                return x.init_context == y.init_context && x.filtExpr == y.filtExpr && identical(x.steps, y.steps);
+            } else if (node instanceof XPathStep) {
+                XPathStep x = (XPathStep) node;
+                XPathStep y = (XPathStep) other;
+                return x.axis == y.axis && x.test == y.test && ExtUtil.equals(x.name, y.name)
+                        && ExtUtil.equals(x.namespace, y.namespace) && ExtUtil.equals(x.literal, y.literal)
+                        && identical(x.predicates, y.predicates);
+            } else {
+                return node.equals(other);
+            }
+        }
+
+        /**
+         * @return the operator of a binary expression, which each subclass keeps in its own way
+         */
+        private static int operator(XPathBinaryOpExpr x) {
+            if (x instanceof XPathArithExpr) {
+                return ((XPathArithExpr) x).op;
+            } else if (x instanceof XPathBoolExpr) {
+                return ((XPathBoolExpr) x).op;
+            } else if (x instanceof XPathCmpExpr) {
+                return ((XPathCmpExpr) x).op;
+            } else if (x instanceof XPathEqExpr) {
+                return ((XPathEqExpr) x).equal ? 1 : 0;
+            } else {
+                return 0;
+            }
+        }
+
+        private static int identityHashCode(Object[] children) {
+            int hash = 1;
+            for (Object child : children) {
+                hash = 31 * hash + System.identityHashCode(child);
+            }
+            return hash;
+        }
+
+        private static boolean identical(Object[] children, Object[] others) {
+            if (children.length != others.length) {
+                return false;
+            }
+            for (int i = 0; i < children.length; i++) {
+                if (children[i] != others[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
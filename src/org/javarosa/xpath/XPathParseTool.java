@@ -17,7 +17,6 @@
 package org.javarosa.xpath;
 
 import org.javarosa.xpath.expr.XPathExpression;
-import org.javarosa.xpath.parser.Lexer;
 import org.javarosa.xpath.parser.Parser;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 
@@ -37,7 +36,28 @@ public class XPathParseTool {
             "org.javarosa.xpath.expr.XPathVariableReference"
     };
 
+    // off unless attachParseCache() is called
+    private static volatile XPathParseCache parseCache = null;
+
+    /**
+     * Sets the cache through which expressions are parsed, or turns caching off if it is null,
+     * which is the default.
+     *
+     * The cache hands the same trees, and subtrees, to every form parsed in this JVM. The
+     * expression classes keep their fields public and assignable, as deserialization needs, so
+     * nothing stops a caller from changing a shared tree and with it every form that uses it.
+     * Only attach a cache if nothing in the application changes parsed expressions.
+     */
+    public static void attachParseCache (XPathParseCache cache) {
+        parseCache = cache;
+    }
+
+    public static XPathParseCache getParseCache () {
+        return parseCache;
+    }
+
     public static XPathExpression parseXPath (String xpath) throws XPathSyntaxException {
-        return Parser.parse(Lexer.lex(xpath));
+        XPathParseCache cache = parseCache;
+        return cache != null ? cache.parse(xpath) : Parser.parse(xpath);
     }
 }
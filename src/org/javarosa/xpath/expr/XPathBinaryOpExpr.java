@@ -25,7 +25,6 @@ import org.javarosa.core.model.condition.EvaluationContext;
 import org.javarosa.core.model.condition.pivot.UnpivotableExpressionException;
 import org.javarosa.core.model.instance.DataInstance;
 import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.core.util.externalizable.DeserializationException;
 
@@ -53,13 +52,13 @@ public abstract class XPathBinaryOpExpr extends XPathOpExpr {
     }
 
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
-        a = (XPathExpression)ExtUtil.read(in, new ExtWrapTagged(), pf);
-        b = (XPathExpression)ExtUtil.read(in, new ExtWrapTagged(), pf);
+        a = (XPathExpression)ExtUtil.readShared(in, pf);
+        b = (XPathExpression)ExtUtil.readShared(in, pf);
     }
 
     public void writeExternal(DataOutputStream out) throws IOException {
-        ExtUtil.write(out, new ExtWrapTagged(a));
-        ExtUtil.write(out, new ExtWrapTagged(b));
+        ExtUtil.writeShared(out, a);
+        ExtUtil.writeShared(out, b);
     }
 
     public Object pivot (DataInstance model, EvaluationContext evalContext, List<Object> pivots, Object sentinal) throws UnpivotableExpressionException {
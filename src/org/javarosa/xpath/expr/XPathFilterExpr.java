@@ -20,7 +20,6 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.javarosa.core.model.condition.EvaluationContext;
@@ -28,8 +27,6 @@ import org.javarosa.core.model.condition.pivot.UnpivotableExpressionException;
 import org.javarosa.core.model.instance.DataInstance;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapListPoly;
-import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.xpath.XPathUnsupportedException;
 
@@ -82,19 +79,18 @@ public class XPathFilterExpr extends XPathExpression {
     }
 
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
-        x = (XPathExpression)ExtUtil.read(in, new ExtWrapTagged(), pf);
-        List<Object> v = (List<Object>)ExtUtil.read(in, new ExtWrapListPoly(), pf);
+        x = (XPathExpression)ExtUtil.readShared(in, pf);
 
-        predicates = new XPathExpression[v.size()];
+        predicates = new XPathExpression[ExtUtil.readInt(in)];
         for (int i = 0; i < predicates.length; i++)
-            predicates[i] = (XPathExpression)v.get(i);
+            predicates[i] = (XPathExpression)ExtUtil.readShared(in, pf);
     }
 
     public void writeExternal(DataOutputStream out) throws IOException {
-      List<XPathExpression> v = Arrays.asList(predicates);
-
-        ExtUtil.write(out, new ExtWrapTagged(x));
-        ExtUtil.write(out, new ExtWrapListPoly(v));
+        ExtUtil.writeShared(out, x);
+        ExtUtil.writeNumeric(out, predicates.length);
+        for (XPathExpression predicate : predicates)
+            ExtUtil.writeShared(out, predicate);
     }
 
     public Object pivot (DataInstance model, EvaluationContext evalContext, List<Object> pivots, Object sentinal) throws UnpivotableExpressionException {
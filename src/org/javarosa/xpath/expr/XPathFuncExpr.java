@@ -32,10 +32,10 @@ import org.javarosa.core.util.MathUtils;
 import org.javarosa.core.util.PropertyUtils;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapListPoly;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.xpath.IExprDataType;
 import org.javarosa.xpath.XPathArityException;
+import org.javarosa.xpath.XPathException;
 import org.javarosa.xpath.XPathNodeset;
 import org.javarosa.xpath.XPathTypeMismatchException;
 import org.javarosa.xpath.XPathUnhandledException;
@@ -45,7 +45,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -65,14 +64,182 @@ import static java.lang.Double.NaN;
  *
  */
 public class XPathFuncExpr extends XPathExpression {
+    // the built-in functions a call can be bound to
+    private static final int FN_UNBOUND = -1;
+    private static final int FN_CUSTOM = 0;
+    private static final int FN_IF = 1;
+    private static final int FN_COALESCE = 2;
+    private static final int FN_INDEXED_REPEAT = 3;
+    private static final int FN_TRUE = 4;
+    private static final int FN_FALSE = 5;
+    private static final int FN_BOOLEAN = 6;
+    private static final int FN_NUMBER = 7;
+    private static final int FN_INT = 8;
+    private static final int FN_ROUND = 9;
+    private static final int FN_STRING = 10;
+    private static final int FN_DATE = 11;
+    private static final int FN_DATE_TIME = 12;
+    private static final int FN_DECIMAL_DATE_TIME = 13;
+    private static final int FN_DECIMAL_TIME = 14;
+    private static final int FN_NOT = 15;
+    private static final int FN_BOOLEAN_FROM_STRING = 16;
+    private static final int FN_FORMAT_DATE = 17;
+    private static final int FN_ABS = 18;
+    private static final int FN_ACOS = 19;
+    private static final int FN_ASIN = 20;
+    private static final int FN_ATAN = 21;
+    private static final int FN_ATAN2 = 22;
+    private static final int FN_COS = 23;
+    private static final int FN_EXP = 24;
+    private static final int FN_EXP10 = 25;
+    private static final int FN_LOG = 26;
+    private static final int FN_LOG10 = 27;
+    private static final int FN_PI = 28;
+    private static final int FN_SIN = 29;
+    private static final int FN_SQRT = 30;
+    private static final int FN_TAN = 31;
+    private static final int FN_FORMAT_DATE_TIME = 32;
+    private static final int FN_SELECTED = 33;
+    private static final int FN_COUNT_SELECTED = 34;
+    private static final int FN_SELECTED_AT = 35;
+    private static final int FN_POSITION = 36;
+    private static final int FN_COUNT = 37;
+    private static final int FN_COUNT_NON_EMPTY = 38;
+    private static final int FN_SUM = 39;
+    private static final int FN_MAX = 40;
+    private static final int FN_MIN = 41;
+    private static final int FN_TODAY = 42;
+    private static final int FN_NOW = 43;
+    private static final int FN_CONCAT = 44;
+    private static final int FN_JOIN = 45;
+    private static final int FN_SUBSTR = 46;
+    private static final int FN_CONTAINS = 47;
+    private static final int FN_STARTS_WITH = 48;
+    private static final int FN_ENDS_WITH = 49;
+    private static final int FN_STRING_LENGTH = 50;
+    private static final int FN_CHECKLIST = 51;
+    private static final int FN_WEIGHTED_CHECKLIST = 52;
+    private static final int FN_REGEX = 53;
+    private static final int FN_DEPEND = 54;
+    private static final int FN_RANDOM = 55;
+    private static final int FN_ONCE = 56;
+    private static final int FN_UUID = 57;
+    private static final int FN_VERSION = 58;
+    private static final int FN_PROPERTY = 59;
+    private static final int FN_POW = 60;
+    private static final int FN_AREA = 61;
+    private static final int FN_DIGEST = 62;
+
+    private static final HashMap<String, Integer> BUILT_IN_FUNCTIONS = new HashMap<String, Integer>();
+
+    static {
+        BUILT_IN_FUNCTIONS.put("if", FN_IF);
+        BUILT_IN_FUNCTIONS.put("coalesce", FN_COALESCE);
+        BUILT_IN_FUNCTIONS.put("indexed-repeat", FN_INDEXED_REPEAT);
+        BUILT_IN_FUNCTIONS.put("true", FN_TRUE);
+        BUILT_IN_FUNCTIONS.put("false", FN_FALSE);
+        BUILT_IN_FUNCTIONS.put("boolean", FN_BOOLEAN);
+        BUILT_IN_FUNCTIONS.put("number", FN_NUMBER);
+        BUILT_IN_FUNCTIONS.put("int", FN_INT);
+        BUILT_IN_FUNCTIONS.put("round", FN_ROUND);
+        BUILT_IN_FUNCTIONS.put("string", FN_STRING);
+        BUILT_IN_FUNCTIONS.put("date", FN_DATE);
+        BUILT_IN_FUNCTIONS.put("date-time", FN_DATE_TIME);
+        BUILT_IN_FUNCTIONS.put("decimal-date-time", FN_DECIMAL_DATE_TIME);
+        BUILT_IN_FUNCTIONS.put("decimal-time", FN_DECIMAL_TIME);
+        BUILT_IN_FUNCTIONS.put("not", FN_NOT);
+        BUILT_IN_FUNCTIONS.put("boolean-from-string", FN_BOOLEAN_FROM_STRING);
+        BUILT_IN_FUNCTIONS.put("format-date", FN_FORMAT_DATE);
+        BUILT_IN_FUNCTIONS.put("abs", FN_ABS);
+        BUILT_IN_FUNCTIONS.put("acos", FN_ACOS);
+        BUILT_IN_FUNCTIONS.put("asin", FN_ASIN);
+        BUILT_IN_FUNCTIONS.put("atan", FN_ATAN);
+        BUILT_IN_FUNCTIONS.put("atan2", FN_ATAN2);
+        BUILT_IN_FUNCTIONS.put("cos", FN_COS);
+        BUILT_IN_FUNCTIONS.put("exp", FN_EXP);
+        BUILT_IN_FUNCTIONS.put("exp10", FN_EXP10);
+        BUILT_IN_FUNCTIONS.put("log", FN_LOG);
+        BUILT_IN_FUNCTIONS.put("log10", FN_LOG10);
+        BUILT_IN_FUNCTIONS.put("pi", FN_PI);
+        BUILT_IN_FUNCTIONS.put("sin", FN_SIN);
+        BUILT_IN_FUNCTIONS.put("sqrt", FN_SQRT);
+        BUILT_IN_FUNCTIONS.put("tan", FN_TAN);
+        BUILT_IN_FUNCTIONS.put("format-date-time", FN_FORMAT_DATE_TIME);
+        BUILT_IN_FUNCTIONS.put("selected", FN_SELECTED);
+        BUILT_IN_FUNCTIONS.put("is-selected", FN_SELECTED);
+        BUILT_IN_FUNCTIONS.put("count-selected", FN_COUNT_SELECTED);
+        BUILT_IN_FUNCTIONS.put("selected-at", FN_SELECTED_AT);
+        BUILT_IN_FUNCTIONS.put("position", FN_POSITION);
+        BUILT_IN_FUNCTIONS.put("count", FN_COUNT);
+        BUILT_IN_FUNCTIONS.put("count-non-empty", FN_COUNT_NON_EMPTY);
+        BUILT_IN_FUNCTIONS.put("sum", FN_SUM);
+        BUILT_IN_FUNCTIONS.put("max", FN_MAX);
+        BUILT_IN_FUNCTIONS.put("min", FN_MIN);
+        BUILT_IN_FUNCTIONS.put("today", FN_TODAY);
+        BUILT_IN_FUNCTIONS.put("now", FN_NOW);
+        BUILT_IN_FUNCTIONS.put("concat", FN_CONCAT);
+        BUILT_IN_FUNCTIONS.put("join", FN_JOIN);
+        BUILT_IN_FUNCTIONS.put("substr", FN_SUBSTR);
+        BUILT_IN_FUNCTIONS.put("contains", FN_CONTAINS);
+        BUILT_IN_FUNCTIONS.put("starts-with", FN_STARTS_WITH);
+        BUILT_IN_FUNCTIONS.put("ends-with", FN_ENDS_WITH);
+        BUILT_IN_FUNCTIONS.put("string-length", FN_STRING_LENGTH);
+        BUILT_IN_FUNCTIONS.put("checklist", FN_CHECKLIST);
+        BUILT_IN_FUNCTIONS.put("weighted-checklist", FN_WEIGHTED_CHECKLIST);
+        BUILT_IN_FUNCTIONS.put("regex", FN_REGEX);
+        BUILT_IN_FUNCTIONS.put("depend", FN_DEPEND);
+        BUILT_IN_FUNCTIONS.put("random", FN_RANDOM);
+        BUILT_IN_FUNCTIONS.put("once", FN_ONCE);
+        BUILT_IN_FUNCTIONS.put("uuid", FN_UUID);
+        BUILT_IN_FUNCTIONS.put("version", FN_VERSION);
+        BUILT_IN_FUNCTIONS.put("property", FN_PROPERTY);
+        BUILT_IN_FUNCTIONS.put("pow", FN_POW);
+        BUILT_IN_FUNCTIONS.put("enclosed-area", FN_AREA);
+        BUILT_IN_FUNCTIONS.put("area", FN_AREA);
+        BUILT_IN_FUNCTIONS.put("digest", FN_DIGEST);
+    }
+
     public XPathQName id;            //name of the function
     public XPathExpression[] args;    //argument list
 
+    //set by bind()
+    private String name;
+    private int function = FN_UNBOUND;
+    private boolean validArity;
+
     public XPathFuncExpr () { } //for deserialization
 
     public XPathFuncExpr (XPathQName id, XPathExpression[] args) {
         this.id = id;
         this.args = args;
+        bind();
+    }
+
+    /**
+     * Resolves, once, the built-in function this call refers to and checks
+     * the number of arguments, so that eval() dispatches on the bound
+     * function rather than comparing the name with every built-in. Calls
+     * that aren't built-ins are left to the custom function handlers. A call
+     * with the wrong number of arguments still fails only when evaluated.
+     *
+     * Called after parsing or deserialization; call it again if id or args
+     * are changed.
+     */
+    public void bind () {
+        String name = id.toString();
+        Integer builtIn = BUILT_IN_FUNCTIONS.get(name);
+        int function = (builtIn == null || !acceptsArgCount(builtIn, args.length)) ? FN_CUSTOM : builtIn;
+
+        boolean validArity = true;
+        try {
+            assertArity(function, name, args);
+        } catch (XPathException e) {
+            validArity = false;
+        }
+
+        this.name = name;
+        this.validArity = validArity;
+        this.function = function;
     }
 
     public String toString () {
@@ -101,12 +268,7 @@ public class XPathFuncExpr extends XPathExpression {
             //Dec 8, 2011 - Added "uuid", since we should never assume one uuid equals another
             //May 6, 2013 - Added "random", since two calls asking for a random
             //Jun 4, 2013 - Added "now" and "today", since these could change during the course of a survey
-            if(!id.equals(x.id) || args.length != x.args.length ||
-                id.toString().equals("uuid") ||
-                id.toString().equals("random") ||
-                id.toString().equals("once") ||
-                id.toString().equals("now") ||
-                id.toString().equals("today")) {
+            if(!id.equals(x.id) || args.length != x.args.length || !isRepeatable()) {
                 return false;
             }
 
@@ -116,20 +278,33 @@ public class XPathFuncExpr extends XPathExpression {
         }
     }
 
+    /**
+     * @return whether two calls to this function with equal arguments return the same thing, and
+     * so are equal. Calls to uuid(), random(), once(), now() and today() never are.
+     */
+    public boolean isRepeatable () {
+        String name = id.toString();
+        return !(name.equals("uuid") ||
+            name.equals("random") ||
+            name.equals("once") ||
+            name.equals("now") ||
+            name.equals("today"));
+    }
+
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
         id = (XPathQName)ExtUtil.read(in, XPathQName.class);
-        List<Object> v = (List<Object>)ExtUtil.read(in, new ExtWrapListPoly(), pf);
-
-        args = new XPathExpression[v.size()];
+        args = new XPathExpression[ExtUtil.readInt(in)];
         for (int i = 0; i < args.length; i++)
-            args[i] = (XPathExpression)v.get(i);
+            args[i] = (XPathExpression)ExtUtil.readShared(in, pf);
+
+        bind();
     }
 
     public void writeExternal(DataOutputStream out) throws IOException {
-      List<XPathExpression> v = Arrays.asList(args);
-
         ExtUtil.write(out, id);
-        ExtUtil.write(out, new ExtWrapListPoly(v));
+        ExtUtil.writeNumeric(out, args.length);
+        for (XPathExpression arg : args)
+            ExtUtil.writeShared(out, arg);
     }
 
     /**
@@ -144,32 +319,37 @@ public class XPathFuncExpr extends XPathExpression {
      *
      */
     public Object eval (DataInstance model, EvaluationContext evalContext) {
-        String name = id.toString();
+        if (function == FN_UNBOUND) {
+            bind();
+        }
         Object[] argVals = new Object[args.length];
 
-        HashMap<String, IFunctionHandler> funcHandlers = evalContext.getFunctionHandlers();
+        if (!validArity) {
+            // the functions that evaluate their own arguments check the arity first;
+            // the others evaluate their arguments before checking it
+            if (function != FN_IF && function != FN_COALESCE && function != FN_INDEXED_REPEAT) {
+                for (int i = 0; i < args.length; i++) {
+                    argVals[i] = args[i].eval(model, evalContext);
+                }
+            }
+            assertArity(function, name, args);
+        }
 
         //TODO: Func handlers should be able to declare the desire for short circuiting as well
-        if (name.equals("if")) {
-            assertArgsCount(name, args, 3);
-            return ifThenElse(model, evalContext, args, argVals);
-        } else if (name.equals("coalesce")) {
-            assertArgsCount(name, args, 2);
-            argVals[0] = args[0].eval(model, evalContext);
-            if (!isNull(argVals[0])) {
-                return argVals[0];
-            } else {
-                // that was null, so try the other one...
-                argVals[1] = args[1].eval(model, evalContext);
-                return argVals[1];
-            }
-        } else if (name.equals("indexed-repeat")) {
-            if ((args.length == 3 || args.length == 5 || args.length == 7 || args.length == 9 || args.length == 11)) {
+        switch (function) {
+            case FN_IF:
+                return ifThenElse(model, evalContext, args, argVals);
+            case FN_COALESCE:
+                argVals[0] = args[0].eval(model, evalContext);
+                if (!isNull(argVals[0])) {
+                    return argVals[0];
+                } else {
+                    // that was null, so try the other one...
+                    argVals[1] = args[1].eval(model, evalContext);
+                    return argVals[1];
+                }
+            case FN_INDEXED_REPEAT:
                 return indexedRepeat(model, evalContext, args, argVals);
-            } else {
-                throw new XPathUnhandledException("function \'" + name + "\' requires " +
-                          "3, 5, 7, 9 or 11 arguments. Only " + args.length + " provided.");
-            }
         }
 
         for (int i = 0; i < args.length; i++) {
@@ -177,304 +357,368 @@ public class XPathFuncExpr extends XPathExpression {
         }
 
         //check built-in functions
-        if (name.equals("true")) {
-            assertArgsCount(name, args, 0);
-            return Boolean.TRUE;
-        } else if (name.equals("false")) {
-            assertArgsCount(name, args, 0);
-            return Boolean.FALSE;
-        } else if (name.equals("boolean")) {
-            assertArgsCount(name, args, 1);
-            return toBoolean(argVals[0]);
-        } else if (name.equals("number")) {
-            assertArgsCount(name, args, 1);
-            return toNumeric(argVals[0]);
-        } else if (name.equals("int")) { //non-standard
-            assertArgsCount(name, args, 1);
-            return toInt(argVals[0]);
-        } else if (name.equals("round")) { // Proximate XPath 3.0 and Excel-style round(value,decimal place)
-            final int places;
-            if (args.length == 1) {
-                places = 0;
-             } else {
-                assertArgsCount(name, args, 2);
-                places = toNumeric(argVals[1]).intValue();
-            }
-            return round(toNumeric(argVals[0]), places);
-        } else if (name.equals("string")) {
-            assertArgsCount(name, args, 1);
-            return toString(argVals[0]);
-        } else if (name.equals("date")) { //non-standard
-            assertArgsCount(name, args, 1);
-            return toDate(argVals[0], false);
-        } else if (name.equals("date-time")) { //non-standard -- convert double/int/string to Date object
-            assertArgsCount(name, args, 1);
-            return toDate(argVals[0], true);
-        } else if (name.equals("decimal-date-time")) { //non-standard -- convert string/date to decimal days off 1970-01-01T00:00:00.000-000
-            assertArgsCount(name, args, 1);
-            return toDecimalDateTime(argVals[0], true);
-        } else if (name.equals("decimal-time")) { //non-standard -- convert string/date to decimal days off 1970-01-01T00:00:00.000-000
-            assertArgsCount(name, args, 1);
-            return toDecimalDateTime(argVals[0], false);
-        } else if (name.equals("not")) {
-            assertArgsCount(name, args, 1);
-            return boolNot(argVals[0]);
-        } else if (name.equals("boolean-from-string")) {
-            assertArgsCount(name, args, 1);
-            return boolStr(argVals[0]);
-        } else if (name.equals("format-date")) {
-            assertArgsCount(name, args, 2);
-            return formatDateTime(argVals[0], argVals[1]);
-        } else if (name.equals("abs")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.abs(toDouble(argVals[0]));
-        } else if (name.equals("acos")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.acos(toDouble(argVals[0]));
-        } else if (name.equals("asin")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.asin(toDouble(argVals[0]));
-        } else if (name.equals("atan")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.atan(toDouble(argVals[0]));
-        } else if (name.equals("atan2")) { //XPath 3.0
-            checkArity(name, 2, args.length);
-            return Math.atan2(toDouble(argVals[0]), toDouble(argVals[1]));
-        } else if (name.equals("cos")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.cos(toDouble(argVals[0]));
-        } else if (name.equals("exp")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.exp(toDouble(argVals[0]));
-        } else if (name.equals("exp10")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.pow(10.0, toDouble(argVals[0]));
-        } else if (name.equals("log")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.log(toDouble(argVals[0]));
-        } else if (name.equals("log10")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.log10(toDouble(argVals[0]));
-        } else if (name.equals("pi")) { //XPath 3.0
-            checkArity(name, 0, args.length);
-            return Math.PI;
-        } else if (name.equals("sin")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.sin(toDouble(argVals[0]));
-        } else if (name.equals("sqrt")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.sqrt(toDouble(argVals[0]));
-        } else if (name.equals("tan")) { //XPath 3.0
-            checkArity(name, 1, args.length);
-            return Math.tan(toDouble(argVals[0]));
-        } else if (name.equals("format-date-time")) { // non-standard
-            assertArgsCount(name, args, 2);
-            return formatDateTime(argVals[0], argVals[1]);
-        } else if ((name.equals("selected") || name.equals("is-selected"))) { //non-standard
-            assertArgsCount(name, args, 2);
-            return multiSelected(argVals[0], argVals[1], name);
-        } else if (name.equals("count-selected")) { //non-standard
-            assertArgsCount(name, args, 1);
-            return countSelected(argVals[0]);
-        } else if (name.equals("selected-at")) { //non-standard
-            assertArgsCount(name, args, 2);
-            return selectedAt(argVals[0], argVals[1]);
-        } else if (name.equals("position")) {
-            //TODO: Technically, only the 0 length argument is valid here.
-            if (args.length == 1) {
-                XPathNodeset nodes = (XPathNodeset) argVals[0];
-                if (nodes.size() == 0) {
-                    // Added to prevent an exception within ODK Validate.
-                    // Will likely cause an error downstream when used in an XPath.
-                    return (double) (1 + TreeReference.INDEX_UNBOUND);
+        switch (function) {
+            case FN_TRUE:
+                return Boolean.TRUE;
+            case FN_FALSE:
+                return Boolean.FALSE;
+            case FN_BOOLEAN:
+                return toBoolean(argVals[0]);
+            case FN_NUMBER:
+                return toNumeric(argVals[0]);
+            case FN_INT: //non-standard
+                return toInt(argVals[0]);
+            case FN_ROUND: // Proximate XPath 3.0 and Excel-style round(value,decimal place)
+                final int places = args.length == 1 ? 0 : toNumeric(argVals[1]).intValue();
+                return round(toNumeric(argVals[0]), places);
+            case FN_STRING:
+                return toString(argVals[0]);
+            case FN_DATE: //non-standard
+                return toDate(argVals[0], false);
+            case FN_DATE_TIME: //non-standard -- convert double/int/string to Date object
+                return toDate(argVals[0], true);
+            case FN_DECIMAL_DATE_TIME: //non-standard -- convert string/date to decimal days off 1970-01-01T00:00:00.000-000
+                return toDecimalDateTime(argVals[0], true);
+            case FN_DECIMAL_TIME: //non-standard -- convert string/date to decimal days off 1970-01-01T00:00:00.000-000
+                return toDecimalDateTime(argVals[0], false);
+            case FN_NOT:
+                return boolNot(argVals[0]);
+            case FN_BOOLEAN_FROM_STRING:
+                return boolStr(argVals[0]);
+            case FN_FORMAT_DATE:
+                return formatDateTime(argVals[0], argVals[1]);
+            case FN_ABS: //XPath 3.0
+                return Math.abs(toDouble(argVals[0]));
+            case FN_ACOS: //XPath 3.0
+                return Math.acos(toDouble(argVals[0]));
+            case FN_ASIN: //XPath 3.0
+                return Math.asin(toDouble(argVals[0]));
+            case FN_ATAN: //XPath 3.0
+                return Math.atan(toDouble(argVals[0]));
+            case FN_ATAN2: //XPath 3.0
+                return Math.atan2(toDouble(argVals[0]), toDouble(argVals[1]));
+            case FN_COS: //XPath 3.0
+                return Math.cos(toDouble(argVals[0]));
+            case FN_EXP: //XPath 3.0
+                return Math.exp(toDouble(argVals[0]));
+            case FN_EXP10: //XPath 3.0
+                return Math.pow(10.0, toDouble(argVals[0]));
+            case FN_LOG: //XPath 3.0
+                return Math.log(toDouble(argVals[0]));
+            case FN_LOG10: //XPath 3.0
+                return Math.log10(toDouble(argVals[0]));
+            case FN_PI: //XPath 3.0
+                return Math.PI;
+            case FN_SIN: //XPath 3.0
+                return Math.sin(toDouble(argVals[0]));
+            case FN_SQRT: //XPath 3.0
+                return Math.sqrt(toDouble(argVals[0]));
+            case FN_TAN: //XPath 3.0
+                return Math.tan(toDouble(argVals[0]));
+            case FN_FORMAT_DATE_TIME: // non-standard
+                return formatDateTime(argVals[0], argVals[1]);
+            case FN_SELECTED: //non-standard
+                return multiSelected(argVals[0], argVals[1], name);
+            case FN_COUNT_SELECTED: //non-standard
+                return countSelected(argVals[0]);
+            case FN_SELECTED_AT: //non-standard
+                return selectedAt(argVals[0], argVals[1]);
+            case FN_POSITION:
+                //TODO: Technically, only the 0 length argument is valid here.
+                if (args.length == 1) {
+                    XPathNodeset nodes = (XPathNodeset) argVals[0];
+                    if (nodes.size() == 0) {
+                        // Added to prevent an exception within ODK Validate.
+                        // Will likely cause an error downstream when used in an XPath.
+                        return (double) (1 + TreeReference.INDEX_UNBOUND);
+                    } else {
+                        // This is weird -- we are returning the position of the first
+                        // Nodeset element but there may be a list of elements. Unclear
+                        // if or how this might manifest into a bug... .
+                        return position(nodes.getRefAt(0));
+                    }
                 } else {
-                    // This is weird -- we are returning the position of the first
-                    // Nodeset element but there may be a list of elements. Unclear
-                    // if or how this might manifest into a bug... .
-                    return position(nodes.getRefAt(0));
+                    if (evalContext.getContextPosition() != -1) {
+                        return (double) (1 + evalContext.getContextPosition());
+                    }
+                    return position(evalContext.getContextRef());
                 }
-            } else if (args.length == 0) {
-                if (evalContext.getContextPosition() != -1) {
-                    return (double) (1 + evalContext.getContextPosition());
+            case FN_COUNT:
+                return count(argVals[0]);
+            case FN_COUNT_NON_EMPTY:
+                return countNonEmpty(argVals[0]);
+            case FN_SUM:
+                if (argVals[0] instanceof XPathNodeset) {
+                    return sum(((XPathNodeset) argVals[0]).toArgList());
+                } else {
+                    throw new XPathTypeMismatchException("not a nodeset");
                 }
-                return position(evalContext.getContextRef());
-            } else {
-                throw new XPathUnhandledException("function \'" + name +
-                          "\' requires either exactly one argument or no arguments. Only " + args.length + " provided.");
-            }
-        } else if (name.equals("count")) {
-            assertArgsCount(name, args, 1);
-            return count(argVals[0]);
-        } else if (name.equals("count-non-empty")) {
-            assertArgsCount(name, args, 1);
-            return countNonEmpty(argVals[0]);
-        } else if (name.equals("sum")) {
-            assertArgsCount(name, args, 1);
-            if (argVals[0] instanceof XPathNodeset) {
-                return sum(((XPathNodeset) argVals[0]).toArgList());
-            } else {
-                throw new XPathTypeMismatchException("not a nodeset");
-            }
-        } else if (name.equals("max")) {
-            if (args.length == 1 && argVals[0] instanceof XPathNodeset) {
-                return max(((XPathNodeset) argVals[0]).toArgList());
-            } else {
-                return max(argVals);
-            }
-        } else if (name.equals("min")) {
-            if (args.length == 1 && argVals[0] instanceof XPathNodeset) {
-                return min(((XPathNodeset) argVals[0]).toArgList());
-            } else {
-                return min(argVals);
-            }
-        } else if (name.equals("today")) {
-            assertArgsCount(name, args, 0);
-            return DateUtils.roundDate(new Date());
-        } else if (name.equals("now")) {
-            assertArgsCount(name, args, 0);
-            return new Date();
-        } else if (name.equals("concat")) {
-            if (args.length == 1 && argVals[0] instanceof XPathNodeset) {
-                return join("", ((XPathNodeset) argVals[0]).toArgList());
-            } else {
-                return join("", argVals);
-            }
-        } else if (name.equals("join") && args.length >= 1) {
-            if (args.length == 2 && argVals[1] instanceof XPathNodeset) {
-                return join(argVals[0], ((XPathNodeset) argVals[1]).toArgList());
-            } else {
-                return join(argVals[0], subsetArgList(argVals, 1));
-            }
-        } else if (name.equals("substr") && (args.length == 2 || args.length == 3)) {
-            return substring(argVals[0], argVals[1], args.length == 3 ? argVals[2] : null);
-        } else if (name.equals("contains") && args.length == 2) {
-            return toString(argVals[0]).contains(toString(argVals[1]));
-        } else if (name.equals("starts-with") && args.length == 2) {
-            return toString(argVals[0]).startsWith(toString(argVals[1]));
-        } else if (name.equals("ends-with") && args.length == 2) {
-            return toString(argVals[0]).endsWith(toString(argVals[1]));
-        } else if (name.equals("string-length")) {
-            assertArgsCount(name, args, 1);
-            return stringLength(argVals[0]);
-        } else if (name.equals("checklist") && args.length >= 2) { //non-standard
-            if (args.length == 3 && argVals[2] instanceof XPathNodeset) {
-                return checklist(argVals[0], argVals[1], ((XPathNodeset) argVals[2]).toArgList());
-            } else {
-                return checklist(argVals[0], argVals[1], subsetArgList(argVals, 2));
-            }
-        } else if (name.equals("weighted-checklist") && args.length >= 2 && args.length % 2 == 0) { //non-standard
-            if (args.length == 4 && argVals[2] instanceof XPathNodeset && argVals[3] instanceof XPathNodeset) {
-                Object[] factors = ((XPathNodeset) argVals[2]).toArgList();
-                Object[] weights = ((XPathNodeset) argVals[3]).toArgList();
-                if (factors.length != weights.length) {
-                    throw new XPathTypeMismatchException("weighted-checklist: nodesets not same length");
+            case FN_MAX:
+                if (args.length == 1 && argVals[0] instanceof XPathNodeset) {
+                    return max(((XPathNodeset) argVals[0]).toArgList());
+                } else {
+                    return max(argVals);
                 }
-                return checklistWeighted(argVals[0], argVals[1], factors, weights);
-            } else {
-                return checklistWeighted(argVals[0], argVals[1], subsetArgList(argVals, 2, 2), subsetArgList(argVals, 3, 2));
-            }
-        } else if (name.equals("regex")) { //non-standard
-            assertArgsCount(name, args, 2);
-            return regex(argVals[0], argVals[1]);
-        } else if (name.equals("depend") && args.length >= 1) { //non-standard
-            return argVals[0];
-        } else if (name.equals("random")) { //non-standard
-            assertArgsCount(name, args, 0);
-            //calculated expressions may be recomputed w/o warning! use with caution!!
-            return MathUtils.getRand().nextDouble();
-        } else if (name.equals("once")) {
-            assertArgsCount(name, args, 1);
-            XPathPathExpr currentFieldPathExpr = XPathPathExpr.fromRef(evalContext.getContextRef());
-            Object currValue = currentFieldPathExpr.eval(model, evalContext).unpack();
-            if (currValue == null || toString(currValue).length() == 0) {
-                // this is the "once" case
+            case FN_MIN:
+                if (args.length == 1 && argVals[0] instanceof XPathNodeset) {
+                    return min(((XPathNodeset) argVals[0]).toArgList());
+                } else {
+                    return min(argVals);
+                }
+            case FN_TODAY:
+                return DateUtils.roundDate(new Date());
+            case FN_NOW:
+                return new Date();
+            case FN_CONCAT:
+                if (args.length == 1 && argVals[0] instanceof XPathNodeset) {
+                    return join("", ((XPathNodeset) argVals[0]).toArgList());
+                } else {
+                    return join("", argVals);
+                }
+            case FN_JOIN:
+                if (args.length == 2 && argVals[1] instanceof XPathNodeset) {
+                    return join(argVals[0], ((XPathNodeset) argVals[1]).toArgList());
+                } else {
+                    return join(argVals[0], subsetArgList(argVals, 1));
+                }
+            case FN_SUBSTR:
+                return substring(argVals[0], argVals[1], args.length == 3 ? argVals[2] : null);
+            case FN_CONTAINS:
+                return toString(argVals[0]).contains(toString(argVals[1]));
+            case FN_STARTS_WITH:
+                return toString(argVals[0]).startsWith(toString(argVals[1]));
+            case FN_ENDS_WITH:
+                return toString(argVals[0]).endsWith(toString(argVals[1]));
+            case FN_STRING_LENGTH:
+                return stringLength(argVals[0]);
+            case FN_CHECKLIST: //non-standard
+                if (args.length == 3 && argVals[2] instanceof XPathNodeset) {
+                    return checklist(argVals[0], argVals[1], ((XPathNodeset) argVals[2]).toArgList());
+                } else {
+                    return checklist(argVals[0], argVals[1], subsetArgList(argVals, 2));
+                }
+            case FN_WEIGHTED_CHECKLIST: //non-standard
+                if (args.length == 4 && argVals[2] instanceof XPathNodeset && argVals[3] instanceof XPathNodeset) {
+                    Object[] factors = ((XPathNodeset) argVals[2]).toArgList();
+                    Object[] weights = ((XPathNodeset) argVals[3]).toArgList();
+                    if (factors.length != weights.length) {
+                        throw new XPathTypeMismatchException("weighted-checklist: nodesets not same length");
+                    }
+                    return checklistWeighted(argVals[0], argVals[1], factors, weights);
+                } else {
+                    return checklistWeighted(argVals[0], argVals[1], subsetArgList(argVals, 2, 2), subsetArgList(argVals, 3, 2));
+                }
+            case FN_REGEX: //non-standard
+                return regex(argVals[0], argVals[1]);
+            case FN_DEPEND: //non-standard
                 return argVals[0];
-            } else {
-                return currValue;
-            }
-        } else if (name.equals("uuid") && (args.length == 0 || args.length == 1)) { //non-standard
-            //calculated expressions may be recomputed w/o warning! use with caution!!
-            if (args.length == 0) {
-                return PropertyUtils.genUUID();
-            }
+            case FN_RANDOM: //non-standard
+                //calculated expressions may be recomputed w/o warning! use with caution!!
+                return MathUtils.getRand().nextDouble();
+            case FN_ONCE:
+                XPathPathExpr currentFieldPathExpr = XPathPathExpr.fromRef(evalContext.getContextRef());
+                Object currValue = currentFieldPathExpr.eval(model, evalContext).unpack();
+                if (currValue == null || toString(currValue).length() == 0) {
+                    // this is the "once" case
+                    return argVals[0];
+                } else {
+                    return currValue;
+                }
+            case FN_UUID: //non-standard
+                //calculated expressions may be recomputed w/o warning! use with caution!!
+                if (args.length == 0) {
+                    return PropertyUtils.genUUID();
+                }
 
-            int len = toInt(argVals[0]).intValue();
-            return PropertyUtils.genGUID(len);
-        } else if (name.equals("version")) { //non-standard
-            assertArgsCount(name, args, 0);
-            final String formVersion = (model instanceof FormInstance) ? ((FormInstance) model).formVersion : "";
-            return formVersion == null ? "" : formVersion;
-        } else if (name.equals("property")) { // non-standard
-            // return a property defined by the property manager.
-            // NOTE: Property should be immutable.
-            // i.e., does not work with 'start' or 'end' property.
-            assertArgsCount(name, args, 1);
-            String s = toString(argVals[0]);
-            return PropertyManager._().getSingularProperty(s);
-        } else if (name.equals("pow") && (args.length == 2)) { //XPath 3.0
-            double a = toDouble(argVals[0]);
-            double b = toDouble(argVals[1]);
-            return Math.pow(a, b);
-        } else if (name.equals("enclosed-area") || name.equals("area")) {
-            assertArgsCount(name, args, 1);
-
-            Object argVal = argVals[0];
-            if (!(argVal instanceof XPathNodeset)) {
-                throw new XPathUnhandledException("function \'" + name + "\' requires a field as the parameter.");
-            }
-            Object[] argList = ((XPathNodeset) argVal).toArgList();
-            int repeatSize = argList.length;
+                int len = toInt(argVals[0]).intValue();
+                return PropertyUtils.genGUID(len);
+            case FN_VERSION: //non-standard
+                final String formVersion = (model instanceof FormInstance) ? ((FormInstance) model).formVersion : "";
+                return formVersion == null ? "" : formVersion;
+            case FN_PROPERTY: // non-standard
+                // return a property defined by the property manager.
+                // NOTE: Property should be immutable.
+                // i.e., does not work with 'start' or 'end' property.
+                String s = toString(argVals[0]);
+                return PropertyManager._().getSingularProperty(s);
+            case FN_POW: //XPath 3.0
+                double a = toDouble(argVals[0]);
+                double b = toDouble(argVals[1]);
+                return Math.pow(a, b);
+            case FN_AREA:
+                return area(argVals[0]);
+            case FN_DIGEST:
+                return DigestAlgorithm.from((String) argVals[1]).digest(
+                    (String) argVals[0],
+                    args.length == 3 ? Encoding.from((String)argVals[2]) : Encoding.BASE64
+                );
+            default:
+                //check for custom handler
+                IFunctionHandler handler = evalContext.getFunctionHandlers().get(name);
+                if (handler != null) {
+                    return evalCustomFunction(handler, argVals, evalContext);
+                } else {
+                    throw new XPathUnhandledException("function \'" + name + "\'");
+                }
+        }
+    }
 
-            List<GeoUtils.GPSCoordinates> gpsCoordinatesList;
+    private Object area(Object argVal) {
+        if (!(argVal instanceof XPathNodeset)) {
+            throw new XPathUnhandledException("function \'" + name + "\' requires a field as the parameter.");
+        }
+        Object[] argList = ((XPathNodeset) argVal).toArgList();
+        int repeatSize = argList.length;
 
-            if (repeatSize == 1) {
-                // Try to determine if the argument is of type GeoShapeData
-                try {
-                    GeoShapeData geoShapeData = new GeoShapeData().cast(new UncastData(toString(argList[0])));
-                    if (geoShapeData.points.size() <= 2) {
-                        return 0d;
-                    } else {
-                        gpsCoordinatesList = new ArrayList<GeoUtils.GPSCoordinates>();
-                        for (GeoPointData point : geoShapeData.points) {
-                            gpsCoordinatesList.add(new GeoUtils.GPSCoordinates(point.getPart(0), point.getPart(1)));
-                        }
-                    }
-                } catch (Exception e) {
-                    throw new XPathTypeMismatchException("The function \'" + name + "\' received a value that does not represent GPS coordinates: " + argList[0]);
-                }
-            } else {
-                if (repeatSize <= 2) {
+        List<GeoUtils.GPSCoordinates> gpsCoordinatesList;
+
+        if (repeatSize == 1) {
+            // Try to determine if the argument is of type GeoShapeData
+            try {
+                GeoShapeData geoShapeData = new GeoShapeData().cast(new UncastData(toString(argList[0])));
+                if (geoShapeData.points.size() <= 2) {
                     return 0d;
                 } else {
-                    // treat the input as a series of GeoPointData
-
                     gpsCoordinatesList = new ArrayList<GeoUtils.GPSCoordinates>();
-                    for (Object arg : argList) {
-                        try {
-                            GeoPointData geoPointData = new GeoPointData().cast(new UncastData(toString(arg)));
-                            gpsCoordinatesList.add(new GeoUtils.GPSCoordinates(geoPointData.getPart(0), geoPointData.getPart(1)));
-                        } catch (Exception e) {
-                            throw new XPathTypeMismatchException("The function \'" + name + "\' received a value that does not represent GPS coordinates: " + arg);
-                        }
+                    for (GeoPointData point : geoShapeData.points) {
+                        gpsCoordinatesList.add(new GeoUtils.GPSCoordinates(point.getPart(0), point.getPart(1)));
                     }
                 }
+            } catch (Exception e) {
+                throw new XPathTypeMismatchException("The function \'" + name + "\' received a value that does not represent GPS coordinates: " + argList[0]);
             }
-
-            return GeoUtils.calculateAreaOfGPSPolygonOnEarthInSquareMeters(gpsCoordinatesList);
-        } else if (name.equals("digest") && (args.length == 2 || args.length == 3)) {
-            return DigestAlgorithm.from((String) argVals[1]).digest(
-                (String) argVals[0],
-                args.length == 3 ? Encoding.from((String)argVals[2]) : Encoding.BASE64
-            );
         } else {
-            //check for custom handler
-            IFunctionHandler handler = funcHandlers.get(name);
-            if (handler != null) {
-                return evalCustomFunction(handler, argVals, evalContext);
+            if (repeatSize <= 2) {
+                return 0d;
             } else {
-                throw new XPathUnhandledException("function \'" + name + "\'");
+                // treat the input as a series of GeoPointData
+
+                gpsCoordinatesList = new ArrayList<GeoUtils.GPSCoordinates>();
+                for (Object arg : argList) {
+                    try {
+                        GeoPointData geoPointData = new GeoPointData().cast(new UncastData(toString(arg)));
+                        gpsCoordinatesList.add(new GeoUtils.GPSCoordinates(geoPointData.getPart(0), geoPointData.getPart(1)));
+                    } catch (Exception e) {
+                        throw new XPathTypeMismatchException("The function \'" + name + "\' received a value that does not represent GPS coordinates: " + arg);
+                    }
+                }
             }
         }
+
+        return GeoUtils.calculateAreaOfGPSPolygonOnEarthInSquareMeters(gpsCoordinatesList);
+    }
+
+    /**
+     * Throws the exception the function would raise if called with the wrong
+     * number of arguments.
+     */
+    private static void assertArity(int function, String name, XPathExpression[] args) {
+        switch (function) {
+            case FN_IF:
+                assertArgsCount(name, args, 3);
+                break;
+            case FN_COALESCE:
+            case FN_FORMAT_DATE:
+            case FN_FORMAT_DATE_TIME:
+            case FN_SELECTED:
+            case FN_SELECTED_AT:
+            case FN_REGEX:
+                assertArgsCount(name, args, 2);
+                break;
+            case FN_INDEXED_REPEAT:
+                if (!(args.length == 3 || args.length == 5 || args.length == 7 || args.length == 9 || args.length == 11)) {
+                    throw new XPathUnhandledException("function \'" + name + "\' requires " +
+                              "3, 5, 7, 9 or 11 arguments. Only " + args.length + " provided.");
+                }
+                break;
+            case FN_TRUE:
+            case FN_FALSE:
+            case FN_TODAY:
+            case FN_NOW:
+            case FN_RANDOM:
+            case FN_VERSION:
+                assertArgsCount(name, args, 0);
+                break;
+            case FN_BOOLEAN:
+            case FN_NUMBER:
+            case FN_INT:
+            case FN_STRING:
+            case FN_DATE:
+            case FN_DATE_TIME:
+            case FN_DECIMAL_DATE_TIME:
+            case FN_DECIMAL_TIME:
+            case FN_NOT:
+            case FN_BOOLEAN_FROM_STRING:
+            case FN_COUNT_SELECTED:
+            case FN_COUNT:
+            case FN_COUNT_NON_EMPTY:
+            case FN_SUM:
+            case FN_STRING_LENGTH:
+            case FN_ONCE:
+            case FN_PROPERTY:
+            case FN_AREA:
+                assertArgsCount(name, args, 1);
+                break;
+            case FN_ROUND:
+                if (args.length != 1) {
+                    assertArgsCount(name, args, 2);
+                }
+                break;
+            case FN_ABS:
+            case FN_ACOS:
+            case FN_ASIN:
+            case FN_ATAN:
+            case FN_COS:
+            case FN_EXP:
+            case FN_EXP10:
+            case FN_LOG:
+            case FN_LOG10:
+            case FN_SIN:
+            case FN_SQRT:
+            case FN_TAN:
+                checkArity(name, 1, args.length);
+                break;
+            case FN_ATAN2:
+                checkArity(name, 2, args.length);
+                break;
+            case FN_PI:
+                checkArity(name, 0, args.length);
+                break;
+            case FN_POSITION:
+                if (args.length > 1) {
+                    throw new XPathUnhandledException("function \'" + name +
+                              "\' requires either exactly one argument or no arguments. Only " + args.length + " provided.");
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return false if the built-in function doesn't accept that many
+     * arguments, and the call is left to the custom function handlers
+     */
+    private static boolean acceptsArgCount(int function, int count) {
+        switch (function) {
+            case FN_JOIN:
+            case FN_DEPEND:
+                return count >= 1;
+            case FN_SUBSTR:
+            case FN_DIGEST:
+                return count == 2 || count == 3;
+            case FN_CONTAINS:
+            case FN_STARTS_WITH:
+            case FN_ENDS_WITH:
+            case FN_POW:
+                return count == 2;
+            case FN_CHECKLIST:
+                return count >= 2;
+            case FN_WEIGHTED_CHECKLIST:
+                return count >= 2 && count % 2 == 0;
+            case FN_UUID:
+                return count == 0 || count == 1;
+            default:
+                return true;
+        }
     }
 
     private static void assertArgsCount(String name, Object[] args, int count) {
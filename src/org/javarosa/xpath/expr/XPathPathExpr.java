@@ -67,16 +67,48 @@ public class XPathPathExpr extends XPathExpression {
     //for INIT_CONTEXT_EXPR only
     public XPathFilterExpr filtExpr;
 
+    //generic reference of this path, set by compile(); null if the path can't be
+    //expressed as a TreeReference or hasn't been compiled
+    private TreeReference genericRef;
+
     public XPathPathExpr () { } //for deserialization
 
     public XPathPathExpr (int init_context, XPathStep[] steps) {
         this.init_context = init_context;
         this.steps = steps;
+        compile();
     }
 
     public XPathPathExpr (XPathFilterExpr filtExpr, XPathStep[] steps) {
-        this(INIT_CONTEXT_EXPR, steps);
+        this.init_context = INIT_CONTEXT_EXPR;
+        this.steps = steps;
         this.filtExpr = filtExpr;
+        compile();
+    }
+
+    /**
+     * Builds the generic reference of this path once, so that eval() doesn't
+     * rebuild it (and re-check the instance()/current() filter) on every
+     * evaluation. Called when the path is complete, after parsing or
+     * deserialization; call it again if the public fields are changed.
+     * Paths that can't be turned into references are left uncompiled, and
+     * still fail when evaluated.
+     */
+    public void compile () {
+        try {
+            genericRef = getReference();
+        } catch (RuntimeException e) {
+            // not every path parses into a valid reference; those fail in eval()
+            genericRef = null;
+        }
+    }
+
+    /**
+     * @return the compiled generic reference, which must not be modified,
+     * or a new one if the path isn't compiled
+     */
+    private TreeReference getGenericReference () throws XPathUnsupportedException {
+        return genericRef != null ? genericRef : getReference();
     }
 
     public TreeReference getReference () throws XPathUnsupportedException {
@@ -192,7 +224,7 @@ public class XPathPathExpr extends XPathExpression {
     }
 
     public XPathNodeset eval (DataInstance m, EvaluationContext ec) {
-        TreeReference genericRef = getReference();
+        TreeReference genericRef = getGenericReference();
 
         TreeReference ref;
         if(genericRef.getContext() == TreeReference.CONTEXT_ORIGINAL) {
@@ -416,6 +448,8 @@ public class XPathPathExpr extends XPathExpression {
         steps = new XPathStep[v.size()];
         for (int i = 0; i < steps.length; i++)
             steps[i] = ((XPathStep)v.get(i)).intern();
+
+        compile();
     }
 
     public void writeExternal(DataOutputStream out) throws IOException {
@@ -439,11 +473,12 @@ public class XPathPathExpr extends XPathExpression {
                 path.steps[i] = new XPathStep(XPathStep.AXIS_CHILD, new XPathQName(ref.getName(i))).intern();
             }
         }
+        path.compile();
         return path;
     }
 
     public Object pivot (DataInstance model, EvaluationContext evalContext, List<Object> pivots, Object sentinal) throws UnpivotableExpressionException {
-        TreeReference ref = this.getReference();
+        TreeReference ref = this.getGenericReference();
         //Either concretely the sentinal, or "."
         if(ref.equals(sentinal) || (ref.getRefLevel() == 0)) {
             return sentinal;
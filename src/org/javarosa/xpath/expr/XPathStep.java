@@ -19,13 +19,10 @@ package org.javarosa.xpath.expr;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
 
 import org.javarosa.core.util.CacheTable;
 import org.javarosa.core.util.externalizable.DeserializationException;
 import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapListPoly;
 import org.javarosa.core.util.externalizable.ExtWrapNullable;
 import org.javarosa.core.util.externalizable.Externalizable;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
@@ -232,10 +229,9 @@ public class XPathStep implements Externalizable {
         case TEST_TYPE_PROCESSING_INSTRUCTION: literal = (String)ExtUtil.read(in, new ExtWrapNullable(String.class)); break;
         }
 
-      List<Object> v = (List<Object>)ExtUtil.read(in, new ExtWrapListPoly(), pf);
-        predicates = new XPathExpression[v.size()];
+        predicates = new XPathExpression[ExtUtil.readInt(in)];
         for (int i = 0; i < predicates.length; i++)
-            predicates[i] = (XPathExpression)v.get(i);
+            predicates[i] = (XPathExpression)ExtUtil.readShared(in, pf);
     }
 
     public void writeExternal(DataOutputStream out) throws IOException {
@@ -248,9 +244,9 @@ public class XPathStep implements Externalizable {
         case TEST_TYPE_PROCESSING_INSTRUCTION: ExtUtil.write(out, new ExtWrapNullable(literal)); break;
         }
 
-      List<XPathExpression> v = Arrays.asList(predicates);
-      
-        ExtUtil.write(out, new ExtWrapListPoly(v));
+        ExtUtil.writeNumeric(out, predicates.length);
+        for (XPathExpression predicate : predicates)
+            ExtUtil.writeShared(out, predicate);
     }
 
     public static boolean XPathStepInterningEnabled = true;
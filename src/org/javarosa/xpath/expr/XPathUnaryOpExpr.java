@@ -21,7 +21,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 
 import org.javarosa.core.util.externalizable.ExtUtil;
-import org.javarosa.core.util.externalizable.ExtWrapTagged;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.core.util.externalizable.DeserializationException;
 
@@ -44,10 +43,10 @@ public abstract class XPathUnaryOpExpr extends XPathOpExpr {
     }
 
     public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
-        a = (XPathExpression)ExtUtil.read(in, new ExtWrapTagged(), pf);
+        a = (XPathExpression)ExtUtil.readShared(in, pf);
     }
 
     public void writeExternal(DataOutputStream out) throws IOException {
-        ExtUtil.write(out, new ExtWrapTagged(a));
+        ExtUtil.writeShared(out, a);
     }
 }
@@ -20,6 +20,14 @@ import java.util.Vector;
 
 import org.javarosa.xpath.expr.XPathQName;
 
+/**
+ * Splits an XPath expression into tokens.
+ *
+ * A lexer reads its expression one token at a time, with one token of lookahead. It doesn't
+ * allocate anything for a token: the parser reads its type and, for the tokens which have one,
+ * takes its value out of the expression only when it needs it. {@link #lex(String)} still turns
+ * a whole expression into a Vector of {@link Token}s.
+ */
 public class Lexer {
 
     private static final int CONTEXT_LENGTH = 15;
@@ -27,156 +35,285 @@ public class Lexer {
     public static final int LEX_CONTEXT_VAL = 1;
     public static final int LEX_CONTEXT_OP = 2;
 
+    /** The type of the token past the end of the expression */
+    public static final int EOF = 0;
+
+    private final String expr;
+    private int pos;
+    private int context = LEX_CONTEXT_VAL;
+
+    //the current token, in expr[start, end)
+    private int type;
+    private int start;
+    private int end;
+
+    //the token after it, if it has been read
+    private boolean peeked;
+    private int nextType;
+    private int nextStart;
+    private int nextEnd;
+
+    //the token read by the last call to scan()
+    private int scanStart;
+    private int scanEnd;
+
+    public Lexer (String expr) {
+        this.expr = expr;
+    }
+
     public static Vector<Token> lex (String expr) throws XPathSyntaxException {
         Vector<Token> tokens = new Vector<Token>();
+        Lexer lexer = new Lexer(expr);
+        while (lexer.next() != EOF) {
+            tokens.addElement(lexer.token());
+        }
+        return tokens;
+    }
 
-        int i = 0;
-        int context = LEX_CONTEXT_VAL;
+    /**
+     * Moves on to the next token.
+     *
+     * @return its type: one of the types in {@link Token}, or EOF
+     */
+    public int next () throws XPathSyntaxException {
+        if (peeked) {
+            peeked = false;
+            type = nextType;
+            start = nextStart;
+            end = nextEnd;
+        } else {
+            type = scan();
+            start = scanStart;
+            end = scanEnd;
+        }
+        return type;
+    }
+
+    /**
+     * @return the type of the token after the current one, without moving on to it
+     */
+    public int peek () throws XPathSyntaxException {
+        if (!peeked) {
+            nextType = scan();
+            nextStart = scanStart;
+            nextEnd = scanEnd;
+            peeked = true;
+        }
+        return nextType;
+    }
+
+    /**
+     * @return the type of the current token
+     */
+    public int type () {
+        return type;
+    }
 
-        while (i < expr.length()) {
-            int c = expr.charAt(i);
-            int d = getChar(expr, i + 1);
+    /**
+     * @return true if the current token is a name which is exactly s
+     */
+    public boolean isName (String s) {
+        return type == Token.QNAME && end - start == s.length() && expr.startsWith(s, start);
+    }
+
+    public Double numValue () {
+        return Double.valueOf(expr.substring(start, end));
+    }
 
-            Token token = null;
-            int skip = 1;
+    public String strValue () {
+        return expr.substring(start + 1, end - 1);
+    }
+
+    /**
+     * @return the name of the current QNAME, or of the current VAR without its $
+     */
+    public XPathQName qNameValue () {
+        return new XPathQName(expr.substring(type == Token.VAR ? start + 1 : start, end));
+    }
 
-            if (" \n\t\f\r".indexOf(c) >= 0) {
-                /* whitespace; do nothing */
-            } else if (c == '=') {
-                token = new Token(Token.EQ);
-            } else if (c == '!' && d == '=') {
-                token = new Token(Token.NEQ);
+    /**
+     * @return the namespace of the current NSWILDCARD
+     */
+    public String namespaceValue () {
+        return expr.substring(start, end - 2);
+    }
+
+    /**
+     * @return the current token as a Token
+     */
+    public Token token () {
+        switch (type) {
+        case Token.NUM: return new Token(type, numValue());
+        case Token.STR: return new Token(type, strValue());
+        case Token.QNAME:
+        case Token.VAR: return new Token(type, qNameValue());
+        case Token.NSWILDCARD: return new Token(type, namespaceValue());
+        default: return new Token(type);
+        }
+    }
+
+    /**
+     * @return an exception for an expression which can't be parsed at the current token
+     */
+    public XPathSyntaxException unexpected () {
+        if (type == EOF) {
+            return new XPathSyntaxException("Unexpected end of the expression: " + expr);
+        } else if (type == Token.RPAREN || type == Token.RBRACK) {
+            return new XPathSyntaxException("Unbalanced brackets or parentheses!");
+        } else {
+            return syntaxException(expr, start, expr.charAt(start));
+        }
+    }
+
+    //read the token starting at or after pos, and move pos past it
+    private int scan () throws XPathSyntaxException {
+        while (pos < expr.length() && " \n\t\f\r".indexOf(expr.charAt(pos)) >= 0) {
+            pos++;
+        }
+        scanStart = pos;
+        scanEnd = pos;
+        if (pos == expr.length()) {
+            return EOF;
+        }
+
+        int i = pos;
+        int c = expr.charAt(i);
+        int d = getChar(expr, i + 1);
+
+        int token;
+        int skip = 1;
+
+        if (c == '=') {
+            token = Token.EQ;
+        } else if (c == '!' && d == '=') {
+            token = Token.NEQ;
+            skip = 2;
+        } else if (c == '<') {
+            if (d == '=') {
+                token = Token.LTE;
+                skip = 2;
+            } else {
+                token = Token.LT;
+            }
+        } else if (c == '>') {
+            if (d == '=') {
+                token = Token.GTE;
                 skip = 2;
-            } else if (c == '<') {
-                if (d == '=') {
-                    token = new Token(Token.LTE);
-                    skip = 2;
-                } else {
-                    token = new Token(Token.LT);
-                }
-            } else if (c == '>') {
-                if (d == '=') {
-                    token = new Token(Token.GTE);
-                    skip = 2;
-                } else {
-                    token = new Token(Token.GT);
-                }
-            } else if (c == '+') {
-                token = new Token(Token.PLUS);
-            } else if (c == '-') {
-                token = new Token(context == LEX_CONTEXT_VAL ? Token.UMINUS : Token.MINUS); //not sure this is entirely correct
-            } else if (c == '*') {
-                token = new Token(context == LEX_CONTEXT_VAL ? Token.WILDCARD : Token.MULT);
-            } else if (c == '|') {
-                token = new Token(Token.UNION);
-            } else if (c == '/') {
-                if (d == '/') {
-                    token = new Token(Token.DBL_SLASH);
-                    skip = 2;
-                } else {
-                    token = new Token(Token.SLASH);
-                }
-            } else if (c == '[') {
-                token = new Token(Token.LBRACK);
-            } else if (c == ']') {
-                token = new Token(Token.RBRACK);
-            } else if (c == '(') {
-                token = new Token(Token.LPAREN);
-            } else if (c == ')') {
-                token = new Token(Token.RPAREN);
-            } else if (c == '.') {
-                if (d == '.') {
-                    token = new Token(Token.DBL_DOT);
-                    skip = 2;
-                } else if (isDigit(d)) {
-                    skip = matchNumeric(expr, i);
-                    token = new Token(Token.NUM, Double.valueOf(expr.substring(i, i + skip)));
-                } else {
-                    token = new Token(Token.DOT);
-                }
-            } else if (c == '@') {
-                token = new Token(Token.AT);
-            } else if (c == ',') {
-                token = new Token(Token.COMMA);
-            } else if (c == ':' && d == ':') {
-                token = new Token(Token.DBL_COLON);
+            } else {
+                token = Token.GT;
+            }
+        } else if (c == '+') {
+            token = Token.PLUS;
+        } else if (c == '-') {
+            token = context == LEX_CONTEXT_VAL ? Token.UMINUS : Token.MINUS; //not sure this is entirely correct
+        } else if (c == '*') {
+            token = context == LEX_CONTEXT_VAL ? Token.WILDCARD : Token.MULT;
+        } else if (c == '|') {
+            token = Token.UNION;
+        } else if (c == '/') {
+            if (d == '/') {
+                token = Token.DBL_SLASH;
                 skip = 2;
-            } else if (context == LEX_CONTEXT_OP && i + 3 <= expr.length() && "and".equals(expr.substring(i, i + 3))) {
-                token = new Token(Token.AND);
-                skip = 3;
-            } else if (context == LEX_CONTEXT_OP && i + 2 <= expr.length() && "or".equals(expr.substring(i, i + 2))) {
-                token = new Token(Token.OR);
+            } else {
+                token = Token.SLASH;
+            }
+        } else if (c == '[') {
+            token = Token.LBRACK;
+        } else if (c == ']') {
+            token = Token.RBRACK;
+        } else if (c == '(') {
+            token = Token.LPAREN;
+        } else if (c == ')') {
+            token = Token.RPAREN;
+        } else if (c == '.') {
+            if (d == '.') {
+                token = Token.DBL_DOT;
                 skip = 2;
-            } else if (context == LEX_CONTEXT_OP && i + 3 <= expr.length() && "div".equals(expr.substring(i, i + 3))) {
-                token = new Token(Token.DIV);
-                skip = 3;
-            } else if (context == LEX_CONTEXT_OP && i + 3 <= expr.length() && "mod".equals(expr.substring(i, i + 3))) {
-                token = new Token(Token.MOD);
-                skip = 3;
-            } else if (c == '$') {
-                int len = matchQName(expr, i + 1);
-                if (len == 0) {
-                    badParse(expr, i, (char)c);
-                } else {
-                    token = new Token(Token.VAR, new XPathQName(expr.substring(i + 1, i + len + 1)));
-                    skip = len + 1;
-                }
-            } else if (c == '\'' || c == '\"') {
-                int end = expr.indexOf(c, i + 1);
-                if (end == -1) {
-                    badParse(expr, i, (char)c);
-                } else {
-                    token = new Token(Token.STR, expr.substring(i + 1, end));
-                    skip = (end - i) + 1;
-                }
-            } else if (isDigit(c)) {
+            } else if (isDigit(d)) {
+                token = Token.NUM;
                 skip = matchNumeric(expr, i);
-                token = new Token(Token.NUM, Double.valueOf(expr.substring(i, i + skip)));
-            } else if (context == LEX_CONTEXT_VAL && (isAlpha(c) || c == '_')) {
-                int len = matchQName(expr, i);
-                String name = expr.substring(i, i + len);
-                if (name.indexOf(':') == -1 && getChar(expr, i + len) == ':' && getChar(expr, i + len + 1) == '*') {
-                    token = new Token(Token.NSWILDCARD, name);
-                    skip = len + 2;
-                } else {
-                    token = new Token(Token.QNAME, new XPathQName(name));
-                    skip = len;
-                }
             } else {
-                badParse(expr, i, (char)c);
+                token = Token.DOT;
             }
-            if (token != null) {
-                if (token.type == Token.WILDCARD ||
-                    token.type == Token.NSWILDCARD ||
-                    token.type == Token.QNAME ||
-                    token.type == Token.VAR ||
-                    token.type == Token.NUM ||
-                    token.type == Token.STR ||
-                    token.type == Token.RBRACK ||
-                    token.type == Token.RPAREN ||
-                    token.type == Token.DOT ||
-                    token.type == Token.DBL_DOT) {
-                    context = LEX_CONTEXT_OP;
-                } else {
-                    context = LEX_CONTEXT_VAL;
-                }
-
-                tokens.addElement(token);
+        } else if (c == '@') {
+            token = Token.AT;
+        } else if (c == ',') {
+            token = Token.COMMA;
+        } else if (c == ':' && d == ':') {
+            token = Token.DBL_COLON;
+            skip = 2;
+        } else if (context == LEX_CONTEXT_OP && expr.startsWith("and", i)) {
+            token = Token.AND;
+            skip = 3;
+        } else if (context == LEX_CONTEXT_OP && expr.startsWith("or", i)) {
+            token = Token.OR;
+            skip = 2;
+        } else if (context == LEX_CONTEXT_OP && expr.startsWith("div", i)) {
+            token = Token.DIV;
+            skip = 3;
+        } else if (context == LEX_CONTEXT_OP && expr.startsWith("mod", i)) {
+            token = Token.MOD;
+            skip = 3;
+        } else if (c == '$') {
+            int len = matchQName(expr, i + 1);
+            if (len == 0) {
+                throw syntaxException(expr, i, (char)c);
             }
-            i += skip;
+            token = Token.VAR;
+            skip = len + 1;
+        } else if (c == '\'' || c == '\"') {
+            int close = expr.indexOf(c, i + 1);
+            if (close == -1) {
+                throw syntaxException(expr, i, (char)c);
+            }
+            token = Token.STR;
+            skip = (close - i) + 1;
+        } else if (isDigit(c)) {
+            token = Token.NUM;
+            skip = matchNumeric(expr, i);
+        } else if (context == LEX_CONTEXT_VAL && (isAlpha(c) || c == '_')) {
+            int len = matchQName(expr, i);
+            // the name must have no colon of its own; that search stops at the colon after it
+            if (getChar(expr, i + len) == ':' && getChar(expr, i + len + 1) == '*'
+                    && expr.indexOf(':', i) == i + len) {
+                token = Token.NSWILDCARD;
+                skip = len + 2;
+            } else {
+                token = Token.QNAME;
+                skip = len;
+            }
+        } else {
+            throw syntaxException(expr, i, (char)c);
         }
 
-        return tokens;
+        if (token == Token.WILDCARD ||
+            token == Token.NSWILDCARD ||
+            token == Token.QNAME ||
+            token == Token.VAR ||
+            token == Token.NUM ||
+            token == Token.STR ||
+            token == Token.RBRACK ||
+            token == Token.RPAREN ||
+            token == Token.DOT ||
+            token == Token.DBL_DOT) {
+            context = LEX_CONTEXT_OP;
+        } else {
+            context = LEX_CONTEXT_VAL;
+        }
+
+        pos = i + skip;
+        scanEnd = pos;
+        return token;
     }
 
-    private static void badParse(String expr, int i, char c) throws XPathSyntaxException {
+    private static XPathSyntaxException syntaxException(String expr, int i, char c) {
 
         String start = "\u034E" + c;
         String preContext =  (Math.max(0, i - CONTEXT_LENGTH) != 0 ? "..." : "") + expr.substring(Math.max(0, i - CONTEXT_LENGTH), Math.max(0, i)).trim();
         String postcontext = i == expr.length() - 1 ? "" :
                 expr.substring(Math.min(i + 1, expr.length() - 1), Math.min(i + CONTEXT_LENGTH, expr.length())).trim() + (Math.min(i + CONTEXT_LENGTH, expr.length()) != expr.length() ? "..." : "");
 
-        throw new XPathSyntaxException("Couldn't understand the expression starting at this point: " + (preContext + start + postcontext));
+        return new XPathSyntaxException("Couldn't understand the expression starting at this point: " + (preContext + start + postcontext));
     }
 
     private static int matchNumeric (String expr, int i) {
@@ -19,8 +19,21 @@ package org.javarosa.xpath.parser;
 import java.util.Enumeration;
 import java.util.Vector;
 
+import org.javarosa.xpath.expr.XPathArithExpr;
+import org.javarosa.xpath.expr.XPathBoolExpr;
+import org.javarosa.xpath.expr.XPathCmpExpr;
+import org.javarosa.xpath.expr.XPathEqExpr;
 import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFilterExpr;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathNumNegExpr;
+import org.javarosa.xpath.expr.XPathNumericLiteral;
+import org.javarosa.xpath.expr.XPathPathExpr;
 import org.javarosa.xpath.expr.XPathQName;
+import org.javarosa.xpath.expr.XPathStep;
+import org.javarosa.xpath.expr.XPathStringLiteral;
+import org.javarosa.xpath.expr.XPathUnionExpr;
+import org.javarosa.xpath.expr.XPathVariableReference;
 import org.javarosa.xpath.parser.ast.ASTNode;
 import org.javarosa.xpath.parser.ast.ASTNodeAbstractExpr;
 import org.javarosa.xpath.parser.ast.ASTNodeBinaryOp;
@@ -31,15 +44,345 @@ import org.javarosa.xpath.parser.ast.ASTNodePathStep;
 import org.javarosa.xpath.parser.ast.ASTNodePredicate;
 import org.javarosa.xpath.parser.ast.ASTNodeUnaryOp;
 
-/* if you try to edit this code, you will likely break it */
-
+/**
+ * Parses XPath expressions.
+ *
+ * {@link #parse(String)} reads an expression in one pass, by recursive descent with a method per
+ * level of precedence, and builds the XPathExpression directly. The older parser, which builds
+ * a tree of ASTNodes from a list of Tokens over several passes, is kept for those who lex
+ * separately.
+ */
 public class Parser {
 
+    private final Lexer lexer;
+
+    private Parser (Lexer lexer) {
+        this.lexer = lexer;
+    }
+
+    /**
+     * @return the parsed expression
+     * @throws XPathSyntaxException if xpath isn't a valid expression
+     */
+    public static XPathExpression parse (String xpath) throws XPathSyntaxException {
+        Lexer lexer = new Lexer(xpath);
+        lexer.next();
+        XPathExpression x = new Parser(lexer).parseOrExpr();
+        if (lexer.type() != Lexer.EOF) {
+            throw lexer.unexpected();
+        }
+        return x;
+    }
+
+    // or and and are right associative, as they always have been here; the others are left associative
+
+    private XPathExpression parseOrExpr () throws XPathSyntaxException {
+        XPathExpression a = parseAndExpr();
+        if (lexer.type() == Token.OR) {
+            lexer.next();
+            return new XPathBoolExpr(XPathBoolExpr.OR, a, parseOrExpr());
+        }
+        return a;
+    }
+
+    private XPathExpression parseAndExpr () throws XPathSyntaxException {
+        XPathExpression a = parseEqualityExpr();
+        if (lexer.type() == Token.AND) {
+            lexer.next();
+            return new XPathBoolExpr(XPathBoolExpr.AND, a, parseAndExpr());
+        }
+        return a;
+    }
+
+    private XPathExpression parseEqualityExpr () throws XPathSyntaxException {
+        XPathExpression a = parseRelationalExpr();
+        while (lexer.type() == Token.EQ || lexer.type() == Token.NEQ) {
+            boolean equal = lexer.type() == Token.EQ;
+            lexer.next();
+            a = new XPathEqExpr(equal, a, parseRelationalExpr());
+        }
+        return a;
+    }
+
+    private XPathExpression parseRelationalExpr () throws XPathSyntaxException {
+        XPathExpression a = parseAdditiveExpr();
+        while (true) {
+            int op;
+            switch (lexer.type()) {
+            case Token.LT: op = XPathCmpExpr.LT; break;
+            case Token.LTE: op = XPathCmpExpr.LTE; break;
+            case Token.GT: op = XPathCmpExpr.GT; break;
+            case Token.GTE: op = XPathCmpExpr.GTE; break;
+            default: return a;
+            }
+            lexer.next();
+            a = new XPathCmpExpr(op, a, parseAdditiveExpr());
+        }
+    }
+
+    private XPathExpression parseAdditiveExpr () throws XPathSyntaxException {
+        XPathExpression a = parseMultiplicativeExpr();
+        while (true) {
+            int op;
+            switch (lexer.type()) {
+            case Token.PLUS: op = XPathArithExpr.ADD; break;
+            case Token.MINUS: op = XPathArithExpr.SUBTRACT; break;
+            default: return a;
+            }
+            lexer.next();
+            a = new XPathArithExpr(op, a, parseMultiplicativeExpr());
+        }
+    }
+
+    private XPathExpression parseMultiplicativeExpr () throws XPathSyntaxException {
+        XPathExpression a = parseUnaryExpr();
+        while (true) {
+            int op;
+            switch (lexer.type()) {
+            case Token.MULT: op = XPathArithExpr.MULTIPLY; break;
+            case Token.DIV: op = XPathArithExpr.DIVIDE; break;
+            case Token.MOD: op = XPathArithExpr.MODULO; break;
+            default: return a;
+            }
+            lexer.next();
+            a = new XPathArithExpr(op, a, parseUnaryExpr());
+        }
+    }
+
+    private XPathExpression parseUnaryExpr () throws XPathSyntaxException {
+        if (lexer.type() == Token.UMINUS) {
+            lexer.next();
+            return new XPathNumNegExpr(parseUnaryExpr());
+        }
+        return parseUnionExpr();
+    }
+
+    private XPathExpression parseUnionExpr () throws XPathSyntaxException {
+        XPathExpression a = parsePathExpr();
+        while (lexer.type() == Token.UNION) {
+            lexer.next();
+            a = new XPathUnionExpr(a, parsePathExpr());
+        }
+        return a;
+    }
+
+    private XPathExpression parsePathExpr () throws XPathSyntaxException {
+        Vector<XPathStep> steps = new Vector<XPathStep>();
+        if (lexer.type() == Token.SLASH) {
+            lexer.next();
+            if (isStep()) {
+                parseSteps(steps);
+            }
+            return new XPathPathExpr(XPathPathExpr.INIT_CONTEXT_ROOT, toStepArray(steps));
+        } else if (lexer.type() == Token.DBL_SLASH) {
+            lexer.next();
+            steps.addElement(XPathStep.ABBR_DESCENDANTS());
+            parseSteps(steps);
+            return new XPathPathExpr(XPathPathExpr.INIT_CONTEXT_ROOT, toStepArray(steps));
+        } else if (isStep()) {
+            parseSteps(steps);
+            return new XPathPathExpr(XPathPathExpr.INIT_CONTEXT_RELATIVE, toStepArray(steps));
+        }
+
+        XPathExpression filtExpr = parseFilterExpr();
+        if (lexer.type() != Token.SLASH && lexer.type() != Token.DBL_SLASH) {
+            return filtExpr;
+        }
+        if (lexer.type() == Token.DBL_SLASH) {
+            steps.addElement(XPathStep.ABBR_DESCENDANTS());
+        }
+        lexer.next();
+        parseSteps(steps);
+        return new XPathPathExpr(filtExpr instanceof XPathFilterExpr ? (XPathFilterExpr)filtExpr
+                : new XPathFilterExpr(filtExpr, new XPathExpression[0]), toStepArray(steps));
+    }
+
+    //true if the current token starts a step, as opposed to a filter expr
+    private boolean isStep () throws XPathSyntaxException {
+        switch (lexer.type()) {
+        case Token.WILDCARD:
+        case Token.NSWILDCARD:
+        case Token.AT:
+        case Token.DOT:
+        case Token.DBL_DOT:
+            return true;
+        case Token.QNAME:
+            return lexer.peek() != Token.LPAREN || isNodeTypeTest();
+        default:
+            return false;
+        }
+    }
+
+    private boolean isNodeTypeTest () {
+        return lexer.isName("node") || lexer.isName("text") || lexer.isName("comment") || lexer.isName("processing-instruction");
+    }
+
+    //one or more steps, separated by / or //
+    private void parseSteps (Vector<XPathStep> steps) throws XPathSyntaxException {
+        steps.addElement(parseStep());
+        while (lexer.type() == Token.SLASH || lexer.type() == Token.DBL_SLASH) {
+            if (lexer.type() == Token.DBL_SLASH) {
+                steps.addElement(XPathStep.ABBR_DESCENDANTS());
+            }
+            lexer.next();
+            steps.addElement(parseStep());
+        }
+    }
+
+    private XPathStep parseStep () throws XPathSyntaxException {
+        if (lexer.type() == Token.DOT) {
+            lexer.next();
+            return XPathStep.ABBR_SELF();
+        } else if (lexer.type() == Token.DBL_DOT) {
+            lexer.next();
+            return XPathStep.ABBR_PARENT();
+        }
+
+        int axis = XPathStep.AXIS_CHILD;
+        if (lexer.type() == Token.AT) {
+            axis = XPathStep.AXIS_ATTRIBUTE;
+            lexer.next();
+        } else if (lexer.type() == Token.QNAME && lexer.peek() == Token.DBL_COLON) {
+            String axisName = lexer.qNameValue().toString();
+            axis = ASTNodePathStep.validateAxisName(axisName);
+            if (axis == -1) {
+                throw new XPathSyntaxException("Invalid Axis: " + axisName);
+            }
+            lexer.next();
+            lexer.next();
+        }
+
+        XPathStep step;
+        if (lexer.type() == Token.QNAME && lexer.peek() == Token.LPAREN) {
+            step = parseNodeTypeTest(axis);
+        } else {
+            if (lexer.type() == Token.WILDCARD) {
+                step = new XPathStep(axis, XPathStep.TEST_NAME_WILDCARD);
+            } else if (lexer.type() == Token.NSWILDCARD) {
+                step = new XPathStep(axis, lexer.namespaceValue());
+            } else if (lexer.type() == Token.QNAME) {
+                step = new XPathStep(axis, lexer.qNameValue());
+            } else {
+                throw lexer.unexpected();
+            }
+            lexer.next();
+        }
+
+        step.predicates = parsePredicates();
+        return step;
+    }
+
+    //a node type test, such as text(), up to its closing parenthesis
+    private XPathStep parseNodeTypeTest (int axis) throws XPathSyntaxException {
+        int type;
+        if      (lexer.isName("node"))                   type = XPathStep.TEST_TYPE_NODE;
+        else if (lexer.isName("text"))                   type = XPathStep.TEST_TYPE_TEXT;
+        else if (lexer.isName("comment"))                type = XPathStep.TEST_TYPE_COMMENT;
+        else if (lexer.isName("processing-instruction")) type = XPathStep.TEST_TYPE_PROCESSING_INSTRUCTION;
+        else throw new XPathSyntaxException("Not a node type test: " + lexer.qNameValue());
+
+        XPathStep step = new XPathStep(axis, type);
+        lexer.next();
+        lexer.next();
+        if (type == XPathStep.TEST_TYPE_PROCESSING_INSTRUCTION && lexer.type() == Token.STR) {
+            step.literal = lexer.strValue();
+            lexer.next();
+        }
+        expect(Token.RPAREN);
+        return step;
+    }
+
+    private XPathExpression parseFilterExpr () throws XPathSyntaxException {
+        XPathExpression x = parsePrimaryExpr();
+        if (lexer.type() != Token.LBRACK) {
+            return x;
+        }
+        return new XPathFilterExpr(x, parsePredicates());
+    }
+
+    private XPathExpression[] parsePredicates () throws XPathSyntaxException {
+        Vector<XPathExpression> predicates = new Vector<XPathExpression>();
+        while (lexer.type() == Token.LBRACK) {
+            lexer.next();
+            predicates.addElement(parseOrExpr());
+            expect(Token.RBRACK);
+        }
+        return toArray(predicates);
+    }
+
+    private XPathExpression parsePrimaryExpr () throws XPathSyntaxException {
+        XPathExpression x;
+        switch (lexer.type()) {
+        case Token.NUM: x = new XPathNumericLiteral(lexer.numValue()); break;
+        case Token.STR: x = new XPathStringLiteral(lexer.strValue()); break;
+        case Token.VAR: x = new XPathVariableReference(lexer.qNameValue()); break;
+        case Token.LPAREN:
+            lexer.next();
+            x = parseOrExpr();
+            expect(Token.RPAREN);
+            return x;
+        case Token.QNAME:
+            if (lexer.peek() == Token.LPAREN) {
+                return parseFunctionCall();
+            }
+            throw lexer.unexpected();
+        default:
+            throw lexer.unexpected();
+        }
+        lexer.next();
+        return x;
+    }
+
+    private XPathExpression parseFunctionCall () throws XPathSyntaxException {
+        XPathQName name = lexer.qNameValue();
+        lexer.next();
+        lexer.next();
+
+        Vector<XPathExpression> args = new Vector<XPathExpression>();
+        if (lexer.type() != Token.RPAREN) {
+            args.addElement(parseOrExpr());
+            while (lexer.type() == Token.COMMA) {
+                lexer.next();
+                args.addElement(parseOrExpr());
+            }
+        }
+        expect(Token.RPAREN);
+        return new XPathFuncExpr(name, toArray(args));
+    }
+
+    //move past the current token, which must be of the given type
+    private void expect (int type) throws XPathSyntaxException {
+        if (lexer.type() == Lexer.EOF && (type == Token.RPAREN || type == Token.RBRACK)) {
+            throw new XPathSyntaxException("Mismatched brackets or parentheses");
+        } else if (lexer.type() != type) {
+            throw lexer.unexpected();
+        }
+        lexer.next();
+    }
+
+    private static XPathExpression[] toArray (Vector<XPathExpression> v) {
+        XPathExpression[] a = new XPathExpression[v.size()];
+        v.copyInto(a);
+        return a;
+    }
+
+    private static XPathStep[] toStepArray (Vector<XPathStep> v) {
+        XPathStep[] a = new XPathStep[v.size()];
+        v.copyInto(a);
+        return a;
+    }
+
+    /**
+     * @deprecated lexes and parses in several passes; use {@link #parse(String)}
+     */
+    @Deprecated
     public static XPathExpression parse (Vector<Token> tokens) throws XPathSyntaxException {
         ASTNode tree = buildParseTree(tokens);
         return tree.build();
     }
 
+    /* if you try to edit this code, you will likely break it */
+
     public static ASTNode buildParseTree (Vector<Token> tokens) throws XPathSyntaxException {
         ASTNodeAbstractExpr root = new ASTNodeAbstractExpr();
         for (int i = 0; i < tokens.size(); i++)
@@ -1,23 +1,34 @@
 package org.javarosa.core.model;
 
+import org.javarosa.core.model.condition.EvaluationContext;
+import org.javarosa.core.model.condition.Recalculate;
+import org.javarosa.core.model.data.IntegerData;
 import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.InstanceInitializationFactory;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.debug.Event;
 import org.javarosa.debug.EventNotifier;
+import org.javarosa.model.xform.XPathReference;
+import org.javarosa.xform.parse.XFormParserConfig;
+import org.javarosa.xpath.XPathConditional;
 import org.joda.time.LocalTime;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.core.IsEqual.equalTo;
 import static org.javarosa.test.utils.ResourcePathHelper.r;
 import static org.javarosa.xform.parse.FormParserHelper.parse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 public class Safe2014DagImplTest {
 
@@ -382,6 +393,208 @@ public class Safe2014DagImplTest {
         System.out.println("Deletion of " + numberOfRepeats + " repeats took " + elapsedFormatted);
     }
 
+    @Test
+    public void deleteThirdRepeatGroup_withPrecomputedCascades_firesTheSameTriggerables() throws Exception {
+        // Given
+        final List<String> onTheFlyMessages = deleteThirdRepeatGroupOf("calculation-dependent-on-the-repeat-groups-number.xml",
+                new XFormParserConfig());
+
+        // When
+        final List<String> precomputedMessages = deleteThirdRepeatGroupOf("calculation-dependent-on-the-repeat-groups-number.xml",
+                new XFormParserConfig().withMaxPrecomputedCascadeSize(1000));
+
+        // Then
+        assertThat(precomputedMessages, equalTo(onTheFlyMessages));
+    }
+
+    private List<String> deleteThirdRepeatGroupOf(String formName, XFormParserConfig config) throws Exception {
+        final FormDef formDef = parse(r(formName), config).formDef;
+        formDef.initialize(false, new InstanceInitializationFactory());
+
+        final List<String> messages = new ArrayList<>();
+        formDef.setEventNotifier(new EventNotifier() {
+            @Override
+            public void publishEvent(Event event) {
+                messages.add(event.getDisplayMessage());
+            }
+        });
+
+        final TreeElement elementToBeDeleted = formDef.getMainInstance().getRoot().getChildAt(2);
+        formDef.deleteRepeat(new FormIndex(0, 2, elementToBeDeleted.getRef()));
+        return messages;
+    }
+
+    @Test
+    public void finalizeTriggerables_namesTheCyclePath() throws Exception {
+        // Given
+        final TreeElement root = new TreeElement("data");
+        for (String name : new String[]{"a", "b", "c", "d", "e"}) {
+            root.addChild(new TreeElement(name));
+        }
+        final FormInstance mainInstance = new FormInstance(root);
+
+        final Safe2014DagImpl dag = new Safe2014DagImpl(new IDag.EventNotifierAccessor() {
+            @Override
+            public EventNotifier getEventNotifier() {
+                return eventNotifier;
+            }
+        });
+
+        // a feeds b, b feeds c and c feeds b again; d and e hang off the loop
+        addRecalculate(dag, "/data/b", "/data/a + /data/c");
+        addRecalculate(dag, "/data/c", "/data/b * 2");
+        addRecalculate(dag, "/data/d", "/data/c + 1");
+        addRecalculate(dag, "/data/e", "/data/a");
+
+        // When
+        try {
+            dag.finalizeTriggerables(mainInstance, new EvaluationContext(mainInstance));
+            fail("Expected the cycle to be detected");
+        } catch (IllegalStateException e) {
+            // Then
+            assertThat(e.getMessage(), equalTo("Cycle detected in form's relevant and calculation logic!\n"
+                    + "The following nodes form a loop:\n"
+                    + "/data/b\n"
+                    + "/data/c\n"
+                    + "/data/b"));
+        }
+    }
+
+    @Test
+    public void triggerTriggerables_evaluatesOnlyTheCascadeInTopologicalOrder() throws Exception {
+        // Given
+        final TreeElement root = new TreeElement("data");
+        for (String name : new String[]{"a", "b", "c", "d", "e"}) {
+            root.addChild(new TreeElement(name));
+        }
+        final FormInstance mainInstance = new FormInstance(root);
+        final EvaluationContext evalContext = new EvaluationContext(mainInstance);
+
+        final Safe2014DagImpl dag = new Safe2014DagImpl(new IDag.EventNotifierAccessor() {
+            @Override
+            public EventNotifier getEventNotifier() {
+                return eventNotifier;
+            }
+        });
+
+        // added out of order, so c has to wait for b
+        addRecalculate(dag, "/data/c", "concat(/data/b, '!')");
+        addRecalculate(dag, "/data/b", "/data/a * 2");
+        addRecalculate(dag, "/data/e", "/data/d + 1");
+        dag.finalizeTriggerables(mainInstance, evalContext);
+        dag.initializeTriggerables(mainInstance, evalContext, root.getRef(), false);
+
+        // Then every triggerable knows its position in the DAG
+        for (int i = 0; i < dag.triggerablesDAG.size(); i++) {
+            assertThat(dag.triggerablesDAG.get(i).dagIndex, equalTo(i));
+        }
+
+        // When
+        final TreeElement a = root.getChild("a", 0);
+        a.setAnswer(new IntegerData(3));
+        final List<String> fired = targetsOf(dag.triggerTriggerables(mainInstance, evalContext, a.getRef(), false));
+
+        // Then only a's cascade is evaluated, b before c
+        assertThat(fired, equalTo(Arrays.asList("/data/b", "/data/c")));
+        assertThat(root.getChild("c", 0).getValue().getDisplayText(), equalTo("6!"));
+    }
+
+    @Test
+    public void incrementalCascade_skipsTheDependentsOfUnchangedValues() throws Exception {
+        // Given
+        final TreeElement root = new TreeElement("data");
+        for (String name : new String[]{"a", "b", "c"}) {
+            root.addChild(new TreeElement(name));
+        }
+        final FormInstance mainInstance = new FormInstance(root);
+        final EvaluationContext evalContext = new EvaluationContext(mainInstance);
+
+        final Safe2014DagImpl dag = new Safe2014DagImpl(new IDag.EventNotifierAccessor() {
+            @Override
+            public EventNotifier getEventNotifier() {
+                return eventNotifier;
+            }
+        });
+        dag.setIncrementalCascade(true);
+
+        addRecalculate(dag, "/data/b", "if(/data/a > 5, 'big', 'small')");
+        addRecalculate(dag, "/data/c", "concat(/data/b, '!')");
+        dag.finalizeTriggerables(mainInstance, evalContext);
+        dag.initializeTriggerables(mainInstance, evalContext, root.getRef(), false);
+
+        // When b keeps its value
+        final TreeElement a = root.getChild("a", 0);
+        a.setAnswer(new IntegerData(2));
+        final List<String> firedOnNoOp = targetsOf(dag.triggerTriggerables(mainInstance, evalContext, a.getRef(), false));
+
+        // Then c is not re-evaluated
+        assertThat(firedOnNoOp, equalTo(Arrays.asList("/data/b")));
+        assertThat(root.getChild("c", 0).getValue().getDisplayText(), equalTo("small!"));
+
+        // When b changes
+        a.setAnswer(new IntegerData(7));
+        final List<String> firedOnChange = targetsOf(dag.triggerTriggerables(mainInstance, evalContext, a.getRef(), false));
+
+        // Then c follows
+        assertThat(firedOnChange, equalTo(Arrays.asList("/data/b", "/data/c")));
+        assertThat(root.getChild("c", 0).getValue().getDisplayText(), equalTo("big!"));
+    }
+
+    @Test
+    public void initializeTriggerables_inParallelWaves_reachesTheSameState() throws Exception {
+        // Given
+        final String sequentialState = describeInitialState("eIMCI-by-D-Tree.xml", new XFormParserConfig());
+
+        // When
+        final String parallelState;
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            parallelState = describeInitialState("eIMCI-by-D-Tree.xml",
+                    new XFormParserConfig().withInitializationPool(pool));
+        } finally {
+            pool.shutdown();
+        }
+
+        // Then
+        assertThat(parallelState, equalTo(sequentialState));
+    }
+
+    private static String describeInitialState(String formName, XFormParserConfig config) throws Exception {
+        final FormDef formDef = parse(r(formName), config).formDef;
+        formDef.initialize(false, new InstanceInitializationFactory());
+        final StringBuilder sb = new StringBuilder();
+        describe(formDef.getMainInstance().getRoot(), sb);
+        return sb.toString();
+    }
+
+    private static void describe(TreeElement element, StringBuilder sb) {
+        sb.append(element.getRef().toString(true))
+                .append(" value=").append(element.getValue() == null ? null : element.getValue().getDisplayText())
+                .append(" relevant=").append(element.isRelevant())
+                .append(" enabled=").append(element.isEnabled())
+                .append(" required=").append(element.isRequired())
+                .append('\n');
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            describe(element.getChildAt(i), sb);
+        }
+    }
+
+    private static List<String> targetsOf(Collection<QuickTriggerable> fired) {
+        final List<String> targets = new ArrayList<>();
+        for (QuickTriggerable qt : fired) {
+            targets.add(qt.t.getTargets().get(0).toString());
+        }
+        Collections.sort(targets);
+        return targets;
+    }
+
+    private static void addRecalculate(IDag dag, String target, String calculate) throws Exception {
+        TreeReference ref = (TreeReference) new XPathReference(target).getReference();
+        Recalculate recalculate = new Recalculate(new XPathConditional(calculate), ref);
+        recalculate.addTarget(ref);
+        dag.addTriggerable(recalculate);
+    }
+
     /**
      * Assert that {@param formDef} holds the expected {@link IDag} implementation.
      * The field is private in {@link FormDef} so the reflection must be used.
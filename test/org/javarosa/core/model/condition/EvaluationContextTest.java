@@ -0,0 +1,144 @@
+package org.javarosa.core.model.condition;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.DataInstance;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EvaluationContextTest {
+    private FormInstance towns;
+    private EvaluationContext ec;
+
+    @Before
+    public void setUp() {
+        FormInstance main = new FormInstance(new TreeElement("data"), "main");
+        main.getRoot().addChild(element("district", "north"));
+        main.getRoot().addChild(element("size", "1200"));
+
+        towns = new FormInstance(new TreeElement("root"), "towns");
+        towns.initialize(null, "towns");
+        addTown("a", "Ashford", "north", "1200");
+        addTown("b", "Brook", "south", "300");
+        addTown("c", "Carlow", "north", "5000");
+        addTown("d", "Dale", "north", "800");
+
+        HashMap<String, DataInstance> instances = new HashMap<String, DataInstance>();
+        instances.put("towns", towns);
+        TreeReference district = main.getRoot().getChild("district", 0).getRef();
+        ec = new EvaluationContext(new EvaluationContext(main, instances), district);
+    }
+
+    @Test
+    public void equalityPredicates_onSecondaryInstances_areResolvedThroughTheIndex() throws Exception {
+        TreeElement root = towns.getRoot();
+        List<XPathExpression> predicates = new ArrayList<XPathExpression>();
+        predicates.add(XPathParseTool.parseXPath("district = current()/."));
+        predicates.add(XPathParseTool.parseXPath("@id = 'c'"));
+        predicates.add(XPathParseTool.parseXPath("starts-with(name, 'C')"));
+
+        List<TreeReference> matches = root.tryBatchChildFetch("item", TreeReference.INDEX_UNBOUND, predicates, ec);
+
+        assertEquals(1, matches.size());
+        assertEquals(root.getChild("item", 2).getRef(), matches.get(0));
+        // only the predicate it couldn't resolve is left
+        assertEquals(1, predicates.size());
+
+        predicates.add(0, XPathParseTool.parseXPath("position() = 1"));
+        assertNull(root.tryBatchChildFetch("item", TreeReference.INDEX_UNBOUND, predicates, ec));
+    }
+
+    @Test
+    public void indexedPredicates_giveTheSameResultsAsTheFullScan() throws Exception {
+        assertEquals(3.0, eval("count(instance('towns')/root/item[district = /data/district])"));
+        assertEquals(0.0, eval("count(instance('towns')/root/item[district = 'east'])"));
+        assertEquals("Dale", eval("instance('towns')/root/item[district = current()/.][position() = 3]/name"));
+        assertEquals("Carlow", eval("instance('towns')/root/item['c' = @id][district = 'north']/name"));
+
+        // changing the instance discards the indexes
+        addTown("e", "Eston", "north", "");
+        assertEquals(4.0, eval("count(instance('towns')/root/item[district = /data/district])"));
+        assertEquals("Eston", eval("instance('towns')/root/item[district = current()/.][position() = 4]/name"));
+        towns.getRoot().removeChild("item", 4);
+        assertEquals(3.0, eval("count(instance('towns')/root/item[district = /data/district])"));
+    }
+
+    @Test
+    public void comparisonPredicates_onSecondaryInstances_areResolvedThroughTheIndex() throws Exception {
+        TreeElement root = towns.getRoot();
+        List<XPathExpression> predicates = new ArrayList<XPathExpression>();
+        predicates.add(XPathParseTool.parseXPath("population >= /data/size and 5000 > population"));
+        predicates.add(XPathParseTool.parseXPath("district = 'north' and population < 2000"));
+        predicates.add(XPathParseTool.parseXPath("population != 0"));
+
+        List<TreeReference> matches = root.tryBatchChildFetch("item", TreeReference.INDEX_UNBOUND, predicates, ec);
+
+        assertEquals(1, matches.size());
+        assertEquals(root.getChild("item", 0).getRef(), matches.get(0));
+        assertEquals(1, predicates.size());
+    }
+
+    @Test
+    public void numericLiterals_areResolvedThroughTheIndexOnlyInComparisons() throws Exception {
+        TreeElement root = towns.getRoot();
+        List<XPathExpression> predicates = new ArrayList<XPathExpression>();
+        predicates.add(XPathParseTool.parseXPath("2000 > population"));
+
+        List<TreeReference> matches = root.tryBatchChildFetch("item", TreeReference.INDEX_UNBOUND, predicates, ec);
+
+        assertEquals(eval("count(instance('towns')/root/item[2000 > population])"), (double) matches.size());
+        assertEquals(0, predicates.size());
+
+        // equalities compare numbers as numbers, which the string index can't do
+        predicates.add(XPathParseTool.parseXPath("population = 1500"));
+        assertNull(root.tryBatchChildFetch("item", TreeReference.INDEX_UNBOUND, predicates, ec));
+        assertEquals(1, predicates.size());
+    }
+
+    @Test
+    public void indexedComparisons_giveTheSameResultsAsTheFullScan() throws Exception {
+        assertEquals(2.0, eval("count(instance('towns')/root/item[population >= /data/size])"));
+        assertEquals(1.0, eval("count(instance('towns')/root/item[population > /data/size])"));
+        assertEquals(3.0, eval("count(instance('towns')/root/item[population <= /data/size])"));
+        assertEquals(2.0, eval("count(instance('towns')/root/item[/data/size > population])"));
+        assertEquals("Dale", eval("instance('towns')/root/item[population > 300 and population < 5000][position() = 2]/name"));
+        assertEquals(0.0, eval("count(instance('towns')/root/item[population < 'many'])"));
+
+        // an empty population is NaN, which fails every comparison
+        addTown("e", "Eston", "north", "");
+        assertEquals(4.0, eval("count(instance('towns')/root/item[population < 10000])"));
+        assertEquals(1.0, eval("count(instance('towns')/root/item[not(population < 10000)])"));
+    }
+
+    private Object eval(String xpath) throws Exception {
+        return XPathFuncExpr.unpack(XPathParseTool.parseXPath(xpath).eval(ec.getMainInstance(), ec));
+    }
+
+    private void addTown(String id, String name, String district, String population) {
+        TreeElement root = towns.getRoot();
+        TreeElement item = new TreeElement("item", root.getChildMultiplicity("item"));
+        root.addChild(item);
+        item.setAttribute(null, "id", id);
+        item.addChild(element("name", name));
+        item.addChild(element("district", district));
+        item.addChild(element("population", population));
+    }
+
+    private static TreeElement element(String name, String value) {
+        TreeElement element = new TreeElement(name);
+        element.setValue(new StringData(value));
+        return element;
+    }
+}
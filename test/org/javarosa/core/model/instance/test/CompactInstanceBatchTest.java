@@ -0,0 +1,106 @@
+package org.javarosa.core.model.instance.test;
+
+import static org.javarosa.test.utils.ResourcePathHelper.r;
+import static org.javarosa.xform.parse.FormParserHelper.parse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.utils.CompactInstanceBatch;
+import org.javarosa.core.model.instance.utils.InstanceTemplateManager;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompactInstanceBatchTest {
+    private FormInstance template;
+    private InstanceTemplateManager templateMgr;
+
+    @Before
+    public void setUp() throws Exception {
+        template = parse(r("template-repeat.xml")).formDef.getMainInstance();
+        template.setFormId(7);
+        templateMgr = new InstanceTemplateManager() {
+            public FormInstance getTemplateInstance(int formID) {
+                return template;
+            }
+        };
+    }
+
+    @Test
+    public void columns_canBeReadWithoutRebuildingInstances() throws Exception {
+        CompactInstanceBatch batch = buildBatch();
+
+        assertEquals(Arrays.asList("/data/person/name", "/data/person/relationship"), batch.getColumnPaths());
+        IAnswerData[][] relationships = batch.getColumn("/data/person/relationship");
+        assertEquals(3, relationships.length);
+        assertEquals("spouse", relationships[0][0].getValue());
+        assertEquals(2, relationships[1].length);
+        assertSame(relationships[1][0], relationships[1][1]);
+        assertEquals(0, relationships[2].length);
+        assertNull(batch.getColumn("/data/pet/name"));
+    }
+
+    @Test
+    public void instances_surviveARoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        buildBatch().writeExternal(new DataOutputStream(bytes));
+
+        CompactInstanceBatch batch = new CompactInstanceBatch(templateMgr);
+        batch.readExternal(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), ExtUtil.defaultPrototypes());
+
+        assertEquals(3, batch.size());
+        assertEquals(7, batch.getFormId());
+        assertEquals(new Date(1000), batch.getDateSaved(1));
+
+        FormInstance second = batch.getInstance(1);
+        assertEquals(11, second.getID());
+        TreeElement root = second.getRoot();
+        assertEquals(2, root.getChildMultiplicity("person"));
+        assertEquals("Bob", root.getChild("person", 0).getChild("name", 0).getValue().getValue());
+        assertEquals("Cy", root.getChild("person", 1).getChild("name", 0).getValue().getValue());
+        assertEquals("child", root.getChild("person", 1).getChild("relationship", 0).getValue().getValue());
+
+        assertEquals(0, batch.getInstance(2).getRoot().getChildMultiplicity("person"));
+        assertEquals("Ann", batch.getInstance(0).getRoot().getChild("person", 0).getChild("name", 0).getValue().getValue());
+    }
+
+    private CompactInstanceBatch buildBatch() throws Exception {
+        CompactInstanceBatch batch = new CompactInstanceBatch(templateMgr);
+        batch.add(instance(10, "Ann", "spouse"));
+        batch.add(instance(11, "Bob", "child", "Cy", "child"));
+        batch.add(instance(12));
+        return batch;
+    }
+
+    /**
+     * @param people the name and relationship of each person
+     */
+    private FormInstance instance(int id, String... people) throws Exception {
+        FormInstance instance = template.clone();
+        instance.setID(id);
+        instance.setDateSaved(new Date((id - 10) * 1000));
+
+        TreeElement root = instance.getRoot();
+        TreeElement personTemplate = instance.getTemplatePath(root.getChild("person", 0).getRef());
+        root.removeChild("person", 0);
+        for (int i = 0; i < people.length / 2; i++) {
+            instance.copyNode(personTemplate, root.getRef().extendRef("person", i));
+            TreeElement person = root.getChild("person", i);
+            person.getChild("name", 0).setValue(new StringData(people[i * 2]));
+            person.getChild("relationship", 0).setValue(new StringData(people[i * 2 + 1]));
+        }
+        return instance;
+    }
+}
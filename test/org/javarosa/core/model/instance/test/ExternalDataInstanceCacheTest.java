@@ -0,0 +1,94 @@
+package org.javarosa.core.model.instance.test;
+
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.ExternalDataInstance;
+import org.javarosa.core.model.instance.ExternalDataInstanceCache;
+import org.javarosa.core.model.instance.TreeElement;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+public class ExternalDataInstanceCacheTest {
+    private final ExternalDataInstanceCache cache = ExternalDataInstanceCache.instance();
+
+    @Before
+    public void setUp() {
+        cache.clear();
+        cache.setMaxEntries(16);
+    }
+
+    @After
+    public void tearDown() {
+        cache.setMaxEntries(ExternalDataInstanceCache.DEFAULT_MAX_ENTRIES);
+        cache.setMaxSize(ExternalDataInstanceCache.DEFAULT_MAX_SIZE);
+        cache.clear();
+    }
+
+    @Test
+    public void buildFromPath_parsesEachFileOnce() throws Exception {
+        ExternalDataInstance first = ExternalDataInstance.buildFromPath("/towns.xml", "towns");
+        ExternalDataInstance second = ExternalDataInstance.buildFromPath("/towns.xml", "towns");
+        ExternalDataInstance otherId = ExternalDataInstance.buildFromPath("/towns.xml", "cities");
+
+        assertNotSame(first.getRoot(), second.getRoot());
+        assertEquals(first.getRoot().getNumChildren(), second.getRoot().getNumChildren());
+        assertEquals("towns", second.getRoot().getInstanceName());
+        assertEquals("cities", otherId.getRoot().getInstanceName());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void theCache_isOffByDefault() throws Exception {
+        cache.setMaxEntries(ExternalDataInstanceCache.DEFAULT_MAX_ENTRIES);
+        ExternalDataInstance first = ExternalDataInstance.buildFromPath("/towns.xml", "towns");
+        ExternalDataInstance second = ExternalDataInstance.buildFromPath("/towns.xml", "towns");
+
+        assertNotSame(first.getRoot(), second.getRoot());
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void changesToATreeFromTheCache_doNotReachOtherForms() throws Exception {
+        TreeElement first = (TreeElement) ExternalDataInstance.buildFromPath("/towns.xml", "towns").getRoot();
+        first.getChildAt(0).setAnswer(new StringData("changed"));
+        first.addChild(new TreeElement("added"));
+
+        TreeElement second = (TreeElement) ExternalDataInstance.buildFromPath("/towns.xml", "towns").getRoot();
+        assertEquals(1, second.getNumChildren());
+        assertEquals("us_east", second.getChildAt(0).getValue().getDisplayText());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void changedFiles_areNotHandedOut() {
+        TreeElement root = new TreeElement("root");
+        cache.put("/a.xml", "a", 1000, 10, root);
+
+        assertEquals("root", cache.get("/a.xml", "a", 1000, 10).getName());
+        assertNull(cache.get("/a.xml", "a", 2000, 10));
+        assertNull(cache.get("/a.xml", "a", 1000, 11));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntries_areEvicted() {
+        cache.setMaxEntries(2);
+        cache.put("/a.xml", "a", 1, 10, new TreeElement("a"));
+        cache.put("/b.xml", "b", 1, 10, new TreeElement("b"));
+        cache.get("/a.xml", "a", 1, 10);
+        cache.put("/c.xml", "c", 1, 10, new TreeElement("c"));
+
+        assertEquals(2, cache.getEntryCount());
+        assertNull(cache.get("/b.xml", "b", 1, 10));
+
+        cache.setMaxSize(15);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals("c", cache.get("/c.xml", "c", 1, 10).getName());
+    }
+}
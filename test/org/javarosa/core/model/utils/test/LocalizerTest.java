@@ -20,6 +20,9 @@ import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 
 import org.javarosa.core.services.locale.Localizable;
@@ -28,6 +31,8 @@ import org.javarosa.core.services.locale.TableLocaleSource;
 import org.javarosa.core.util.NoLocalizedTextException;
 import org.javarosa.core.util.OrderedMap;
 import org.javarosa.core.util.UnregisteredLocaleException;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.PrototypeFactory;
 import org.javarosa.core.util.test.ExternalizableTest;
 
@@ -50,7 +55,7 @@ public class LocalizerTest extends TestCase  {
         return aSuite;
     }
 
-    public static final int NUM_TESTS = 31;
+    public static final int NUM_TESTS = 33;
 
     public static String testMaster (int testID) {
         //System.out.println("running " + testID);
@@ -87,6 +92,8 @@ public class LocalizerTest extends TestCase  {
         case 29: return "testLinearSub";
         case 30: return "testHashSub";
         case 31: return "testFallbacks";
+        case 32: return "testDeferredLocales";
+        case 33: return "testItextKeysWrittenOnce";
 
         }
         throw new IllegalStateException("Unexpected index");
@@ -830,6 +837,72 @@ public class LocalizerTest extends TestCase  {
         testSerialize(l, "locales with data 6");
     }
 
+    public static class CountingLocaleSource extends TableLocaleSource {
+        static int reads;
+
+        public CountingLocaleSource() {
+        }
+
+        public CountingLocaleSource(String textID, String text) {
+            setLocaleMapping(textID, text);
+        }
+
+        public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+            reads++;
+            super.readExternal(in, pf);
+        }
+    }
+
+    public void testDeferredLocales() throws Exception {
+        Localizer l = new Localizer();
+        for (int i = 1; i <= 3; i++) {
+            l.addAvailableLocale("locale" + i);
+            l.registerLocaleResource("locale" + i, new CountingLocaleSource("id", "text" + i));
+        }
+        l.setLocale("locale2");
+
+        PrototypeFactory pf = new PrototypeFactory();
+        pf.addClass(CountingLocaleSource.class);
+        byte[] bytes = ExtUtil.serialize(l);
+        CountingLocaleSource.reads = 0;
+        Localizer read = (Localizer)ExtUtil.deserialize(bytes, Localizer.class, pf);
+
+        assertEquals("only the current locale should be read", 1, CountingLocaleSource.reads);
+        assertEquals("text2", read.getText("id"));
+        assertTrue("unread locales should be written back as they were", Arrays.equals(bytes, ExtUtil.serialize(read)));
+        assertEquals(1, CountingLocaleSource.reads);
+
+        assertEquals("text3", read.getText("id", "locale3"));
+        assertEquals(2, CountingLocaleSource.reads);
+    }
+
+    public void testItextKeysWrittenOnce() throws Exception {
+        Localizer l = new Localizer();
+        for (int i = 1; i <= 3; i++) {
+            TableLocaleSource source = new TableLocaleSource();
+            for (int j = 0; j < 10; j++) {
+                source.setLocaleMapping("/data/group/question" + j + ":label", "text" + i + "-" + j);
+            }
+            l.addAvailableLocale("locale" + i);
+            l.registerLocaleResource("locale" + i, source);
+        }
+        l.setLocale("locale1");
+
+        PrototypeFactory pf = new PrototypeFactory();
+        pf.addClass(TableLocaleSource.class);
+        byte[] bytes = ExtUtil.serialize(l);
+        String written = new String(bytes, "ISO-8859-1");
+        for (int j = 0; j < 10; j++) {
+            String key = "/data/group/question" + j + ":label";
+            assertEquals(key + " should be written once", written.indexOf(key), written.lastIndexOf(key));
+        }
+
+        Localizer read = (Localizer)ExtUtil.deserialize(bytes, Localizer.class, pf);
+        for (int i = 1; i <= 3; i++) {
+            assertEquals("text" + i + "-7", read.getText("/data/group/question7:label", "locale" + i));
+        }
+    }
+
     public void testLinearSub() {
         final String F = "first";
         final String S = "second";
@@ -0,0 +1,67 @@
+package org.javarosa.core.services.storage.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.test.MappedFileStorageUtilityTest.Town;
+import org.javarosa.core.services.storage.util.DummyIndexedStorageUtility;
+import org.junit.Test;
+
+public class DummyIndexedStorageUtilityTest {
+    private final DummyIndexedStorageUtility<Town> storage = new DummyIndexedStorageUtility<Town>();
+
+    @Test
+    public void batches_updateTheIndexesWhenCommitted() {
+        storage.write(new Town("Bristol", "South West"));
+
+        storage.beginBatch();
+        storage.write(new Town("Leeds", "Yorkshire"));
+        storage.write(new Town("Bath", "South West"));
+        assertEquals(Arrays.asList(0), storage.getIDsForValue("region", "South West"));
+        storage.commitBatch();
+
+        assertEquals(3, storage.getNumRecords());
+        // the ids come out of a Hashtable, in no particular order
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), new HashSet<Integer>(storage.getIDsForValue("region", "South West")));
+        assertEquals(Arrays.asList(1), storage.getIDsForValue("region", "Yorkshire"));
+    }
+
+    @Test
+    public void rolledBackBatches_leaveNoTrace() {
+        storage.write(new Town("Bristol", "South West"));
+
+        storage.beginBatch();
+        storage.write(new Town("Leeds", "Yorkshire"));
+        storage.remove(0);
+        storage.rollbackBatch();
+
+        assertEquals(1, storage.getNumRecords());
+        assertTrue(storage.exists(0));
+        assertFalse(storage.exists(1));
+        assertEquals(Arrays.asList(0), storage.getIDsForValue("region", "South West"));
+        assertTrue(storage.getIDsForValue("region", "Yorkshire").isEmpty());
+
+        Town york = new Town("York", "Yorkshire");
+        storage.write(york);
+        assertEquals(1, york.getID());
+    }
+
+    @Test
+    public void iterators_peekAtTheNextRecord() {
+        Town bristol = new Town("Bristol", "South West");
+        storage.write(bristol);
+
+        IStorageIterator<Town> iterator = storage.iterate();
+        assertEquals("South West", iterator.peekMetaData("region"));
+        assertArrayEquals(storage.readBytes(0), iterator.peekBytes());
+        assertSame(bristol, iterator.nextRecord());
+        assertFalse(iterator.hasMore());
+    }
+}
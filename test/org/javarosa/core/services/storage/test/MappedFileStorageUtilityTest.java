@@ -0,0 +1,346 @@
+package org.javarosa.core.services.storage.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.javarosa.core.services.storage.EntityFilter;
+import org.javarosa.core.services.storage.IMetaData;
+import org.javarosa.core.services.storage.IStorageIterator;
+import org.javarosa.core.services.storage.MappedFileStorageUtility;
+import org.javarosa.core.services.storage.Persistable;
+import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileStorageUtilityTest {
+    private File directory;
+    private MappedFileStorageUtility<Town> storage;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("storage", "");
+        directory.delete();
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class);
+    }
+
+    @After
+    public void tearDown() {
+        storage.destroy();
+    }
+
+    @Test
+    public void recordsCanBeAddedUpdatedAndRemoved() {
+        int bristol = storage.add(new Town("Bristol", "South West"));
+        Town bath = new Town("Bath", "South West");
+        storage.write(bath);
+        int leeds = storage.add(new Town("Leeds", "Yorkshire"));
+
+        assertEquals(1, bath.getID());
+        assertEquals(3, storage.getNumRecords());
+        assertEquals("Leeds", storage.read(leeds).name);
+
+        storage.update(bristol, new Town("Bristol", "Somerset"));
+        storage.remove(bath);
+
+        assertEquals(2, storage.getNumRecords());
+        assertFalse(storage.exists(bath.getID()));
+        assertNull(storage.read(bath.getID()));
+        assertEquals("Somerset", storage.read(bristol).region);
+        assertEquals(Arrays.asList(bristol), storage.getIDsForValue("region", "Somerset"));
+        assertTrue(storage.getIDsForValue("region", "South West").isEmpty());
+        assertEquals("Leeds", storage.getRecordForValue("name", "Leeds").name);
+
+        IStorageIterator<Town> iterator = storage.iterate();
+        assertEquals(2, iterator.numRecords());
+        assertEquals(bristol, iterator.nextID());
+        assertEquals("Leeds", iterator.nextRecord().name);
+        assertFalse(iterator.hasMore());
+    }
+
+    @Test
+    public void iterators_readMetaDataWithoutDeserializing() {
+        storage.add(new Town("Bristol", "South West"));
+        storage.add(new Town("Leeds", "Yorkshire"));
+        byte[] leeds = storage.readBytes(1);
+        int reads = Town.reads;
+
+        IStorageIterator<Town> iterator = storage.iterate();
+        assertEquals("South West", iterator.peekMetaData("region"));
+        assertEquals(0, iterator.nextID());
+        assertEquals("Leeds", iterator.peekMetaData("name"));
+        assertArrayEquals(leeds, iterator.peekBytes());
+        assertEquals(reads, Town.reads);
+
+        // not stored with the record, so it has to be read
+        assertEquals(5, iterator.peekMetaData("size"));
+        assertEquals(reads + 1, Town.reads);
+    }
+
+    @Test
+    public void recordsAndIndexes_surviveReopening() {
+        storage.add(new Town("Bristol", "South West"));
+        int bath = storage.add(new Town("Bath", "South West"));
+        storage.registerIndex("size");
+        storage.add(new Town("Leeds", "Yorkshire"));
+        storage.remove(bath);
+        int totalSize = storage.getTotalSize();
+        storage.close();
+
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class);
+
+        assertEquals(2, storage.getNumRecords());
+        assertEquals(totalSize, storage.getTotalSize());
+        assertEquals(Arrays.asList(0), storage.getIDsForValue("region", "South West"));
+        assertEquals(Arrays.asList(0), storage.getIDsForValue("size", 7));
+        assertEquals(3, storage.add(new Town("York", "Yorkshire")));
+    }
+
+    @Test
+    public void repack_keepsOnlyTheCurrentRecords() {
+        int bristol = storage.add(new Town("Bristol", "South West"));
+        for (int i = 0; i < 100; i++) {
+            storage.update(bristol, new Town("Bristol", "Region " + i));
+        }
+        int leeds = storage.add(new Town("Leeds", "Yorkshire"));
+        storage.remove(leeds);
+        byte[] bytes = storage.readBytes(bristol);
+        long before = new File(directory, "records.dat").length();
+
+        storage.repack();
+        storage.close();
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class);
+
+        assertEquals(1, storage.getNumRecords());
+        assertArrayEquals(bytes, storage.readBytes(bristol));
+        assertEquals(Arrays.asList(bristol), storage.getIDsForValue("region", "Region 99"));
+        assertTrue(new File(directory, "records.dat").length() <= before);
+    }
+
+    @Test
+    public void repackStoppedBeforeReplacingTheSegment_leavesTheStorageIntact() {
+        storage.destroy();
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class) {
+            protected boolean replaceSegment(File packed, File current) {
+                return false;
+            }
+        };
+        int bristol = storage.add(new Town("Bristol", "South West"));
+        storage.update(bristol, new Town("Bristol", "Somerset"));
+        int leeds = storage.add(new Town("Leeds", "Yorkshire"));
+        storage.close();
+
+        try {
+            storage.repack();
+        } catch (RuntimeException e) {
+            // as though it had crashed before the rename
+        }
+        assertEquals("Leeds", storage.read(leeds).name);
+
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class);
+
+        assertEquals(2, storage.getNumRecords());
+        assertEquals("Somerset", storage.read(bristol).region);
+        assertEquals("Leeds", storage.read(leeds).name);
+        assertEquals(Arrays.asList(leeds), storage.getIDsForValue("region", "Yorkshire"));
+    }
+
+    @Test
+    public void unclosedStorage_isRepairedWhenReopened() throws IOException {
+        storage.add(new Town("Bristol", "South West"));
+        storage.add(new Town("Bath", "South West"));
+        storage.close();
+        int leeds = storage.add(new Town("Leeds", "Yorkshire"));
+
+        // damage the entry of the last record, as a crash halfway through writing it would
+        RandomAccessFile records = new RandomAccessFile(new File(directory, "records.dat"), "rw");
+        long last = findEntry(records, leeds);
+        records.seek(last + 20);
+        records.write(0xff);
+        records.close();
+
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class);
+
+        assertEquals(2, storage.getNumRecords());
+        assertFalse(storage.exists(leeds));
+        assertTrue(storage.getIDsForValue("region", "Yorkshire").isEmpty());
+        assertEquals(Arrays.asList(0, 1), storage.getIDsForValue("region", "South West"));
+        assertEquals(leeds, storage.add(new Town("York", "Yorkshire")));
+    }
+
+    @Test
+    public void removeAll_usesTheStoredMetaData() {
+        storage.add(new Town("Bristol", "South West"));
+        storage.add(new Town("Leeds", "Yorkshire"));
+        storage.add(new Town("Bath", "South West"));
+
+        List<Integer> removed = storage.removeAll(new EntityFilter<Town>() {
+            public int preFilter(int id, HashMap<String, Object> metaData) {
+                return "South West".equals(metaData.get("region")) ? PREFILTER_INCLUDE : PREFILTER_EXCLUDE;
+            }
+
+            public boolean matches(Town e) {
+                throw new AssertionError("the meta-data should have been enough");
+            }
+        });
+
+        assertEquals(Arrays.asList(0, 2), removed);
+        assertEquals(1, storage.getNumRecords());
+
+        storage.removeAll();
+        assertTrue(storage.isEmpty());
+        assertEquals(0, storage.add(new Town("York", "Yorkshire")));
+    }
+
+    @Test
+    public void batches_updateTheIndexesWhenCommitted() {
+        int bristol = storage.add(new Town("Bristol", "South West"));
+
+        storage.beginBatch();
+        storage.update(bristol, new Town("Bristol", "Somerset"));
+        int leeds = storage.add(new Town("Leeds", "Yorkshire"));
+        storage.update(leeds, new Town("Leeds", "West Yorkshire"));
+        assertEquals(2, storage.getNumRecords());
+        assertEquals(Arrays.asList(bristol), storage.getIDsForValue("region", "South West"));
+        storage.commitBatch();
+
+        assertTrue(storage.getIDsForValue("region", "South West").isEmpty());
+        assertEquals(Arrays.asList(bristol), storage.getIDsForValue("region", "Somerset"));
+        assertEquals(Arrays.asList(leeds), storage.getIDsForValue("region", "West Yorkshire"));
+        assertTrue(storage.getIDsForValue("region", "Yorkshire").isEmpty());
+
+        storage.close();
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class);
+        storage.repair();
+        assertEquals(2, storage.getNumRecords());
+        assertEquals(Arrays.asList(leeds), storage.getIDsForValue("region", "West Yorkshire"));
+    }
+
+    @Test
+    public void rolledBackBatches_leaveNoTrace() {
+        int bristol = storage.add(new Town("Bristol", "South West"));
+        int totalSize = storage.getTotalSize();
+
+        storage.beginBatch();
+        storage.add(new Town("Leeds", "Yorkshire"));
+        storage.remove(bristol);
+        storage.rollbackBatch();
+
+        assertEquals(1, storage.getNumRecords());
+        assertEquals(totalSize, storage.getTotalSize());
+        assertEquals("Bristol", storage.read(bristol).name);
+        assertEquals(1, storage.add(new Town("York", "Yorkshire")));
+
+        storage.repair();
+        assertEquals(2, storage.getNumRecords());
+        assertEquals("York", storage.read(1).name);
+    }
+
+    @Test
+    public void uncommittedBatches_areDroppedWhenRepaired() {
+        storage.add(new Town("Bristol", "South West"));
+
+        storage.beginBatch();
+        storage.add(new Town("Leeds", "Yorkshire"));
+        storage.update(0, new Town("Bristol", "Somerset"));
+
+        storage = new MappedFileStorageUtility<Town>(directory, Town.class);
+
+        assertEquals(1, storage.getNumRecords());
+        assertFalse(storage.exists(1));
+        assertEquals("South West", storage.read(0).region);
+        assertEquals(Arrays.asList(0), storage.getIDsForValue("region", "South West"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void batches_cantBeNested() {
+        storage.beginBatch();
+        storage.beginBatch();
+    }
+
+    private static long findEntry(RandomAccessFile records, int id) throws IOException {
+        long offset = 16;
+        while (true) {
+            records.seek(offset);
+            int length = records.readInt();
+            if (records.readInt() == id) {
+                return offset;
+            }
+            offset += 12 + length;
+        }
+    }
+
+    public static class Town implements Persistable, IMetaData {
+        static int reads;
+
+        int id = -1;
+        String name;
+        String region;
+
+        public Town() {
+        }
+
+        Town(String name, String region) {
+            this.name = name;
+            this.region = region;
+        }
+
+        public void setID(int id) {
+            this.id = id;
+        }
+
+        public int getID() {
+            return id;
+        }
+
+        public void readExternal(DataInputStream in, PrototypeFactory pf) throws IOException, DeserializationException {
+            reads++;
+            id = ExtUtil.readInt(in);
+            name = ExtUtil.readString(in);
+            region = ExtUtil.readString(in);
+        }
+
+        public void writeExternal(DataOutputStream out) throws IOException {
+            ExtUtil.writeNumeric(out, id);
+            ExtUtil.writeString(out, name);
+            ExtUtil.writeString(out, region);
+        }
+
+        public String[] getMetaDataFields() {
+            return new String[] {"name", "region"};
+        }
+
+        public HashMap<String, Object> getMetaData() {
+            HashMap<String, Object> metaData = new HashMap<String, Object>();
+            for (String field : getMetaDataFields()) {
+                metaData.put(field, getMetaData(field));
+            }
+            return metaData;
+        }
+
+        public Object getMetaData(String fieldName) {
+            if ("name".equals(fieldName)) {
+                return name;
+            } else if ("region".equals(fieldName)) {
+                return region;
+            } else if ("size".equals(fieldName)) {
+                return name.length();
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.javarosa.core.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.javarosa.core.util.CacheTable;
+import org.junit.Test;
+
+public class CacheTableTest {
+    @Test
+    public void equalObjects_areInternedToTheFirst() {
+        CacheTable<String> table = new CacheTable<String>();
+        String first = new String("value");
+        String second = new String("value");
+
+        assertNotSame(first, second);
+        assertSame(first, table.intern(first));
+        assertSame(first, table.intern(second));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void objectsWithCollidingHashCodes_areBothInterned() {
+        CacheTable<String> table = new CacheTable<String>();
+        String aa = new String("Aa");
+        String bb = new String("BB");
+        assertEquals(aa.hashCode(), bb.hashCode());
+
+        assertSame(aa, table.intern(aa));
+        assertSame(bb, table.intern(bb));
+        assertSame(aa, table.intern(new String("Aa")));
+        assertSame(bb, table.intern(new String("BB")));
+        assertEquals(2, table.size());
+    }
+
+    @Test
+    public void threadsInterningAtOnce_getTheSameObjects() throws Exception {
+        final CacheTable<String> table = new CacheTable<String>();
+        final int values = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String[]>> futures = new ArrayList<Future<String[]>>();
+            for (int t = 0; t < 4; t++) {
+                futures.add(executor.submit(new Callable<String[]>() {
+                    public String[] call() {
+                        String[] interned = new String[values];
+                        for (int i = 0; i < values; i++) {
+                            interned[i] = table.intern(new String("value " + i));
+                        }
+                        return interned;
+                    }
+                }));
+            }
+
+            String[] first = futures.get(0).get();
+            for (Future<String[]> future : futures) {
+                String[] interned = future.get();
+                for (int i = 0; i < values; i++) {
+                    assertSame(first[i], interned[i]);
+                }
+            }
+            assertEquals(values, table.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -16,10 +16,18 @@
 
 package org.javarosa.core.util.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.core.util.externalizable.ExtWrapIntEncoding;
 import org.javarosa.core.util.externalizable.ExtWrapIntEncodingSmall;
 import org.javarosa.core.util.externalizable.ExtWrapIntEncodingUniform;
@@ -35,6 +43,7 @@ public class NumericEncodingTest extends TestCase  {
         TestSuite aSuite = new TestSuite();
         aSuite.addTest(new NumericEncodingTest("testIntEncodingUniform"));
         aSuite.addTest(new NumericEncodingTest("testIntEncodingSmall"));
+        aSuite.addTest(new NumericEncodingTest("testDirectEncoding"));
         return aSuite;
     }
 
@@ -94,4 +103,34 @@ public class NumericEncodingTest extends TestCase  {
             }
         }
     }
+
+    public void testDirectEncoding () throws IOException {
+        ExtWrapIntEncoding uniform = new ExtWrapIntEncodingUniform();
+        testDirectEncoding(0, uniform, 0x00);
+        testDirectEncoding(63, uniform, 0x3f);
+        testDirectEncoding(-1, uniform, 0x7f);
+        testDirectEncoding(64, uniform, 0x80, 0x40);
+        testDirectEncoding(-65, uniform, 0xff, 0x3f);
+
+        ExtWrapIntEncoding small = new ExtWrapIntEncodingSmall(null, ExtWrapIntEncodingSmall.DEFAULT_BIAS);
+        testDirectEncoding(-1, small, 0x00);
+        testDirectEncoding(253, small, 0xfe);
+        testDirectEncoding(300, small, 0xff, 0x00, 0x00, 0x01, 0x2c);
+    }
+
+    //ExtUtil writes the built-in encodings without a wrapper; the bytes must not change
+    private void testDirectEncoding (long val, ExtWrapIntEncoding encoding, int... expected) throws IOException {
+        byte[] expectedBytes = new byte[expected.length];
+        for (int i = 0; i < expected.length; i++) {
+            expectedBytes[i] = (byte)expected[i];
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ExtUtil.writeNumeric(new DataOutputStream(baos), val, encoding);
+        assertTrue("Encoding of " + val, Arrays.equals(expectedBytes, baos.toByteArray()));
+        assertTrue("Wrapped encoding of " + val, Arrays.equals(expectedBytes, ExtUtil.serialize(encoding.clone(new Long(val)))));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(expectedBytes));
+        assertEquals(val, ExtUtil.readNumeric(in, encoding));
+    }
 }
@@ -0,0 +1,51 @@
+package org.javarosa.core.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.javarosa.core.model.CoreModelModule;
+import org.javarosa.core.util.externalizable.CannotCreateObjectException;
+import org.javarosa.core.util.externalizable.ExternalizableWrapper;
+import org.javarosa.core.util.externalizable.PrototypeFactory;
+import org.junit.Test;
+
+public class PrototypeFactoryTest {
+    @Test
+    public void getClass_findsEveryRegisteredClass() throws Exception {
+        PrototypeFactory pf = new PrototypeFactory(Arrays.asList(CoreModelModule.classNames));
+
+        for (String className : CoreModelModule.classNames) {
+            Class c = Class.forName(className);
+            assertSame(c, pf.getClass(PrototypeFactory.getClassHash(c)));
+        }
+        assertSame(String.class, pf.getClass(PrototypeFactory.getClassHash(String.class)));
+        assertNull(pf.getClass(PrototypeFactory.getClassHash(PrototypeFactoryTest.class)));
+
+        pf.addClass(PrototypeFactoryTest.class);
+        assertSame(PrototypeFactoryTest.class, pf.getClass(PrototypeFactory.getClassHash(PrototypeFactoryTest.class)));
+    }
+
+    @Test
+    public void getInstance_createsANewObjectEachTime() {
+        Object first = PrototypeFactory.getInstance(SampleExtz.class);
+        Object second = PrototypeFactory.getInstance(SampleExtz.class);
+
+        assertEquals(SampleExtz.class, first.getClass());
+        assertEquals(SampleExtz.class, second.getClass());
+        assertNotSame(first, second);
+    }
+
+    @Test(expected = CannotCreateObjectException.class)
+    public void getInstance_failsForAbstractClasses() {
+        PrototypeFactory.getInstance(ExternalizableWrapper.class);
+    }
+
+    @Test(expected = CannotCreateObjectException.class)
+    public void getInstance_failsWithoutAnEmptyConstructor() {
+        PrototypeFactory.getInstance(Integer.class);
+    }
+}
@@ -0,0 +1,48 @@
+package org.javarosa.core.util.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.StringTableInputStream;
+import org.javarosa.core.util.externalizable.StringTableOutputStream;
+import org.junit.Test;
+
+public class StringTableStreamTest {
+    private static final String[] STRINGS = {"/data/name", "label", "/data/name", "", "label", "/data/name", "hint"};
+
+    @Test
+    public void repeatedStrings_areWrittenOnce() throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        writeStrings(new DataOutputStream(plain));
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        writeStrings(new StringTableOutputStream(table));
+
+        assertTrue(table.size() < plain.size());
+
+        StringTableInputStream in = new StringTableInputStream(new ByteArrayInputStream(table.toByteArray()));
+        String[] read = new String[STRINGS.length];
+        for (int i = 0; i < STRINGS.length; i++) {
+            read[i] = ExtUtil.readString(in);
+            assertEquals(STRINGS[i], read[i]);
+            // the other values are read in between strings without disturbing the table
+            assertEquals(i, ExtUtil.readInt(in));
+        }
+        assertSame(read[0], read[2]);
+        assertSame(read[0], read[5]);
+        assertEquals(-1, in.read());
+    }
+
+    private static void writeStrings(DataOutputStream out) throws IOException {
+        for (int i = 0; i < STRINGS.length; i++) {
+            ExtUtil.writeString(out, STRINGS[i]);
+            ExtUtil.writeNumeric(out, i);
+        }
+    }
+}
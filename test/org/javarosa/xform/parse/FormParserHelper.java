@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public final class FormParserHelper {
 
@@ -14,7 +15,25 @@ public final class FormParserHelper {
     }
 
     public static ParseResult parse(Path formName) throws IOException {
+        return parse(formName, false);
+    }
+
+    public static ParseResult parse(Path formName, boolean streaming) throws IOException {
+        return parse(formName, streaming, null);
+    }
+
+    public static ParseResult parse(Path formName, boolean streaming, ForkJoinPool parsingPool) throws IOException {
         XFormParser parser = new XFormParser(new FileReader(formName.toString()));
+        parser.setStreaming(streaming);
+        parser.setParsingPool(parsingPool);
+        return parse(parser);
+    }
+
+    public static ParseResult parse(Path formName, XFormParserConfig config) throws IOException {
+        return parse(new XFormParser(new FileReader(formName.toString()), config));
+    }
+
+    private static ParseResult parse(XFormParser parser) throws IOException {
         final List<String> errorMessages = new ArrayList<>();
         parser.attachReporter(new XFormParserReporter() {
             @Override
@@ -4,6 +4,7 @@ import org.javarosa.core.model.Action;
 import org.javarosa.core.model.CoreModelModule;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.GroupDef;
+import org.javarosa.core.model.IDag;
 import org.javarosa.core.model.IDataReference;
 import org.javarosa.core.model.IFormElement;
 import org.javarosa.core.model.QuestionDef;
@@ -22,6 +23,8 @@ import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.javarosa.core.util.CodeTimer;
 import org.javarosa.core.util.JavaRosaCoreModule;
 import org.javarosa.core.util.externalizable.DeserializationException;
+import org.javarosa.debug.EventNotifier;
+import org.javarosa.debug.EventNotifierSilent;
 import org.javarosa.model.xform.XFormSerializingVisitor;
 import org.javarosa.model.xform.XFormsModule;
 import org.javarosa.model.xform.XPathReference;
@@ -34,16 +37,24 @@ import org.junit.Test;
 import org.kxml2.kdom.Element;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.reflect.Field;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import static java.nio.file.Files.copy;
 import static java.nio.file.Files.readAllBytes;
@@ -56,9 +67,13 @@ import static org.javarosa.core.util.externalizable.ExtUtil.defaultPrototypes;
 import static org.javarosa.test.utils.ResourcePathHelper.r;
 import static org.javarosa.xform.parse.FormParserHelper.parse;
 import static org.javarosa.xpath.XPathParseTool.parseXPath;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class XFormParserTest {
 
@@ -178,6 +193,12 @@ public class XFormParserTest {
         serAndDeserializeForm(EXTERNAL_SECONDARY_INSTANCE_XML);
     }
 
+    private static byte[] serialize(FormDef formDef) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        formDef.writeExternal(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
     private void serAndDeserializeForm(Path formName) throws IOException, DeserializationException {
         initSerialization();
         FormDef formDef = parse(formName).formDef;
@@ -300,6 +321,202 @@ public class XFormParserTest {
         assertNoParseErrors(parseResult);
     }
 
+    @Test public void streamingParse_buildsTheSameFormDefs() throws IOException {
+        initSerialization();
+        for (String form : new String[] {"eIMCI-by-D-Tree.xml", "Simpler_Cascading_Select_Form.xml",
+                "template-repeat.xml", "submission-element.xml", "form-with-setvalue-action.xml"}) {
+            ParseResult streamed = parse(r(form), true);
+            assertNoParseErrors(streamed);
+            assertArrayEquals(form, serialize(parse(r(form)).formDef), serialize(streamed.formDef));
+        }
+    }
+
+    @Test public void parallelParse_buildsTheSameFormDefs() throws IOException {
+        initSerialization();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (String form : new String[] {"eIMCI-by-D-Tree.xml", "Sample-Preloading.xml",
+                    "Simpler_Cascading_Select_Form.xml"}) {
+                ParseResult serial = parse(r(form));
+                for (boolean streaming : new boolean[] {false, true}) {
+                    ParseResult parallel = parse(r(form), streaming, pool);
+                    assertEquals(form, serial.errorMessages, parallel.errorMessages);
+                    assertArrayEquals(form, serialize(serial.formDef), serialize(parallel.formDef));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test public void parsersWithASharedConfig_canParseConcurrently() throws Exception {
+        initSerialization();
+        final XFormParserConfig config = new XFormParserConfig().withStreaming(true);
+        String[] forms = {"eIMCI-by-D-Tree.xml", "Simpler_Cascading_Select_Form.xml", "template-repeat.xml",
+                "submission-element.xml", "form-with-setvalue-action.xml"};
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ParseResult>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                for (final String form : forms) {
+                    results.add(executor.submit(new Callable<ParseResult>() {
+                        public ParseResult call() throws IOException {
+                            return parse(r(form), config);
+                        }
+                    }));
+                }
+            }
+            for (int i = 0; i < results.size(); i++) {
+                String form = forms[i % forms.length];
+                assertArrayEquals(form, serialize(parse(r(form)).formDef), serialize(results.get(i).get().formDef));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test public void config_appliesOnlyToItsParsers() throws IOException {
+        final List<String> handled = new ArrayList<>();
+        EventNotifier notifier = new EventNotifierSilent();
+        XFormParserConfig config = new XFormParserConfig()
+                .withEventNotifier(notifier)
+                .withElementHandler("input", new IElementHandler() {
+                    public void handle(XFormParser p, Element e, Object parent) {
+                        handled.add(e.getAttributeValue(null, "ref"));
+                    }
+                });
+
+        FormDef formDef = parse(r("template-repeat.xml"), config).formDef;
+        assertEquals(2, handled.size());
+        assertEquals(0, formDef.getDeepChildCount());
+        assertSame(notifier, formDef.getEventNotifier());
+
+        formDef = parse(r("template-repeat.xml")).formDef;
+        assertEquals(2, handled.size());
+        assertEquals(2, formDef.getDeepChildCount());
+        assertNotSame(notifier, formDef.getEventNotifier());
+    }
+
+    @Test public void configsParsedConcurrently_keepTheirOwnCascadeSettings() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        final XFormParserConfig plain = new XFormParserConfig();
+        final XFormParserConfig tuned = new XFormParserConfig()
+                .withMaxPrecomputedCascadeSize(100)
+                .withIncrementalCascade(true)
+                .withInitializationPool(pool);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<ParseResult>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                final XFormParserConfig config = i % 2 == 0 ? plain : tuned;
+                results.add(executor.submit(new Callable<ParseResult>() {
+                    public ParseResult call() throws IOException {
+                        return parse(r("Simpler_Cascading_Select_Form.xml"), config);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                IDag dag = dagOf(results.get(i).get().formDef);
+                boolean isTuned = i % 2 != 0;
+                assertEquals(isTuned ? 100 : 0, dag.getMaxPrecomputedCascadeSize());
+                assertEquals(isTuned, dag.isIncrementalCascade());
+                assertSame(isTuned ? pool : null, dag.getInitializationPool());
+            }
+        } finally {
+            executor.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    private static IDag dagOf(FormDef formDef) throws Exception {
+        Field dagImpl = FormDef.class.getDeclaredField("dagImpl");
+        dagImpl.setAccessible(true);
+        return (IDag) dagImpl.get(formDef);
+    }
+
+    @Test public void parallelParse_reportsOutputWarningsWithTheirTranslation() throws IOException {
+        StringBuilder form = new StringBuilder("<h:html xmlns=\"http://www.w3.org/2002/xforms\" "
+                + "xmlns:h=\"http://www.w3.org/1999/xhtml\"><h:head><h:title>Outputs</h:title><model><itext>");
+        for (String lang : new String[] {"en", "fr"}) {
+            form.append("<translation lang=\"").append(lang).append("\">")
+                    .append("<text id=\"q\" odd=\"").append(lang).append("-text\">")
+                    .append("<value odd=\"").append(lang).append("-value\">")
+                    .append("Hi <output value=\"/data/q\" odd=\"").append(lang).append("-output\"/></value>")
+                    .append("</text></translation>");
+        }
+        form.append("</itext><instance><data id=\"outputs\"><q/></data></instance></model></h:head><h:body/></h:html>");
+
+        List<String> serial = warningsOf(form.toString(), null);
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            assertEquals(serial, warningsOf(form.toString(), pool));
+        } finally {
+            pool.shutdown();
+        }
+        // the output's warning comes with its own translation, before that text's own warnings
+        assertEquals(6, serial.size());
+        assertTrue(serial.get(0), serial.get(0).contains("en-output"));
+        assertTrue(serial.get(1), serial.get(1).contains("en-value"));
+        assertTrue(serial.get(2), serial.get(2).contains("en-text"));
+        assertTrue(serial.get(3), serial.get(3).contains("fr-output"));
+    }
+
+    private static List<String> warningsOf(String form, ForkJoinPool parsingPool) throws IOException {
+        final List<String> warnings = new ArrayList<>();
+        XFormParser parser = new XFormParser(new StringReader(form));
+        parser.setParsingPool(parsingPool);
+        parser.attachReporter(new XFormParserReporter() {
+            @Override
+            public void warning(String type, String message, String xmlLocation) {
+                warnings.add(message + xmlLocation);
+            }
+        });
+        parser.parse();
+        return warnings;
+    }
+
+    @Test public void missingExternalInstances_areReportedAsWarnings() throws IOException {
+        String form = "<h:html xmlns=\"http://www.w3.org/2002/xforms\" xmlns:h=\"http://www.w3.org/1999/xhtml\">"
+                + "<h:head><h:title>Missing</h:title><model>"
+                + "<instance><data id=\"missing\"><q/></data></instance>"
+                + "<instance id=\"gone\" src=\"jr://file/no-such-instance.xml\"/>"
+                + "<instance id=\"inline\"><root><item>x</item></root></instance>"
+                + "</model></h:head><h:body/></h:html>";
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            for (ForkJoinPool parsingPool : new ForkJoinPool[] {null, pool}) {
+                final List<String> warnings = new ArrayList<>();
+                XFormParser parser = new XFormParser(new StringReader(form));
+                parser.setParsingPool(parsingPool);
+                parser.attachReporter(new XFormParserReporter() {
+                    @Override
+                    public void warning(String type, String message, String xmlLocation) {
+                        warnings.add(type + ": " + message);
+                    }
+                });
+
+                FormDef formDef = parser.parse();
+
+                assertEquals(1, warnings.size());
+                assertTrue(warnings.get(0), warnings.get(0).startsWith(XFormParserReporter.TYPE_ERROR_PRONE
+                        + ": Couldn't load external instance 'gone' from /no-such-instance.xml"));
+                assertNull(formDef.getNonMainInstance("gone"));
+                assertNotNull(formDef.getNonMainInstance("inline"));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = XFormParseException.class)
+    public void streamingParse_rejectsTextInTheModel() throws IOException {
+        XFormParser parser = new XFormParser(new StringReader("<h:html xmlns=\"http://www.w3.org/2002/xforms\" "
+                + "xmlns:h=\"http://www.w3.org/1999/xhtml\"><h:head><model>stray<instance><data/></instance>"
+                + "</model></h:head><h:body/></h:html>"));
+        parser.setStreaming(true);
+        parser.parse();
+    }
+
     @Test public void parseFormWithSubmissionElement() throws IOException {
         // Given & When
         ParseResult parseResult = parse(r("submission-element.xml"));
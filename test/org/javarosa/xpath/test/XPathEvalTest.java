@@ -16,6 +16,10 @@
 
 package org.javarosa.xpath.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -33,7 +37,9 @@ import org.javarosa.core.model.instance.FormInstance;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.model.utils.DateUtils;
+import org.javarosa.core.util.externalizable.ExtUtil;
 import org.javarosa.xpath.IExprDataType;
+import org.javarosa.xpath.XPathArityException;
 import org.javarosa.xpath.XPathException;
 import org.javarosa.xpath.XPathNodeset;
 import org.javarosa.xpath.XPathParseTool;
@@ -42,6 +48,7 @@ import org.javarosa.xpath.XPathUnhandledException;
 import org.javarosa.xpath.XPathUnsupportedException;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathPathExpr;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 
 import static java.lang.Boolean.FALSE;
@@ -61,6 +68,7 @@ public class XPathEvalTest extends TestCase {
 
         aSuite.addTest(new XPathEvalTest("doTests"));
         aSuite.addTest(new XPathEvalTest("doTestsInPolishLocale"));
+        aSuite.addTest(new XPathEvalTest("doCompiledPathTests"));
 
         return aSuite;
     }
@@ -446,6 +454,8 @@ public class XPathEvalTest extends TestCase {
         testEval("number()", new XPathUnhandledException());
         testEval("string('too', 'many', 'args')", new XPathUnhandledException());
         testEval("not-a-function()", new XPathUnhandledException());
+        testEval("pi(1)", new XPathArityException("pi", 0, 1));
+        testEval("contains('only one arg')", new XPathUnhandledException());
         testEval("testfunc()", null, ec, TRUE);
         testEval("add(3, 5)", null, ec, 8.0);
         testEval("add('17', '-14')", null, ec, 3.0);
@@ -545,6 +555,56 @@ public class XPathEvalTest extends TestCase {
             fail("Custom function handler did not successfully send data to external source");
     }
 
+    public void doCompiledPathTests () throws Exception {
+        TreeElement data = new TreeElement("data");
+        String[] names = {"A", "B", "C"};
+        for (int i = 0; i < names.length; i++) {
+            TreeElement repeat = new TreeElement("repeat", i);
+            TreeElement name = new TreeElement("name");
+            name.setAnswer(new StringData(names[i]));
+            repeat.addChild(name);
+            data.addChild(repeat);
+        }
+        FormInstance instance = new FormInstance(data);
+        EvaluationContext base = new EvaluationContext(instance);
+        TreeReference first = instance.getRoot().getChildAt(0).getRef();
+        TreeReference second = instance.getRoot().getChildAt(1).getRef();
+        TreeReference third = instance.getRoot().getChildAt(2).getRef();
+
+        //one expression, evaluated in turn against each repeat, and then against the first one again
+        XPathExpression relative = XPathParseTool.parseXPath("name");
+        assertEquals("A", evalIn(relative, instance, new EvaluationContext(base, first)));
+        assertEquals("B", evalIn(relative, instance, new EvaluationContext(base, second)));
+        assertEquals("C", evalIn(relative, instance, new EvaluationContext(base, third)));
+        assertEquals("A", evalIn(relative, instance, new EvaluationContext(base, first)));
+
+        //the reference is compiled again when an expression is deserialized
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ExtUtil.write(new DataOutputStream(bytes), relative);
+        XPathExpression read = (XPathExpression) ExtUtil.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                XPathPathExpr.class, ExtUtil.defaultPrototypes());
+        assertEquals("B", evalIn(read, instance, new EvaluationContext(base, second)));
+
+        //current() follows the original context, not the one the path is evaluated in
+        EvaluationContext nested = new EvaluationContext(base, third);
+        nested.setOriginalContext(first);
+        assertEquals("A", evalIn(XPathParseTool.parseXPath("current()/name"), instance, nested));
+        assertEquals("C", evalIn(XPathParseTool.parseXPath("./name"), instance, nested));
+
+        //paths that can't be turned into a reference parse, and only fail when evaluated
+        XPathExpression filtered = XPathParseTool.parseXPath("(/data/repeat)/name");
+        try {
+            filtered.eval(instance, new EvaluationContext(base, first));
+            fail("Expected exception, expression : (/data/repeat)/name");
+        } catch (XPathUnsupportedException xpue) {
+            //expected
+        }
+    }
+
+    private Object evalIn (XPathExpression xpe, FormInstance model, EvaluationContext ec) {
+        return ((XPathNodeset) xpe.eval(model, ec)).unpack();
+    }
+
     private XPathNodeset createExpectedNodesetFromIndexedRepeatFunction(FormInstance testInstance, int repeatIndex, String nodeName) {
         TreeReference referencedNode =
                 testInstance.getRoot().getChildAt(repeatIndex).getChildrenWithName(nodeName).get(0).getRef();
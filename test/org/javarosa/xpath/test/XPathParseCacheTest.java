@@ -0,0 +1,112 @@
+package org.javarosa.xpath.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.javarosa.core.services.PrototypeManager;
+import org.javarosa.core.util.externalizable.ExtUtil;
+import org.javarosa.core.util.externalizable.StringTableInputStream;
+import org.javarosa.core.util.externalizable.StringTableOutputStream;
+import org.javarosa.xpath.XPathParseCache;
+import org.javarosa.xpath.XPathParseTool;
+import org.javarosa.xpath.expr.XPathBinaryOpExpr;
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.junit.Before;
+import org.junit.Test;
+
+public class XPathParseCacheTest {
+    private XPathParseCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new XPathParseCache(100, 1000);
+    }
+
+    @Test
+    public void repeatedTexts_areParsedOnce() throws Exception {
+        XPathExpression first = cache.parse("/data/age > 5");
+
+        assertSame(first, cache.parse("/data/age > 5"));
+        assertEquals(0.5, cache.getParseHitRate(), 0);
+    }
+
+    @Test
+    public void equalSubtrees_areShared() throws Exception {
+        XPathBinaryOpExpr cmp = (XPathBinaryOpExpr) cache.parse("/data/age > 5");
+        XPathFuncExpr selected = (XPathFuncExpr) cache.parse("selected(/data/age, 'x')");
+        XPathBinaryOpExpr plus = (XPathBinaryOpExpr) cache.parse("/data/age + 5");
+        XPathBinaryOpExpr minus = (XPathBinaryOpExpr) cache.parse("/data/age - 5");
+
+        assertSame(cmp.a, selected.args[0]);
+        assertSame(cmp.b, plus.b);
+        assertNotSame(plus, minus);
+        assertNotEquals(plus.toString(), minus.toString());
+        assertNotSame(cache.parse("1 = 2"), cache.parse("1 != 2"));
+        assertTrue(cache.getSharedNodeRate() > 0);
+    }
+
+    @Test
+    public void callsWhichChange_areNotShared() throws Exception {
+        XPathBinaryOpExpr before = (XPathBinaryOpExpr) cache.parse("now() < /data/end");
+        XPathBinaryOpExpr after = (XPathBinaryOpExpr) cache.parse("now() > /data/end");
+
+        assertNotSame(before.a, after.a);
+        assertSame(before.b, after.b);
+    }
+
+    @Test
+    public void texts_areDroppedWhenTheCacheIsFull() throws Exception {
+        cache = new XPathParseCache(2, 1000);
+        XPathExpression first = cache.parse("/data/a");
+        cache.parse("/data/b");
+        cache.parse("/data/c");
+
+        assertEquals(2, cache.size());
+        // parsed again, but the tree is still shared
+        assertSame(first, cache.parse("/data/a"));
+        assertEquals(0, cache.getParseHitRate(), 0);
+    }
+
+    @Test
+    public void theCache_isOffByDefault() throws Exception {
+        assertNull(XPathParseTool.getParseCache());
+        assertNotSame(XPathParseTool.parseXPath("/data/age > 5"), XPathParseTool.parseXPath("/data/age > 5"));
+    }
+
+    @Test
+    public void sharedSubtrees_areSerializedOnce() throws Exception {
+        PrototypeManager.registerPrototypes(XPathParseTool.xpathClasses);
+        XPathExpression cmp = cache.parse("/data/household/members/age > 5 and /data/consent = 'yes'");
+        XPathExpression selected = cache.parse("selected(/data/household/members/age, /data/consent)");
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        write(new DataOutputStream(plain), cmp, selected);
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        write(new StringTableOutputStream(table), cmp, selected);
+        assertTrue(table.size() < plain.size());
+
+        DataInputStream in = new StringTableInputStream(new ByteArrayInputStream(table.toByteArray()));
+        XPathBinaryOpExpr readCmp = (XPathBinaryOpExpr) ExtUtil.readShared(in, ExtUtil.defaultPrototypes());
+        XPathFuncExpr readSelected = (XPathFuncExpr) ExtUtil.readShared(in, ExtUtil.defaultPrototypes());
+        assertEquals(cmp, readCmp);
+        assertEquals(selected, readSelected);
+        assertSame(((XPathBinaryOpExpr) readCmp.a).a, readSelected.args[0]);
+    }
+
+    private static void write(DataOutputStream out, XPathExpression... exprs) throws Exception {
+        for (XPathExpression expr : exprs) {
+            ExtUtil.writeShared(out, expr);
+        }
+        out.flush();
+    }
+}
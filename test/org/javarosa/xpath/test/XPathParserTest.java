@@ -0,0 +1,93 @@
+package org.javarosa.xpath.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Vector;
+
+import org.javarosa.xpath.expr.XPathExpression;
+import org.javarosa.xpath.parser.Lexer;
+import org.javarosa.xpath.parser.Parser;
+import org.javarosa.xpath.parser.Token;
+import org.javarosa.xpath.parser.XPathSyntaxException;
+import org.junit.Test;
+
+public class XPathParserTest {
+    private static final String[] MORE_CASES = {
+            "/data/a[position() = 1]//b/@c | $x[2]/..",
+            "(/data/a)[1]/b",
+            "count(/data/repeat[selected(./q, 'yes') and . != ''])",
+            "- /data/a | /data/b * -3",
+            "if(/data/a > 5, concat('x', /data/b), 'y')",
+            "a[b[c[d]]]",
+            "processing-instruction('x')/text()",
+            "f(1,",
+            "a[1",
+            "a]",
+            "/data/a/",
+            "f(,)",
+            "@",
+            "child::",
+    };
+
+    @Test
+    public void parse_buildsTheSameTreesAsTheMultiPassParser() throws Exception {
+        for (String[] testCase : XPathParseTest.parseTestCases) {
+            assertSameParse(testCase[0]);
+        }
+        for (String xpath : MORE_CASES) {
+            assertSameParse(xpath);
+        }
+    }
+
+    @Test
+    public void lexer_readsTheSameTokensOneAtATime() throws Exception {
+        String xpath = "/data/a[. != 'x' and @b:* ] div 3 | $v:w - -.5";
+        Vector<Token> tokens = Lexer.lex(xpath);
+
+        Lexer lexer = new Lexer(xpath);
+        for (Token token : tokens) {
+            int peeked = lexer.peek();
+            assertEquals(token.type, lexer.next());
+            assertEquals(peeked, lexer.type());
+            assertEquals(token.toString(), lexer.token().toString());
+        }
+        assertEquals(Lexer.EOF, lexer.next());
+    }
+
+    @Test
+    public void unbalancedBrackets_areSyntaxErrors() {
+        assertSyntaxError("f(1, 2", "Mismatched brackets or parentheses");
+        assertSyntaxError("/data/a[1", "Mismatched brackets or parentheses");
+        assertSyntaxError("(1))", "Unbalanced brackets or parentheses!");
+        assertSyntaxError("bad-axis::*", "Invalid Axis: bad-axis");
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void assertSameParse(String xpath) throws Exception {
+        String expected;
+        try {
+            expected = Parser.parse(Lexer.lex(xpath)).toString();
+        } catch (XPathSyntaxException e) {
+            expected = null;
+        }
+
+        String actual;
+        try {
+            XPathExpression x = Parser.parse(xpath);
+            actual = x.toString();
+        } catch (XPathSyntaxException e) {
+            actual = null;
+        }
+        assertEquals(xpath, expected, actual);
+    }
+
+    private static void assertSyntaxError(String xpath, String message) {
+        try {
+            Parser.parse(xpath);
+            fail("Parsed " + xpath);
+        } catch (XPathSyntaxException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+}